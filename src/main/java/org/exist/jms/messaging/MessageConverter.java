@@ -0,0 +1,333 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.messaging;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Namespaces;
+import org.exist.dom.memtree.SAXAdapter;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
+import org.exist.validation.ValidationReport;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.jms.*;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Enumeration;
+
+import static org.exist.jms.shared.Constants.*;
+import static org.exist.jms.shared.ErrorCodes.*;
+
+/**
+ * Converts received JMS messages into XQuery values, for the receiver callback functions
+ * and the replies of requests.
+ */
+public class MessageConverter {
+
+    private final static Logger LOG = LogManager.getLogger(MessageConverter.class);
+
+    private final XQueryContext xqueryContext;
+
+    public MessageConverter(final XQueryContext xqueryContext) {
+        this.xqueryContext = xqueryContext;
+    }
+
+    /**
+     * Convert JMS message into a sequence of data.
+     *
+     * @param msg The JMS message object
+     * @return Sequence representing the JMS message
+     * @throws IOException    An internal IO error occurred.
+     * @throws XPathException An eXist-db object could not be  handled.
+     * @throws JMSException   A problem occurred handling an JMS object.
+     */
+    public Sequence getContent(final Message msg) throws IOException, XPathException, JMSException {
+        // This sequence shall contain the actual conten that will be passed
+        // to the callback function
+        Sequence content = null;
+
+        // Switch based on type incoming object
+        if (msg instanceof TextMessage) {
+
+            // xs:string values are passed as regular Text messages
+            content = new StringValue(((TextMessage) msg).getText());
+
+        } else if (msg instanceof ObjectMessage) {
+
+            // the supported other types are wrapped into a corresponding
+            // Java object inside the ObjectMessage
+            content = handleObjectMessage((ObjectMessage) msg);
+
+        } else if (msg instanceof BytesMessage) {
+
+            // XML nodes and base64 (binary) data are sent as an array of bytes
+            final BytesMessage bm = (BytesMessage) msg;
+
+            // Read data into byte buffer
+            final byte[] data = new byte[(int) bm.getBodyLength()];
+            bm.readBytes(data);
+
+            final PayloadCodec codec = getCodec(msg.getStringProperty(EXIST_DOCUMENT_COMPRESSION));
+
+            // Serialize data
+            if (DATA_TYPE_XML.equalsIgnoreCase(bm.getStringProperty(EXIST_DATA_TYPE))) {
+                // XML(fragment)
+                content = processXML(data, codec);
+
+            } else {
+                // Binary data - read compressed when indicated
+                try (InputStream is = codec.decompress(new ByteArrayInputStream(data))) {
+                    content = Base64BinaryDocument.getInstance(xqueryContext, is);
+                }
+            }
+
+        } else {
+            // Unsupported JMS message type
+            final String txt = String.format("Unsupported JMS Message type %s", msg.getClass().getCanonicalName());
+
+            LOG.error(txt);
+            throw new XPathException(JMS021, txt);
+        }
+        return content;
+    }
+
+    /**
+     * Convert JMS message properties into an eXist-db map.
+     *
+     * @param msg The JMS message
+     * @return eXist-db map containing the properties
+     */
+    public MapType getMessageProperties(final Message msg) throws XPathException, JMSException {
+        // Copy property values into Maptype
+        final MapType map = new MapType(xqueryContext);
+
+        final Enumeration props = msg.getPropertyNames();
+        while (props.hasMoreElements()) {
+            final String key = (String) props.nextElement();
+
+            final Object obj = msg.getObjectProperty(key);
+
+            if (obj instanceof String) {
+                final String value = msg.getStringProperty(key);
+                addStringKV(map, key, value);
+
+            } else if (obj instanceof Integer) {
+                final Integer localValue = msg.getIntProperty(key);
+                final ValueSequence vs = new ValueSequence(new IntegerValue(localValue));
+                addKV(map, key, vs);
+
+            } else if (obj instanceof Double) {
+                final Double localValue = msg.getDoubleProperty(key);
+                final ValueSequence vs = new ValueSequence(new DoubleValue(localValue));
+                addKV(map, key, vs);
+
+            } else if (obj instanceof Boolean) {
+                final Boolean localValue = msg.getBooleanProperty(key);
+                final ValueSequence vs = new ValueSequence(new BooleanValue(localValue));
+                addKV(map, key, vs);
+
+            } else if (obj instanceof Float) {
+                final Float localValue = msg.getFloatProperty(key);
+                final ValueSequence vs = new ValueSequence(new FloatValue(localValue));
+                addKV(map, key, vs);
+
+            } else {
+                final String value = msg.getStringProperty(key);
+                addStringKV(map, key, value);
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Unable to convert '{}'/'{}' into a map. Falling back to String value", key, value);
+                }
+            }
+
+        }
+        return map;
+    }
+
+    /**
+     * Convert JMS connection properties into an eXist-db map.
+     *
+     * @param msg The JMS message
+     * @return eXist-db map containing the properties
+     */
+    public MapType getJmsProperties(final Message msg) throws XPathException, JMSException {
+        // Copy property values into Maptype
+        final MapType map = new MapType(xqueryContext);
+
+        addStringKV(map, JMS_MESSAGE_ID, msg.getJMSMessageID());
+        addStringKV(map, JMS_CORRELATION_ID, msg.getJMSCorrelationID());
+        addStringKV(map, JMS_TYPE, msg.getJMSType());
+        addStringKV(map, JMS_PRIORITY, "" + msg.getJMSPriority());
+        addStringKV(map, JMS_EXPIRATION, "" + msg.getJMSExpiration());
+        addStringKV(map, JMS_TIMESTAMP, "" + msg.getJMSTimestamp());
+
+        // Destination for the reply of a request
+        final Destination replyTo = msg.getJMSReplyTo();
+        if (replyTo instanceof Queue) {
+            addStringKV(map, JMS_REPLY_TO, ((Queue) replyTo).getQueueName());
+        } else if (replyTo instanceof Topic) {
+            addStringKV(map, JMS_REPLY_TO, ((Topic) replyTo).getTopicName());
+        }
+
+        return map;
+    }
+
+    /**
+     * Add key-value pair to map.
+     *
+     * @param map   Target for key-value data.
+     * @param key   The key value to retrieve the data.
+     * @param value Data corresponding to the key.
+     * @throws XPathException A map operation failed.
+     */
+    private void addStringKV(final MapType map, final String key, final String value) throws XPathException {
+        if (map != null && key != null && !key.isEmpty() && value != null) {
+            map.add(new StringValue(key), new ValueSequence(new StringValue(value)));
+        }
+    }
+
+    /**
+     * Add key-value pair to map.
+     *
+     * @param map           Target for key-value data.
+     * @param key           The key value to retrieve the data.
+     * @param valueSequence Data corresponding to the key.
+     * @throws XPathException A map operation failed.
+     */
+    private void addKV(final MapType map, final String key, final ValueSequence valueSequence) throws XPathException {
+        if (map != null && StringUtils.isNotBlank(key) && valueSequence != null) {
+            map.add(new StringValue(key), valueSequence);
+        }
+    }
+
+    /**
+     * Convert JMS' objectmessage into an Xquery sequence with one value.
+     *
+     * @throws JMSException   if the JMS provider fails to set the object due to some internal error.
+     * @throws XPathException Object type is not supported.
+     */
+    private Sequence handleObjectMessage(final ObjectMessage msg) throws JMSException, XPathException {
+
+        final Object obj = msg.getObject();
+        Sequence content = null;
+
+        if (obj instanceof BigInteger) {
+            content = new IntegerValue((BigInteger) obj);
+
+        } else if (obj instanceof Double) {
+            content = new DoubleValue((Double) obj);
+
+        } else if (obj instanceof BigDecimal) {
+            content = new DecimalValue((BigDecimal) obj);
+
+        } else if (obj instanceof Boolean) {
+            content = new BooleanValue((Boolean) obj);
+
+        } else if (obj instanceof Float) {
+            content = new FloatValue((Float) obj);
+
+        } else {
+            final String txt = String.format("Unable to convert the object %s", obj.toString());
+
+            LOG.error(txt);
+            throw new XPathException(JMS022, txt);
+        }
+        return content;
+    }
+
+    /**
+     * Parse an byte-array containing (compressed) XML data into
+     * an eXist-db document.
+     *
+     * @param data  Byte array containg the XML data.
+     * @param codec Codec for decompressing the data
+     * @return Sequence containing the XML as DocumentImpl
+     * @throws XPathException Something bad happened.
+     */
+    private Sequence processXML(final byte[] data, final PayloadCodec codec) throws XPathException {
+
+        final ValidationReport validationReport = new ValidationReport();
+        final SAXAdapter adapter = new SAXAdapter(xqueryContext);
+
+        Sequence content = null;
+        try {
+            // Reading compressed XML fragment when indicated
+            try (InputStream is = codec.decompress(new ByteArrayInputStream(data))) {
+
+                final SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                final InputSource src = new InputSource(is);
+                final SAXParser parser = factory.newSAXParser();
+                final XMLReader xr = parser.getXMLReader();
+
+                xr.setErrorHandler(validationReport);
+                xr.setContentHandler(adapter);
+                xr.setProperty(Namespaces.SAX_LEXICAL_HANDLER, adapter);
+
+                xr.parse(src);
+            }
+
+            if (validationReport.isValid()) {
+                content = adapter.getDocument();
+            } else {
+                final String txt = String.format("Received document is not valid: %s", validationReport.toString());
+                LOG.debug(txt);
+                throw new XPathException(JMS023, txt);
+            }
+
+        } catch (SAXException | ParserConfigurationException | IOException ex) {
+            throw new XPathException(JMS003, ex.getMessage(), ex);
+
+        }
+
+        return content;
+    }
+
+    /**
+     * Get codec for the compression property, data is not compressed when not set.
+     */
+    private PayloadCodec getCodec(final String compression) throws XPathException {
+
+        if (StringUtils.isBlank(compression)) {
+            return PayloadCodecs.getCodec(COMPRESSION_TYPE_NONE);
+        }
+
+        try {
+            return PayloadCodecs.getCodec(compression);
+
+        } catch (final IllegalArgumentException ex) {
+            throw new XPathException(JMS032, ex.getMessage());
+        }
+    }
+}
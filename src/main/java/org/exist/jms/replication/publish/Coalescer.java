@@ -0,0 +1,416 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.BatchEnvelope;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces successive changes of the same document within a time window. Only the
+ * latest state of a document is serialized and sent when the window closes; a document
+ * that is created and deleted within the window is not sent at all.
+ * <p>
+ * Changes of collections, and copy and move operations, are not coalesced. All pending
+ * changes are sent before such a change, so the order of the changes is kept.
+ */
+public class Coalescer implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(Coalescer.class);
+
+    private static final AtomicInteger COALESCER_COUNTER = new AtomicInteger();
+
+    private final int id = COALESCER_COUNTER.incrementAndGet();
+    private final PublisherConfiguration configuration;
+    private final MessageSender delegate;
+    private final long window;
+
+    /**
+     * Pending changes per document path, in order of the first change.
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Serializes sending, so changes are handed over in order.
+     */
+    private final Object sendLock = new Object();
+
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong vanished = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param configuration Processed trigger configuration
+     * @param delegate      The sender that receives the coalesced changes.
+     */
+    Coalescer(final PublisherConfiguration configuration, final MessageSender delegate) {
+        this.configuration = configuration;
+        this.delegate = delegate;
+        this.window = configuration.getParameters().getCoalesceWindow();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, String.format("jms-coalescer-%d", id));
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> flush(false), window, Math.max(window / 2, 1), TimeUnit.MILLISECONDS);
+
+        LOG.info("Started coalescer {} with a window of {} ms", id, window);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return The sender that receives the coalesced changes.
+     */
+    MessageSender getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Add change to the window. Document changes replace a pending change of the same document,
+     * other changes are sent directly after all pending changes.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException Thrown when a message could not be handed over.
+     */
+    @Override
+    public void sendMessage(final eXistMessage em) throws TransportException {
+
+        received.incrementAndGet();
+
+        if (running && isCoalescable(em)) {
+            synchronized (pending) {
+                final Pending previous = pending.get(em.getResourcePath());
+                if (previous == null) {
+                    pending.put(em.getResourcePath(), new Pending(em));
+                } else {
+                    merge(previous, em);
+                }
+            }
+            return;
+        }
+
+        synchronized (sendLock) {
+            flush(true);
+            delegate.sendMessage(em);
+            sent.incrementAndGet();
+        }
+    }
+
+    private boolean isCoalescable(final eXistMessage em) {
+
+        if (em.getResourceType() != eXistMessage.ResourceType.DOCUMENT) {
+            return false;
+        }
+
+        switch (em.getResourceOperation()) {
+            case CREATE:
+            case UPDATE:
+            case METADATA:
+            case DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Merge change with the pending change of the same document.
+     */
+    private void merge(final Pending previous, final eXistMessage em) {
+
+        final eXistMessage.ResourceOperation before = previous.message.getResourceOperation();
+        final eXistMessage.ResourceOperation after = em.getResourceOperation();
+
+        switch (after) {
+            case CREATE:
+            case UPDATE:
+                // Latest state is serialized when the window closes; a created document stays created
+                if (before == eXistMessage.ResourceOperation.CREATE || before == eXistMessage.ResourceOperation.DELETE) {
+                    em.setResourceOperation(eXistMessage.ResourceOperation.CREATE);
+                }
+                previous.replace(em);
+                break;
+
+            case METADATA:
+                if (before == eXistMessage.ResourceOperation.CREATE || before == eXistMessage.ResourceOperation.UPDATE) {
+                    // The metadata is sent with the document
+                    em.resetPayload();
+                } else {
+                    previous.replace(em);
+                }
+                break;
+
+            case DELETE:
+                if (previous.created) {
+                    // Created within the window, never existed for the subscribers
+                    pending.remove(em.getResourcePath());
+                    previous.message.resetPayload();
+                    em.resetPayload();
+                    cancelled.addAndGet(2);
+                    return;
+                }
+                previous.replace(em);
+                break;
+
+            default:
+                break;
+        }
+
+        coalesced.incrementAndGet();
+    }
+
+    /**
+     * Send pending changes.
+     *
+     * @param all TRUE to send all changes, else only the changes of which the window is closed.
+     */
+    private void flush(final boolean all) {
+
+        synchronized (sendLock) {
+
+            final List<eXistMessage> ready = new ArrayList<>();
+            final long deadline = System.currentTimeMillis() - window;
+
+            synchronized (pending) {
+                for (final Iterator<Pending> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+                    final Pending next = iterator.next();
+                    if (all || next.since <= deadline) {
+                        ready.add(next.message);
+                        iterator.remove();
+                    }
+                }
+            }
+
+            if (ready.isEmpty()) {
+                return;
+            }
+
+            try {
+                send(serialize(ready));
+
+            } catch (final Throwable t) {
+                LOG.error("Unable to send coalesced changes: {}", t.getMessage(), t);
+                ready.forEach(em -> em.completeDelivery(false));
+            }
+        }
+    }
+
+    /**
+     * Serialize the latest state of created and updated documents. Documents that do not exist
+     * anymore are skipped; they were removed by a later change that is sent separately.
+     */
+    private List<eXistMessage> serialize(final List<eXistMessage> messages) throws Exception {
+
+        final List<eXistMessage> retVal = new ArrayList<>();
+
+        final BrokerPool brokerPool = configuration.getBrokerPool();
+        try (DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()))) {
+
+            for (final eXistMessage em : messages) {
+
+                final eXistMessage.ResourceOperation operation = em.getResourceOperation();
+                if (operation != eXistMessage.ResourceOperation.CREATE && operation != eXistMessage.ResourceOperation.UPDATE) {
+                    retVal.add(em);
+                    continue;
+                }
+
+                final DocumentImpl document = broker.getXMLResource(XmldbURI.create(em.getResourcePath()), Lock.LockMode.READ_LOCK);
+                if (document == null) {
+                    LOG.debug("Document '{}' does not exist anymore, not sent.", em.getResourcePath());
+                    vanished.incrementAndGet();
+                    continue;
+                }
+
+                try {
+                    // Refresh metadata, may have been changed within the window
+                    final Map<String, Object> md = em.getMetadata();
+                    MessageHelper.retrieveDocMetadata(md, document.getMetadata());
+                    MessageHelper.retrieveFromDocument(md, document);
+                    MessageHelper.retrievePermission(md, document.getPermissions());
+
+                    final PublisherParameters parameters = configuration.getParameters();
+                    DeltaEncoder.getInstance().serialize(broker, document, em, parameters);
+
+                    // Only the digest is sent when the content did not change
+                    if (parameters.isOmitUnchanged()) {
+                        if (operation == eXistMessage.ResourceOperation.UPDATE) {
+                            ContentDigests.getInstance().omitUnchanged(em);
+                        } else {
+                            ContentDigests.getInstance().record(em);
+                        }
+                    }
+                    retVal.add(em);
+
+                } catch (final Throwable t) {
+                    LOG.error("Unable to serialize document '{}': {}", em.getResourcePath(), t.getMessage());
+                    em.completeDelivery(false);
+
+                } finally {
+                    document.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Hand over changes to the delegate, as batch when configured.
+     */
+    private void send(final List<eXistMessage> messages) throws Exception {
+
+        final PublisherParameters parameters = configuration.getParameters();
+
+        if (!parameters.isTransactionBatch() || messages.size() == 1) {
+            for (final eXistMessage em : messages) {
+                delegate.sendMessage(em);
+                sent.incrementAndGet();
+            }
+            return;
+        }
+
+        final int maxSize = parameters.getBatchMaxSize();
+        for (int start = 0; start < messages.size(); start += maxSize) {
+            final List<eXistMessage> part = messages.subList(start, Math.min(start + maxSize, messages.size()));
+            try {
+                delegate.sendMessage(BatchEnvelope.create(part, parameters.getSpillThreshold()));
+                sent.addAndGet(part.size());
+            } finally {
+                part.forEach(eXistMessage::resetPayload);
+            }
+        }
+    }
+
+    /**
+     * Send all pending changes and stop the window.
+     */
+    void shutdown() {
+        running = false;
+        flusher.shutdownNow();
+        flush(true);
+    }
+
+    /**
+     * @return Ratio between the number of received and sent changes.
+     */
+    public double getCoalescingRatio() {
+        final long nrSent = sent.get();
+        return nrSent == 0 ? 1.0 : (double) received.get() / nrSent;
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "coalescer", "coalescer", null);
+        builder.addAttribute(new QName("id", null, null), "" + id);
+
+        builder.startElement("", Constants.PUBLISHER_COALESCE_WINDOW, Constants.PUBLISHER_COALESCE_WINDOW, null);
+        builder.characters("" + window);
+        builder.endElement();
+
+        builder.startElement("", "statistics", "statistics", null);
+
+        synchronized (pending) {
+            writeValue(builder, "pending", pending.size());
+        }
+        writeValue(builder, "received", received.get());
+        writeValue(builder, "sent", sent.get());
+        writeValue(builder, "coalesced", coalesced.get());
+        writeValue(builder, "cancelled", cancelled.get());
+        writeValue(builder, "vanished", vanished.get());
+
+        builder.startElement("", "ratio", "ratio", null);
+        builder.characters(String.format(Locale.ENGLISH, "%.2f", getCoalescingRatio()));
+        builder.endElement();
+
+        builder.endElement(); // statistics
+
+        builder.endElement(); // coalescer
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters("" + value);
+        builder.endElement();
+    }
+
+    /**
+     * Latest change of a document, with the time of the first change in the window and whether
+     * the document was created by that change. A document that existed before the window is
+     * still deleted when it is deleted, re-created and deleted again within the window.
+     */
+    private static class Pending {
+
+        private final long since = System.currentTimeMillis();
+        private final boolean created;
+        private eXistMessage message;
+
+        Pending(final eXistMessage message) {
+            this.message = message;
+            this.created = (message.getResourceOperation() == eXistMessage.ResourceOperation.CREATE);
+        }
+
+        void replace(final eXistMessage newMessage) {
+            message.resetPayload();
+            message = newMessage;
+        }
+    }
+}
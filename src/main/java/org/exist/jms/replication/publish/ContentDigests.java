@@ -0,0 +1,192 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Administration of the content digests of the published documents. When a document is
+ * stored again with identical content only a digest is sent instead of the complete
+ * payload; replicas that have the content with this digest only apply the metadata.
+ * <p>
+ * A digest is recorded when the message is sent to the broker, and is removed when the
+ * message can not be sent or is discarded. The administration is kept in memory and is
+ * bounded; after a restart, or when a document is not recently published, the content is
+ * sent again.
+ */
+public class ContentDigests {
+
+    private final static Logger LOG = LogManager.getLogger(ContentDigests.class);
+
+    private static final int MAX_ENTRIES = 100_000;
+
+    private static ContentDigests instance;
+
+    private final Map<String, String> published = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong contentSent = new AtomicLong();
+    private final AtomicLong contentOmitted = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    private ContentDigests() {
+        // Nop
+    }
+
+    public static synchronized ContentDigests getInstance() {
+
+        if (null == instance) {
+            instance = new ContentDigests();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Remove the payload of the serialized message when the content is identical to the
+     * previously published content of the document.
+     *
+     * @param em The serialized message
+     */
+    void omitUnchanged(final eXistMessage em) {
+
+        final Object digest = em.getMetadata().get(MessageHelper.EXIST_CONTENT_DIGEST);
+        if (digest == null) {
+            return;
+        }
+
+        final String previous;
+        synchronized (published) {
+            previous = published.get(em.getResourcePath());
+        }
+
+        track(em, digest.toString());
+
+        if (!digest.toString().equals(previous)) {
+            contentSent.incrementAndGet();
+            return;
+        }
+
+        LOG.debug("Content of '{}' is unchanged, payload is not sent.", em.getResourcePath());
+        contentOmitted.incrementAndGet();
+        bytesSaved.addAndGet(em.getPayloadSize());
+
+        em.resetPayload();
+        em.getMetadata().remove(MessageHelper.EXIST_DELTA_BASE_DIGEST);
+        em.getMetadata().remove(MessageHelper.EXIST_DELTA_DIGEST);
+        em.getMetadata().put(MessageHelper.EXIST_CONTENT_OMITTED, Boolean.TRUE.toString());
+    }
+
+    /**
+     * Register the digest of the published content of the document, when it is sent.
+     *
+     * @param em The serialized message
+     */
+    void record(final eXistMessage em) {
+
+        final Object digest = em.getMetadata().get(MessageHelper.EXIST_CONTENT_DIGEST);
+        if (digest == null) {
+            return;
+        }
+
+        track(em, digest.toString());
+        contentSent.incrementAndGet();
+    }
+
+    /**
+     * Record the digest when the message is sent; forget the published content when the
+     * message is not sent, the replicas might not have it.
+     */
+    private void track(final eXistMessage em, final String digest) {
+        final String path = em.getResourcePath();
+        em.addDeliveryListener(sent -> {
+            synchronized (published) {
+                if (sent) {
+                    published.put(path, digest);
+                } else {
+                    published.remove(path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the published content of the documents affected by the message; their content
+     * is sent again with the next change.
+     *
+     * @param em Message of a changed document or collection
+     */
+    void invalidate(final eXistMessage em) {
+
+        final boolean isCollection = em.getResourceType() == eXistMessage.ResourceType.COLLECTION;
+
+        synchronized (published) {
+            for (final String path : new String[]{em.getResourcePath(), em.getDestinationPath()}) {
+                if (path == null) {
+                    continue;
+                }
+
+                if (isCollection) {
+                    final String prefix = path.endsWith("/") ? path : path + "/";
+                    published.keySet().removeIf(key -> key.startsWith(prefix));
+                } else {
+                    published.remove(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "digests", "digests", null);
+
+        synchronized (published) {
+            writeValue(builder, "size", published.size());
+        }
+        writeValue(builder, "contentSent", contentSent.get());
+        writeValue(builder, "contentOmitted", contentOmitted.get());
+        writeValue(builder, "bytesSaved", bytesSaved.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters("" + value);
+        builder.endElement();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.XmlDelta;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serializes updated XML documents as delta against the previously replicated version.
+ * The previously replicated version of each document is kept (compressed) in the data
+ * directory of the database. The complete document is sent when there is no previous
+ * version, when the delta is not significantly smaller, and periodically so replicas that
+ * could not apply a delta are brought up to date again.
+ * <p>
+ * The serialized version becomes the base for the next delta only when its message is sent
+ * to the broker; when the message can not be sent or is discarded, the base is removed and
+ * the next update is sent complete. While a version of a document is not yet sent, updates
+ * of the document are sent complete as well.
+ */
+public class DeltaEncoder {
+
+    private final static Logger LOG = LogManager.getLogger(DeltaEncoder.class);
+
+    private static final String BASE_DIRECTORY = "jms-delta";
+
+    /**
+     * Larger documents are always sent complete
+     */
+    private static final int MAX_SIZE = 32 * 1024 * 1024;
+
+    private static DeltaEncoder instance;
+
+    private final Map<String, Integer> deltasSinceFull = new ConcurrentHashMap<>();
+
+    /**
+     * Sequence number of the latest version per document that is not yet sent
+     */
+    private final Map<String, Long> unsent = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong deltasSent = new AtomicLong();
+    private final AtomicLong documentsSent = new AtomicLong();
+    private final AtomicLong charactersSaved = new AtomicLong();
+
+    private DeltaEncoder() {
+        // Singleton
+    }
+
+    public static synchronized DeltaEncoder getInstance() {
+
+        if (null == instance) {
+            instance = new DeltaEncoder();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Serialize document into the payload of the message, as delta when configured and possible.
+     *
+     * @param broker     The broker
+     * @param document   The document
+     * @param em         The message for the document
+     * @param parameters Publisher parameters
+     * @throws IOException When the document could not be serialized.
+     */
+    void serialize(final DBBroker broker, final DocumentImpl document, final eXistMessage em,
+                   final PublisherParameters parameters) throws IOException {
+
+        if (!parameters.isDelta() || document.getResourceType() != DocumentImpl.XML_FILE) {
+            MessageHelper.serialize(broker, document, em, parameters.getCodec(),
+                    parameters.getCompressionLevel(), parameters.getSpillThreshold());
+            return;
+        }
+
+        final BrokerPool brokerPool = broker.getBrokerPool();
+        final String path = em.getResourcePath();
+        final Path baseFile = getBaseFile(brokerPool, path);
+
+        final String text = MessageHelper.serializeToString(broker, document);
+        if (text.length() < parameters.getDeltaMinSize() || text.length() > MAX_SIZE) {
+            invalidate(brokerPool, path);
+            writeText(em, text, parameters);
+            return;
+        }
+
+        // The base is what the replicas have, unless a newer version is not sent yet
+        final boolean pending = unsent.containsKey(path);
+        final String base = pending ? null : readBase(baseFile);
+        registerBase(brokerPool, em, baseFile, text);
+
+        final int nrDeltas = deltasSinceFull.getOrDefault(path, 0);
+
+        XmlDelta delta = null;
+        if (base != null && em.getResourceOperation() == eXistMessage.ResourceOperation.UPDATE
+                && nrDeltas < parameters.getDeltaFullInterval()) {
+            try {
+                delta = XmlDelta.diff(base, text);
+            } catch (final IOException ex) {
+                LOG.debug("Unable to compute delta for '{}': {}", path, ex.getMessage());
+            }
+        }
+
+        if (delta == null || delta.getSize() > text.length() / 2) {
+            deltasSinceFull.remove(path);
+            writeText(em, text, parameters);
+            return;
+        }
+
+        final String digest = XmlDelta.digest(text);
+        final Map<String, Object> md = em.getMetadata();
+        md.put(MessageHelper.EXIST_DELTA_BASE_DIGEST, XmlDelta.digest(base));
+        md.put(MessageHelper.EXIST_DELTA_DIGEST, digest);
+        md.put(MessageHelper.EXIST_CONTENT_DIGEST, digest);
+
+        MessageHelper.compress(em, parameters.getCodec(), parameters.getCompressionLevel(),
+                parameters.getSpillThreshold(), delta::write);
+
+        deltasSinceFull.put(path, nrDeltas + 1);
+        deltasSent.incrementAndGet();
+        charactersSaved.addAndGet(text.length() - delta.getSize());
+
+        LOG.debug("Sending delta of {} characters for '{}' ({} characters)", delta.getSize(), path, text.length());
+    }
+
+    private void writeText(final eXistMessage em, final String text, final PublisherParameters parameters) throws IOException {
+        final String digest = MessageHelper.compress(em, parameters.getCodec(), parameters.getCompressionLevel(),
+                parameters.getSpillThreshold(), os -> {
+                    final Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+                    w.write(text);
+                    w.flush();
+                });
+        em.getMetadata().put(MessageHelper.EXIST_CONTENT_DIGEST, digest);
+        documentsSent.incrementAndGet();
+    }
+
+    /**
+     * Forget the previously replicated version of a document, the next update is sent complete.
+     *
+     * @param brokerPool The database
+     * @param path       Path of the document
+     */
+    void invalidate(final BrokerPool brokerPool, final String path) {
+        deltasSinceFull.remove(path);
+        unsent.remove(path);
+        try {
+            Files.deleteIfExists(getBaseFile(brokerPool, path));
+        } catch (final IOException ex) {
+            LOG.error("Unable to remove previous version of '{}': {}", path, ex.getMessage());
+        }
+    }
+
+    private Path getBaseFile(final BrokerPool brokerPool, final String path) {
+        final Object dataDir = brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        final Path baseDir = (dataDir instanceof Path)
+                ? (Path) dataDir
+                : Paths.get(System.getProperty("java.io.tmpdir"));
+        return baseDir.resolve(BASE_DIRECTORY).resolve(XmlDelta.digest(path) + ".xml.gz");
+    }
+
+    private String readBase(final Path baseFile) {
+
+        if (!Files.exists(baseFile)) {
+            return null;
+        }
+
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(baseFile))) {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to read previous version {}: {}", baseFile, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store the serialized version next to the base; it replaces the base when the message is sent.
+     */
+    private void registerBase(final BrokerPool brokerPool, final eXistMessage em, final Path baseFile,
+                              final String text) throws IOException {
+
+        Files.createDirectories(baseFile.getParent());
+
+        final long nr = sequence.incrementAndGet();
+        final Path pendingFile = baseFile.resolveSibling(baseFile.getFileName() + "." + nr + ".pending");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(pendingFile))) {
+            os.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        final String path = em.getResourcePath();
+        unsent.put(path, nr);
+        em.addDeliveryListener(sent -> completeBase(brokerPool, path, nr, pendingFile, baseFile, sent));
+    }
+
+    /**
+     * The latest version of a document that is sent becomes the base; when a version is not
+     * sent, the replicas might have another version than the base.
+     */
+    private void completeBase(final BrokerPool brokerPool, final String path, final long nr,
+                              final Path pendingFile, final Path baseFile, final boolean sent) {
+        try {
+            if (sent && unsent.remove(path, nr)) {
+                Files.move(pendingFile, baseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+
+            Files.deleteIfExists(pendingFile);
+            if (!sent) {
+                LOG.debug("Version of '{}' is not sent, the next update is sent complete.", path);
+                invalidate(brokerPool, path);
+            }
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to store previous version of '{}': {}", path, ex.getMessage());
+            invalidate(brokerPool, path);
+        }
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "delta", "delta", null);
+
+        writeValue(builder, "deltasSent", deltasSent.get());
+        writeValue(builder, "documentsSent", documentsSent.get());
+        writeValue(builder, "charactersSaved", charactersSaved.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters("" + value);
+        builder.endElement();
+    }
+}
@@ -21,18 +21,24 @@
  */
 package org.exist.jms.replication.publish;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.MessageHelper;
 import org.exist.jms.replication.shared.MessageSender;
 import org.exist.jms.replication.shared.TransportException;
-import org.exist.jms.shared.JmsConfiguration;
-import org.exist.jms.shared.JmsMessageProperties;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.jms.shared.eXistMessageItem;
 import org.exist.jms.shared.send.Sender;
+import org.exist.xquery.XPathException;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Specific class for sending a eXistMessage via JMS to a broker
@@ -43,50 +49,127 @@ public class JMSMessageSender implements MessageSender {
 
     private final static Logger LOG = LogManager.getLogger(JMSMessageSender.class);
 
-    private final PublisherParameters parameters = new PublisherParameters();
+    private final PublisherConfiguration configuration;
+
+    private final AtomicLong chunkedTransfers = new AtomicLong();
+    private final AtomicLong chunksSent = new AtomicLong();
 
     /**
      * Constructor
      *
-     * @param params Set of (Key,value) parameters for setting JMS routing
-     *               instructions, like java.naming.* , destination and connection factory.
+     * @param configuration Processed parameters for setting JMS routing
+     *                      instructions, like java.naming.* , destination and connection factory.
      */
-    JMSMessageSender(final Map<String, List<?>> params) {
-        parameters.setMultiValueParameters(params);
+    JMSMessageSender(final PublisherConfiguration configuration) {
+        this.configuration = configuration;
     }
 
     /**
-     * Send {@link eXistMessage} to message broker.
+     * Send {@link eXistMessage} to message broker. Payloads larger than the configured
+     * chunk size are sent as a sequence of chunk messages.
      *
      * @param em The message that needs to be sent
      * @throws TransportException Thrown when something bad happens.
      */
     @Override
     public void sendMessage(final eXistMessage em) throws TransportException {
+        sendMessage(em, configuration.getParameters().getChunkSize());
+    }
 
-        try {
-            // Get from .xconf file, fill defaults when needed
-            parameters.processParameters();
+    /**
+     * Send {@link eXistMessage} to message broker, with a specific chunk size.
+     *
+     * @param em        The message that needs to be sent
+     * @param chunkSize Payloads larger than this number of bytes are sent in chunks, 0 to send the message as a whole
+     * @throws TransportException Thrown when something bad happens.
+     */
+    void sendMessage(final eXistMessage em, final int chunkSize) throws TransportException {
 
+        try {
             final Sender sender = new Sender();
 
-            final eXistMessageItem item = new eXistMessageItem();
-            item.setData(em);
+            if (chunkSize > 0 && em.getPayloadSize() > chunkSize) {
+                sendChunks(sender, em, chunkSize);
 
-            final JmsConfiguration jmsConfig = new JmsConfiguration();
-            jmsConfig.loadPublisherParameters(parameters);
+            } else {
+                final eXistMessageItem item = new eXistMessageItem();
+                item.setData(em);
 
-            final JmsMessageProperties msgMetaProps = new JmsMessageProperties();
-            msgMetaProps.loadParameters(parameters);
+                sender.send(configuration.getJmsConfiguration(), configuration.getMessageProperties(), item);
+            }
 
-            sender.send(jmsConfig, msgMetaProps, item);
+            em.completeDelivery(true);
 
         } catch (final Throwable ex) {
+            em.completeDelivery(false);
+
             // I know, this is bad coding practice,
             // but in case of probles we really need to fire this exception
             LOG.error(ex.getMessage(), ex);
             throw new TransportException(ex.getMessage(), ex);
+
+        } finally {
+            // Remove temporary data
+            em.resetPayload();
+        }
+
+    }
+
+    /**
+     * Split payload and send each part as separate message. All chunks carry the
+     * properties of the original message, plus a transfer ID and their position.
+     */
+    private void sendChunks(final Sender sender, final eXistMessage em, final int chunkSize) throws IOException, XPathException {
+
+        final long totalSize = em.getPayloadSize();
+        final int count = (int) ((totalSize + chunkSize - 1) / chunkSize);
+        final String transferId = UUID.randomUUID().toString();
+
+        LOG.debug("Sending '{}' ({} bytes) in {} chunks, transfer {}", em.getResourcePath(), totalSize, count, transferId);
+
+        final byte[] buffer = new byte[chunkSize];
+        try (InputStream is = em.getPayloadInputStream()) {
+            for (int index = 0; index < count; index++) {
+
+                final int len = IOUtils.read(is, buffer);
+
+                final eXistMessage chunk = new eXistMessage();
+                chunk.setResourceType(em.getResourceType());
+                chunk.setResourceOperation(em.getResourceOperation());
+                chunk.setResourcePath(em.getResourcePath());
+                chunk.setDestinationPath(em.getDestinationPath());
+                chunk.setPayload(Arrays.copyOf(buffer, len));
+
+                final Map<String, Object> md = new HashMap<>(em.getMetadata());
+                md.put(MessageHelper.EXIST_CHUNK_TRANSFER_ID, transferId);
+                md.put(MessageHelper.EXIST_CHUNK_INDEX, index);
+                md.put(MessageHelper.EXIST_CHUNK_COUNT, count);
+                md.put(MessageHelper.EXIST_CHUNK_SIZE, chunkSize);
+                md.put(MessageHelper.EXIST_CHUNK_TOTAL_SIZE, totalSize);
+                chunk.setMetadata(md);
+
+                final eXistMessageItem item = new eXistMessageItem();
+                item.setData(chunk);
+
+                sender.send(configuration.getJmsConfiguration(), configuration.getMessageProperties(), item);
+                chunksSent.incrementAndGet();
+            }
         }
 
+        chunkedTransfers.incrementAndGet();
+    }
+
+    /**
+     * @return Number of payloads that were sent in chunks.
+     */
+    public long getChunkedTransfers() {
+        return chunkedTransfers.get();
+    }
+
+    /**
+     * @return Number of chunk messages that were sent.
+     */
+    public long getChunksSent() {
+        return chunksSent.get();
     }
 }
@@ -0,0 +1,365 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.eXistMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue that decouples the replication trigger from the message broker. Messages
+ * are accepted in the committing thread and are sent to the broker by one or more
+ * background sender threads.
+ * <p>
+ * With one sender thread the order of the messages is preserved.
+ */
+public class PublishQueue implements MessageSender {
+
+    private final static Logger LOG = LogManager.getLogger(PublishQueue.class);
+
+    private static final AtomicInteger QUEUE_COUNTER = new AtomicInteger();
+
+    private static final long POLL_INTERVAL = 500;
+
+    /**
+     * Behaviour when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until space is available.
+         */
+        BLOCK,
+        /**
+         * Discard the message.
+         */
+        DROP
+    }
+
+    private final int id = QUEUE_COUNTER.incrementAndGet();
+    private final PublisherParameters parameters;
+    private final JMSMessageSender delegate;
+    private final BlockingQueue<eXistMessage> queue;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     *
+     * @param parameters Processed publisher parameters
+     * @param delegate   The sender that actually transmits the messages.
+     */
+    PublishQueue(final PublisherParameters parameters, final JMSMessageSender delegate) {
+        this.parameters = parameters;
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(parameters.getQueueSize());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Start the sender threads.
+     */
+    synchronized void start() {
+
+        if (running) {
+            return;
+        }
+
+        running = true;
+
+        for (int i = 1; i <= parameters.getSenderThreads(); i++) {
+            final Thread worker = new Thread(this::processQueue, String.format("jms-publisher-%d-%d", id, i));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        LOG.info("Started publish queue {} with {} sender thread(s), capacity {}, overflow policy {}",
+                id, parameters.getSenderThreads(), parameters.getQueueSize(), parameters.getOverflowPolicy());
+    }
+
+    /**
+     * Add message to the queue. Depending on the overflow policy the call blocks or the message
+     * is discarded when the queue is full. When the queue is shut down the message is sent directly.
+     *
+     * @param em The message that needs to be sent
+     * @throws TransportException Thrown when the thread is interrupted while waiting.
+     */
+    @Override
+    public void sendMessage(final eXistMessage em) throws TransportException {
+
+        if (!running) {
+            LOG.debug("Publish queue {} is not running, sending message directly.", id);
+            delegate.sendMessage(em);
+            return;
+        }
+
+        if (queue.offer(em)) {
+            enqueued.incrementAndGet();
+            sendWhenStranded(em);
+            return;
+        }
+
+        // Queue is full
+        if (parameters.getOverflowPolicy() == OverflowPolicy.DROP) {
+            dropped.incrementAndGet();
+            LOG.warn("Publish queue {} is full, message for '{}' is dropped.", id, em.getResourcePath());
+            em.completeDelivery(false);
+            em.resetPayload();
+            return;
+        }
+
+        blocked.incrementAndGet();
+        try {
+            queue.put(em);
+            enqueued.incrementAndGet();
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            em.completeDelivery(false);
+            throw new TransportException("Interrupted while waiting for space in publish queue", ex);
+        }
+
+        sendWhenStranded(em);
+    }
+
+    /**
+     * The queue can be shut down while a message is added, after the sender threads emptied the
+     * queue and stopped. A message that is still in the queue then is sent directly; when it is
+     * not in the queue anymore it was taken by a sender thread, or failed by {@link #shutdown()}.
+     */
+    private void sendWhenStranded(final eXistMessage em) throws TransportException {
+        if (!running && queue.remove(em)) {
+            LOG.debug("Publish queue {} was shut down, sending message directly.", id);
+            delegate.sendMessage(em);
+        }
+    }
+
+    /**
+     * Worker loop; continues until the queue is shut down and is empty.
+     */
+    private void processQueue() {
+
+        while (running || !queue.isEmpty()) {
+
+            final eXistMessage em;
+            try {
+                em = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ex) {
+                LOG.debug("Sender thread {} interrupted.", Thread.currentThread().getName());
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (em == null) {
+                continue;
+            }
+
+            inFlight.incrementAndGet();
+            try {
+                delegate.sendMessage(em);
+                sent.incrementAndGet();
+
+            } catch (final Throwable t) {
+                failed.incrementAndGet();
+                LOG.error("Unable to send message for '{}': {}", em.getResourcePath(), t.getMessage());
+
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages and wait until the queue is drained, or the drain timeout
+     * has passed.
+     *
+     * @return Number of messages that could not be sent.
+     */
+    synchronized int shutdown() {
+
+        if (!running) {
+            return 0;
+        }
+
+        running = false;
+
+        LOG.info("Shutting down publish queue {}, {} message(s) pending.", id, queue.size());
+
+        final long deadline = System.currentTimeMillis() + parameters.getDrainTimeout();
+        for (final Thread worker : workers) {
+            final long wait = deadline - System.currentTimeMillis();
+            try {
+                if (wait > 0) {
+                    worker.join(wait);
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Stop what is still running
+        workers.stream().filter(Thread::isAlive).forEach(Thread::interrupt);
+        workers.clear();
+
+        final int remaining = queue.size();
+        if (remaining > 0) {
+            LOG.error("Publish queue {} not drained within {} ms, {} message(s) are not sent.",
+                    id, parameters.getDrainTimeout(), remaining);
+            dropped.addAndGet(remaining);
+
+            final List<eXistMessage> lost = new ArrayList<>();
+            queue.drainTo(lost);
+            for (final eXistMessage em : lost) {
+                em.completeDelivery(false);
+                em.resetPayload();
+            }
+        }
+
+        return remaining;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write queue state and statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "queue", "queue", null);
+        builder.addAttribute(new QName("id", null, null), "" + id);
+
+        builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+        builder.characters("" + parameters.getDestination());
+        builder.endElement();
+
+        builder.startElement("", "state", "state", null);
+        builder.characters(running ? "RUNNING" : "STOPPED");
+        builder.endElement();
+
+        builder.startElement("", Constants.PUBLISHER_QUEUE_SIZE, Constants.PUBLISHER_QUEUE_SIZE, null);
+        builder.characters("" + parameters.getQueueSize());
+        builder.endElement();
+
+        builder.startElement("", Constants.PUBLISHER_THREADS, Constants.PUBLISHER_THREADS, null);
+        builder.characters("" + parameters.getSenderThreads());
+        builder.endElement();
+
+        builder.startElement("", Constants.PUBLISHER_OVERFLOW_POLICY, Constants.PUBLISHER_OVERFLOW_POLICY, null);
+        builder.characters(parameters.getOverflowPolicy().name().toLowerCase());
+        builder.endElement();
+
+        builder.startElement("", "statistics", "statistics", null);
+
+        builder.startElement("", "depth", "depth", null);
+        builder.characters("" + queue.size());
+        builder.endElement();
+
+        builder.startElement("", "inFlight", "inFlight", null);
+        builder.characters("" + inFlight.get());
+        builder.endElement();
+
+        builder.startElement("", "enqueued", "enqueued", null);
+        builder.characters("" + enqueued.get());
+        builder.endElement();
+
+        builder.startElement("", "sent", "sent", null);
+        builder.characters("" + sent.get());
+        builder.endElement();
+
+        builder.startElement("", "failed", "failed", null);
+        builder.characters("" + failed.get());
+        builder.endElement();
+
+        builder.startElement("", "dropped", "dropped", null);
+        builder.characters("" + dropped.get());
+        builder.endElement();
+
+        builder.startElement("", "blocked", "blocked", null);
+        builder.characters("" + blocked.get());
+        builder.endElement();
+
+        if (parameters.getChunkSize() > 0) {
+            builder.startElement("", Constants.PUBLISHER_CHUNK_SIZE, Constants.PUBLISHER_CHUNK_SIZE, null);
+            builder.characters("" + parameters.getChunkSize());
+            builder.endElement();
+
+            builder.startElement("", "chunkedTransfers", "chunkedTransfers", null);
+            builder.characters("" + delegate.getChunkedTransfers());
+            builder.endElement();
+
+            builder.startElement("", "chunksSent", "chunksSent", null);
+            builder.characters("" + delegate.getChunksSent());
+            builder.endElement();
+        }
+
+        builder.endElement(); // statistics
+
+        builder.endElement(); // queue
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.MessageSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of publish queues. All replication triggers with an identical configuration
+ * share one queue, so the order of messages is kept across collections.
+ */
+public class PublishQueueManager {
+
+    private final static Logger LOG = LogManager.getLogger(PublishQueueManager.class);
+
+    private static PublishQueueManager instance;
+
+    private final Map<String, MessageSender> senders = new ConcurrentHashMap<>();
+
+    private PublishQueueManager() {
+        // Singleton, the queues are drained by PublisherShutdown when the database is stopped
+    }
+
+    public static synchronized PublishQueueManager getInstance() {
+
+        if (null == instance) {
+            instance = new PublishQueueManager();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Get message sender for the trigger configuration. When asynchronous publishing is
+     * switched off a synchronous sender is returned. When a coalesce window is configured
+     * the sender is wrapped by a coalescer.
+     *
+     * @param configuration Processed trigger configuration
+     * @return Sender for the configuration
+     */
+    public MessageSender getSender(final PublisherConfiguration configuration) {
+
+        return senders.computeIfAbsent(configuration.getKey(), k -> {
+            final PublisherParameters parameters = configuration.getParameters();
+
+            MessageSender sender = new JMSMessageSender(configuration);
+            if (parameters.isAsync()) {
+                final PublishQueue queue = new PublishQueue(parameters, (JMSMessageSender) sender);
+                queue.start();
+                sender = queue;
+            }
+
+            if (parameters.getCoalesceWindow() > 0) {
+                sender = new Coalescer(configuration, sender);
+            }
+
+            return sender;
+        });
+    }
+
+    /**
+     * @return All publish queues
+     */
+    public List<PublishQueue> getQueues() {
+        final List<PublishQueue> queues = new ArrayList<>();
+        for (final MessageSender sender : senders.values()) {
+            final MessageSender unwrapped = (sender instanceof Coalescer) ? ((Coalescer) sender).getDelegate() : sender;
+            if (unwrapped instanceof PublishQueue) {
+                queues.add((PublishQueue) unwrapped);
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * @return All coalescers
+     */
+    public List<Coalescer> getCoalescers() {
+        final List<Coalescer> coalescers = new ArrayList<>();
+        senders.values().stream()
+                .filter(sender -> sender instanceof Coalescer)
+                .forEach(sender -> coalescers.add((Coalescer) sender));
+        return coalescers;
+    }
+
+    /**
+     * Send pending changes, then drain and stop all publish queues. Called while the database is
+     * stopped and still available, the pending changes are read from the database. Senders that
+     * are requested afterwards are created again.
+     */
+    public synchronized void shutdownAll() {
+
+        for (final Coalescer coalescer : getCoalescers()) {
+            try {
+                coalescer.shutdown();
+            } catch (final Throwable t) {
+                LOG.error("Unable to shutdown coalescer {}: {}", coalescer.getId(), t.getMessage());
+            }
+        }
+
+        for (final PublishQueue queue : getQueues()) {
+            try {
+                queue.shutdown();
+            } catch (final Throwable t) {
+                LOG.error("Unable to shutdown publish queue {}: {}", queue.getId(), t.getMessage());
+            }
+        }
+
+        senders.clear();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.Identity;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.storage.BrokerPool;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Processed and validated configuration of a replication trigger. Instances are created once
+ * per collection configuration and are shared by all trigger instances and sender threads;
+ * the contained objects must not be modified.
+ */
+public class PublisherConfiguration {
+
+    private final static Logger LOG = LogManager.getLogger(PublisherConfiguration.class);
+
+    /**
+     * Cache of configurations, entries disappear when eXist-db discards the collection configuration.
+     */
+    private static final Map<Map<String, List<?>>, PublisherConfiguration> CACHE
+            = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String key;
+    private final BrokerPool brokerPool;
+    private final PublisherParameters parameters;
+    private final JmsConfiguration jmsConfiguration;
+    private final JmsMessageProperties messageProperties;
+
+    private PublisherConfiguration(final BrokerPool brokerPool, final Map<String, List<?>> params) throws TransportException {
+
+        this.brokerPool = brokerPool;
+
+        // Get from .xconf file, fill defaults when needed
+        parameters = new PublisherParameters();
+        parameters.setMultiValueParameters(params);
+        parameters.processParameters();
+
+        jmsConfiguration = new JmsConfiguration();
+        jmsConfiguration.loadPublisherParameters(parameters);
+
+        messageProperties = new JmsMessageProperties();
+        messageProperties.loadParameters(parameters);
+
+        // Set upfront, the value does not change
+        final String id = Identity.getInstance().getIdentity();
+        if (StringUtils.isNotBlank(id)) {
+            messageProperties.setProperty(Constants.EXIST_INSTANCE_ID, id);
+        }
+
+        key = new TreeMap<>(parameters.getProps()).toString();
+    }
+
+    /**
+     * Get the configuration for the trigger parameters, process the parameters when seen for the first time.
+     *
+     * @param brokerPool The database of the trigger
+     * @param params     The parameters of the trigger.
+     * @return The processed configuration
+     * @throws TransportException The parameters are not valid.
+     */
+    public static PublisherConfiguration getInstance(final BrokerPool brokerPool, final Map<String, List<?>> params) throws TransportException {
+
+        PublisherConfiguration configuration = CACHE.get(params);
+        if (configuration == null) {
+            configuration = new PublisherConfiguration(brokerPool, params);
+            LOG.debug(configuration.getParameters().getReport());
+            CACHE.put(params, configuration);
+        }
+        return configuration;
+    }
+
+    /**
+     * @return Unique key for the values of the configuration.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The database of the trigger, for reading documents after the transaction is completed.
+     */
+    public BrokerPool getBrokerPool() {
+        return brokerPool;
+    }
+
+    public PublisherParameters getParameters() {
+        return parameters;
+    }
+
+    public JmsConfiguration getJmsConfiguration() {
+        return jmsConfiguration;
+    }
+
+    public JmsMessageProperties getMessageProperties() {
+        return messageProperties;
+    }
+}
@@ -25,8 +25,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.exist.jms.replication.shared.ClientParameters;
 import org.exist.jms.replication.shared.TransportException;
 import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
 
 import javax.naming.Context;
+import java.util.Locale;
 
 /**
  * Publisher specific properties.
@@ -35,10 +38,32 @@ import javax.naming.Context;
  */
 public class PublisherParameters extends ClientParameters {
 
+    /**
+     * Default maximum size in bytes of a payload kept in memory.
+     */
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
     private Long timeToLive;
     private Integer priority;
     private String deliveryMode;
 
+    private boolean async = true;
+    private int queueSize = 1000;
+    private int senderThreads = 1;
+    private PublishQueue.OverflowPolicy overflowPolicy = PublishQueue.OverflowPolicy.BLOCK;
+    private long drainTimeout = 30000;
+    private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private int chunkSize = 0;
+    private PayloadCodec codec = PayloadCodecs.getDefaultCodec();
+    private int compressionLevel = PayloadCodec.DEFAULT_LEVEL;
+    private boolean transactionBatch = false;
+    private int batchMaxSize = 1000;
+    private int coalesceWindow = 0;
+    private boolean delta = false;
+    private int deltaMinSize = 64 * 1024;
+    private int deltaFullInterval = 10;
+    private boolean omitUnchanged = false;
+
     public Long getTimeToLive() {
         return timeToLive;
     }
@@ -51,6 +76,97 @@ public class PublisherParameters extends ClientParameters {
         return deliveryMode;
     }
 
+    public boolean isAsync() {
+        return async;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    public PublishQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @return Maximum payload size of one message, 0 when chunked transfer is switched off.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return Codec for compressing the payload of replicated documents.
+     */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return TRUE when the changes of a transaction are sent as one batch message.
+     */
+    public boolean isTransactionBatch() {
+        return transactionBatch;
+    }
+
+    /**
+     * @return Maximum number of changes in one batch message.
+     */
+    public int getBatchMaxSize() {
+        return batchMaxSize;
+    }
+
+    /**
+     * @return Time in milliseconds that changes of a document are coalesced, 0 when switched off.
+     */
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * @return TRUE when updates of XML documents are sent as delta.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * @return Minimum size in characters of XML documents that are sent as delta.
+     */
+    public int getDeltaMinSize() {
+        return deltaMinSize;
+    }
+
+    /**
+     * @return Maximum number of successive deltas before the complete document is sent again.
+     */
+    public int getDeltaFullInterval() {
+        return deltaFullInterval;
+    }
+
+    /**
+     * @return TRUE when only the digest is sent for updates that do not change the content.
+     */
+    public boolean isOmitUnchanged() {
+        return omitUnchanged;
+    }
+
     @Override
     public void processParameters() throws TransportException {
 
@@ -123,13 +239,166 @@ public class PublisherParameters extends ClientParameters {
         // Get connection authentication
         connectionUsername = props.getProperty(Constants.JMS_CONNECTION_USERNAME);
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
+
+        // Asynchronous publishing, default on
+        async = getBoolean(Constants.PUBLISHER_ASYNC, async);
+
+        // Size of the publish queue
+        queueSize = getPositiveInteger(Constants.PUBLISHER_QUEUE_SIZE, queueSize);
+
+        // Number of sender threads
+        senderThreads = getPositiveInteger(Constants.PUBLISHER_THREADS, senderThreads);
+
+        // Behaviour when the publish queue is full
+        value = props.getProperty(Constants.PUBLISHER_OVERFLOW_POLICY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                overflowPolicy = PublishQueue.OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (final IllegalArgumentException ex) {
+                final String errorText = String.format("Unable to set overflow policy; got '%s'. Supported are 'block' and 'drop'.", value);
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Maximum time to wait for the queue to drain at shutdown
+        value = props.getProperty(Constants.PUBLISHER_DRAIN_TIMEOUT);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                drainTimeout = Long.valueOf(value);
+            } catch (final NumberFormatException ex) {
+                final String errorText = String.format("Unable to set drain timeout; got '%s'. %s", value, ex.getMessage());
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Payloads larger than this number of bytes are written to a temporary file
+        spillThreshold = getPositiveInteger(Constants.PUBLISHER_SPILL_THRESHOLD, spillThreshold);
+
+        // Payloads larger than this number of bytes are sent as a sequence of chunks, off by default
+        chunkSize = getPositiveInteger(Constants.PUBLISHER_CHUNK_SIZE, chunkSize);
+
+        // Compression of the payload, gzip by default
+        value = props.getProperty(Constants.PUBLISHER_CONTENT_ENCODING);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                codec = PayloadCodecs.getCodec(value.trim());
+            } catch (final IllegalArgumentException ex) {
+                final String errorText = String.format("Unable to set content encoding; got '%s'. Supported are %s.",
+                        value, PayloadCodecs.getNames());
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Compression level, the codec default when not set
+        value = props.getProperty(Constants.PUBLISHER_COMPRESSION_LEVEL);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                compressionLevel = Integer.parseInt(value.trim());
+            } catch (final NumberFormatException ex) {
+                final String errorText = String.format("Unable to set compression level; got '%s'. %s", value, ex.getMessage());
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+
+            if (!codec.isValidLevel(compressionLevel)) {
+                final String errorText = String.format("Unable to set compression level; got '%s'. Not supported by content encoding '%s'.",
+                        value, codec.getName());
+                LOG.error(errorText);
+                throw new TransportException(errorText);
+            }
+        }
+
+        // Changes of a transaction in one message, off by default
+        transactionBatch = getBoolean(Constants.PUBLISHER_TRANSACTION_BATCH, transactionBatch);
+        batchMaxSize = getPositiveInteger(Constants.PUBLISHER_BATCH_MAX_SIZE, batchMaxSize);
+
+        // Only send latest state of documents changed within the window, off by default
+        coalesceWindow = getPositiveInteger(Constants.PUBLISHER_COALESCE_WINDOW, coalesceWindow);
+
+        // Send updates of XML documents as delta, off by default
+        delta = getBoolean(Constants.PUBLISHER_DELTA, delta);
+        deltaMinSize = getPositiveInteger(Constants.PUBLISHER_DELTA_MIN_SIZE, deltaMinSize);
+        deltaFullInterval = getPositiveInteger(Constants.PUBLISHER_DELTA_FULL_INTERVAL, deltaFullInterval);
+
+        // Do not send unchanged content again, off by default
+        omitUnchanged = getBoolean(Constants.PUBLISHER_OMIT_UNCHANGED, omitUnchanged);
+    }
+
+    /**
+     * Get a boolean value from the parameters.
+     *
+     * @param key          Name of the parameter
+     * @param defaultValue Value returned when the parameter is not set
+     * @return The configured value, or the default value
+     * @throws TransportException The value is not 'true', 'false', 'yes' or 'no'.
+     */
+    private boolean getBoolean(final String key, final boolean defaultValue) throws TransportException {
+
+        final String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+            return false;
+
+        } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+            return true;
+
+        } else {
+            final String errorText = "'" + key + "' contains wrong value '" + value + "'";
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
+    }
+
+    /**
+     * Get a positive integer value from the parameters.
+     *
+     * @param key          Name of the parameter
+     * @param defaultValue Value returned when the parameter is not set
+     * @return The configured value, or the default value
+     * @throws TransportException The value is not a positive integer.
+     */
+    private int getPositiveInteger(final String key, final int defaultValue) throws TransportException {
+
+        final String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+
+        try {
+            final int retVal = Integer.parseInt(value.trim());
+            if (retVal < 1) {
+                throw new NumberFormatException("value must be larger than 0");
+            }
+            return retVal;
+
+        } catch (final NumberFormatException ex) {
+            final String errorText = String.format("Unable to set '%s'; got '%s'. %s", key, value, ex.getMessage());
+            LOG.error(errorText);
+            throw new TransportException(errorText);
+        }
     }
 
     @Override
     public String getReport() {
-        return String.format("Publisher configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d'%s='%s'",
+        return String.format("Publisher configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d' %s='%s' "
+                        + "%s='%s' %s='%d' %s='%d' %s='%s' %s='%d' %s='%d' %s='%d' %s='%s' %s='%d' %s='%s' %s='%d' %s='%d' "
+                        + "%s='%s' %s='%d' %s='%d' %s='%s'",
                 Context.INITIAL_CONTEXT_FACTORY, initialContextFactory, Context.PROVIDER_URL, providerUrl,
                 Constants.DESTINATION, topic, Constants.CLIENT_ID, clientId, Constants.PRODUCER_TTL,
-                timeToLive, Constants.PRODUCER_PRIORITY, priority, Constants.PRODUCER_DELIVERY_MODE, deliveryMode);
+                timeToLive, Constants.PRODUCER_PRIORITY, priority, Constants.PRODUCER_DELIVERY_MODE, deliveryMode,
+                Constants.PUBLISHER_ASYNC, async, Constants.PUBLISHER_QUEUE_SIZE, queueSize,
+                Constants.PUBLISHER_THREADS, senderThreads, Constants.PUBLISHER_OVERFLOW_POLICY, overflowPolicy,
+                Constants.PUBLISHER_DRAIN_TIMEOUT, drainTimeout, Constants.PUBLISHER_SPILL_THRESHOLD, spillThreshold,
+                Constants.PUBLISHER_CHUNK_SIZE, chunkSize, Constants.PUBLISHER_CONTENT_ENCODING, codec.getName(),
+                Constants.PUBLISHER_COMPRESSION_LEVEL, compressionLevel, Constants.PUBLISHER_TRANSACTION_BATCH, transactionBatch,
+                Constants.PUBLISHER_BATCH_MAX_SIZE, batchMaxSize, Constants.PUBLISHER_COALESCE_WINDOW, coalesceWindow,
+                Constants.PUBLISHER_DELTA, delta, Constants.PUBLISHER_DELTA_MIN_SIZE, deltaMinSize,
+                Constants.PUBLISHER_DELTA_FULL_INTERVAL, deltaFullInterval, Constants.PUBLISHER_OMIT_UNCHANGED, omitUnchanged);
     }
 }
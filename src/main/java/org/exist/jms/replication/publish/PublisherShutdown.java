@@ -0,0 +1,70 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.config.Configuration;
+import org.exist.plugin.Plug;
+import org.exist.plugin.PluginsManager;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+
+/**
+ * Database plugin that sends the pending replication changes when the database is stopped.
+ * Coalesced changes are serialized from the database when they are sent, so they are sent while
+ * the services of the database are stopped, before the database itself is closed.
+ * <p>
+ * The plugin is registered in META-INF/services/org.exist.plugin.Plug.
+ */
+public class PublisherShutdown implements Plug {
+
+    private final static Logger LOG = LogManager.getLogger(PublisherShutdown.class);
+
+    public PublisherShutdown(final PluginsManager manager) {
+        // Created by the plugins manager
+    }
+
+    @Override
+    public void start(final DBBroker broker, final Txn transaction) {
+        // Publishers are created by the replication triggers
+    }
+
+    @Override
+    public void sync(final DBBroker broker) {
+        // Nothing to sync
+    }
+
+    @Override
+    public void stop(final DBBroker broker) {
+        LOG.info("Database is stopped, sending pending replication changes.");
+        PublishQueueManager.getInstance().shutdownAll();
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return false;
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return null;
+    }
+}
@@ -31,7 +31,12 @@ import org.exist.collections.triggers.SAXTrigger;
 import org.exist.collections.triggers.TriggerException;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.MessageSender;
 import org.exist.jms.replication.shared.ReplicationGuard;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.replication.shared.VersionClock;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.storage.DBBroker;
 import org.exist.storage.txn.Txn;
@@ -53,7 +58,25 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
     public static final String BLOCKED_MESSAGE = "Prevented re-replication of '{}'";
     private final static Logger LOGGER = LogManager.getLogger(ReplicationTrigger.class);
     private final ReplicationGuard guard = ReplicationGuard.getInstance();
-    private Map<String, List<?>> parameters;
+    private PublisherConfiguration configuration;
+    private boolean forceContent = false;
+
+    /**
+     * Always send the content of updated documents, also when it did not change since it
+     * was published. Used when replicas are synchronized explicitly.
+     *
+     * @param forceContent TRUE when the content must be sent.
+     */
+    public void setForceContent(final boolean forceContent) {
+        this.forceContent = forceContent;
+    }
+
+    /**
+     * @return Processed configuration of the trigger, NULL when the configuration is not valid.
+     */
+    public PublisherConfiguration getConfiguration() {
+        return configuration;
+    }
 
     /**
      * Verify if the transaction is started by the JMX extension
@@ -90,12 +113,35 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrievePermission(md, document.getPermissions());
 
 
-        // The content is always gzip-ped
-        md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, "gzip");
+        // The content is always compressed, gzip unless configured otherwise
+        final PublisherParameters parameters = (configuration == null) ? null : configuration.getParameters();
+        final PayloadCodec codec = (parameters == null) ? PayloadCodecs.getDefaultCodec() : parameters.getCodec();
+        md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, codec.getName());
+
+        // Serialized when the coalesce window closes, only the latest state is sent
+        if (parameters != null && parameters.getCoalesceWindow() > 0) {
+            sendMessage(transaction, msg);
+            return;
+        }
 
         // Serialize document
         try {
-            msg.setPayload(MessageHelper.gzipSerialize(broker, document));
+            if (parameters == null) {
+                MessageHelper.serialize(broker, document, msg, codec, PayloadCodec.DEFAULT_LEVEL,
+                        PublisherParameters.DEFAULT_SPILL_THRESHOLD);
+            } else {
+                // Updates of XML documents are sent as delta when configured
+                DeltaEncoder.getInstance().serialize(broker, document, msg, parameters);
+
+                // Only the digest is sent when the content did not change
+                if (parameters.isOmitUnchanged()) {
+                    if (operation == eXistMessage.ResourceOperation.UPDATE && !forceContent) {
+                        ContentDigests.getInstance().omitUnchanged(msg);
+                    } else {
+                        ContentDigests.getInstance().record(msg);
+                    }
+                }
+            }
 
         } catch (final Throwable ex) {
             LOGGER.error("Problem while serializing document (contentLength={}) to compressed message: {}",
@@ -103,7 +149,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         }
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -165,7 +211,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(document.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -191,7 +237,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(document.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -209,6 +255,11 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
             return;
         }
 
+        // The document is sent complete when it is created again
+        if (configuration != null && configuration.getParameters().isDelta()) {
+            DeltaEncoder.getInstance().invalidate(broker.getBrokerPool(), uri.toString());
+        }
+
         // Create Message
         final eXistMessage msg = new eXistMessage();
         msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
@@ -216,7 +267,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setResourcePath(uri.toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //
@@ -248,7 +299,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrieveFromCollection(md, collection);
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //@Override
@@ -282,7 +333,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrieveFromCollection(md, collection);
 
         // Send Message
-        sendMessage(msg);
+        sendMessage(txn, msg);
     }
 
     @Override
@@ -308,7 +359,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(collection.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -334,7 +385,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setDestinationPath(collection.getURI().toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     @Override
@@ -359,7 +410,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         msg.setResourcePath(uri.toString());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     // 
@@ -397,7 +448,7 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
         MessageHelper.retrievePermission(md, document.getPermissions());
 
         // Send Message   
-        sendMessage(msg);
+        sendMessage(transaction, msg);
     }
 
     //
@@ -411,26 +462,59 @@ public class ReplicationTrigger extends SAXTrigger implements DocumentTrigger, C
             LOGGER.debug("Configuring replication trigger for collection '{}'", parentCollection.getURI());
         }
 
-        this.parameters = parameters;
+        // Parameters are processed once per collection configuration
+        try {
+            this.configuration = PublisherConfiguration.getInstance(broker.getBrokerPool(), parameters);
+
+        } catch (final TransportException ex) {
+            LOGGER.error("Invalid replication trigger configuration for collection '{}': {}",
+                    parentCollection.getURI(), ex.getMessage());
+        }
 
     }
 
     /**
      * Send 'trigger' message with parameters set using
-     * {@link #configure(org.exist.storage.DBBroker, org.exist.collections.Collection, java.util.Map)}
+     * {@link #configure(org.exist.storage.DBBroker, org.exist.collections.Collection, java.util.Map)}.
+     * The message is published when the transaction is committed.
      */
-    private void sendMessage(final eXistMessage msg) /* throws TriggerException  */ {
+    private void sendMessage(final Txn transaction, final eXistMessage msg) /* throws TriggerException  */ {
+
+        if (configuration == null) {
+            LOGGER.error("Replication trigger is not configured, message for '{}' is not sent.", msg.getResourcePath());
+            msg.resetPayload();
+            return;
+        }
+
+        // Replicas skip changes that are older than the change they applied
+        msg.getMetadata().put(MessageHelper.EXIST_RESOURCE_VERSION, VersionClock.getInstance().next());
+
         // Send Message   
-        final JMSMessageSender sender = new JMSMessageSender(parameters);
         try {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Sending JMS message for '{}' on '{}'", msg.getResourceOperation().toString(), msg.getResourcePath());
+                LOGGER.debug("Queueing JMS message for '{}' on '{}'", msg.getResourceOperation().toString(), msg.getResourcePath());
+            }
+
+            // Content at the affected paths is not the published content anymore
+            final eXistMessage.ResourceOperation operation = msg.getResourceOperation();
+            if (configuration.getParameters().isOmitUnchanged() && (operation == eXistMessage.ResourceOperation.DELETE
+                    || operation == eXistMessage.ResourceOperation.MOVE || operation == eXistMessage.ResourceOperation.COPY)) {
+                ContentDigests.getInstance().invalidate(msg);
             }
 
-            sender.sendMessage(msg);
+            if (transaction == null) {
+                // Hand over to the publish queue, the message is sent asynchronously by default
+                final MessageSender sender = PublishQueueManager.getInstance().getSender(configuration);
+                sender.sendMessage(msg);
+
+            } else {
+                // Sent when the transaction is committed, discarded on abort
+                TransactionBatches.getInstance().add(transaction, configuration, msg);
+            }
 
         } catch (final Throwable ex) {
             LOGGER.error(ex.getMessage(), ex);
+            msg.completeDelivery(false);
             //throw new TriggerException(ex.getMessage(), ex); TransportException
         }
     }
@@ -0,0 +1,272 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.BatchEnvelope;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.Snapshot;
+import org.exist.jms.replication.shared.TransportException;
+import org.exist.jms.replication.shared.VersionClock;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.Identity;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Creates a snapshot of a collection tree, written to a local file or sent in chunks to the
+ * destination of a replication trigger. Instead of one message per document, the tree is
+ * transferred as one compressed archive that is loaded by the replica in bulk.
+ */
+public class SnapshotWriter {
+
+    private final static Logger LOG = LogManager.getLogger(SnapshotWriter.class);
+
+    /**
+     * Chunk size when the trigger does not configure one; a snapshot is never sent as one message
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final PublisherConfiguration configuration;
+    private final PayloadCodec codec;
+    private final int level;
+    private final int spillThreshold;
+
+    /**
+     * Constructor
+     *
+     * @param configuration Configuration of the replication trigger, NULL for the default compression
+     *                      when the snapshot is only written to a file.
+     */
+    public SnapshotWriter(final PublisherConfiguration configuration) {
+        this.configuration = configuration;
+
+        final PublisherParameters parameters = (configuration == null) ? null : configuration.getParameters();
+        this.codec = (parameters == null) ? PayloadCodecs.getDefaultCodec() : parameters.getCodec();
+        this.level = (parameters == null) ? PayloadCodec.DEFAULT_LEVEL : parameters.getCompressionLevel();
+        this.spillThreshold = (parameters == null) ? PublisherParameters.DEFAULT_SPILL_THRESHOLD : parameters.getSpillThreshold();
+    }
+
+    /**
+     * Write snapshot of collection tree to a file.
+     *
+     * @param broker The broker
+     * @param root   The root collection of the tree
+     * @param file   The file, an existing file is overwritten
+     * @return Details of the snapshot
+     * @throws IOException               The snapshot could not be written
+     * @throws PermissionDeniedException A collection or document could not be read
+     * @throws LockException             A collection could not be locked
+     */
+    public Snapshot write(final DBBroker broker, final XmldbURI root, final Path file)
+            throws IOException, PermissionDeniedException, LockException {
+
+        final Snapshot snapshot = new Snapshot(UUID.randomUUID().toString(), root.toString());
+
+        // Changes made after this moment are replicated incrementally
+        snapshot.setPosition(VersionClock.getInstance().next());
+
+        LOG.info("Creating snapshot {} of '{}' in {}", snapshot.getId(), root, file);
+
+        try (BatchEnvelope.Writer writer = new BatchEnvelope.Writer(file)) {
+
+            // Parent collections precede their documents and sub collections
+            final Deque<XmldbURI> pending = new ArrayDeque<>();
+            pending.add(root);
+
+            while (!pending.isEmpty()) {
+                final XmldbURI collectionURI = pending.poll();
+
+                final List<XmldbURI> documents = new ArrayList<>();
+                final Collection collection = broker.openCollection(collectionURI, Lock.LockMode.READ_LOCK);
+                if (collection == null) {
+                    if (collectionURI.equals(root)) {
+                        throw new IOException(String.format("Collection '%s' does not exist", root));
+                    }
+                    // Removed meanwhile
+                    continue;
+                }
+
+                try {
+                    writeCollection(writer, snapshot, collection);
+
+                    for (final Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+                        pending.add(collectionURI.append(i.next()));
+                    }
+
+                    for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+                        documents.add(i.next().getURI());
+                    }
+
+                } finally {
+                    collection.release(Lock.LockMode.READ_LOCK);
+                }
+
+                for (final XmldbURI documentURI : documents) {
+                    writeDocument(broker, writer, snapshot, documentURI);
+                }
+            }
+
+        } catch (final IOException | PermissionDeniedException | LockException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+
+        snapshot.complete();
+
+        LOG.info("Created {}", snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Send snapshot of collection tree to the destination of the replication trigger. The snapshot
+     * is sent in chunks, with the chunk size of the trigger when configured.
+     *
+     * @param broker The broker
+     * @param root   The root collection of the tree
+     * @return Details of the snapshot
+     * @throws IOException               The snapshot could not be written
+     * @throws PermissionDeniedException A collection or document could not be read
+     * @throws LockException             A collection could not be locked
+     * @throws TransportException        The snapshot could not be sent
+     */
+    public Snapshot send(final DBBroker broker, final XmldbURI root)
+            throws IOException, PermissionDeniedException, LockException, TransportException {
+
+        if (configuration == null) {
+            throw new TransportException("Replication trigger is not configured, snapshot can not be sent.");
+        }
+
+        final Path file = Files.createTempFile("exist-jms-snapshot-", ".payload");
+
+        final Snapshot snapshot;
+        try {
+            snapshot = write(broker, root, file);
+        } catch (final IOException | PermissionDeniedException | LockException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.BATCH);
+        em.setResourceOperation(eXistMessage.ResourceOperation.UNDEFINED);
+        em.setResourcePath(snapshot.getCollection());
+
+        final Map<String, Object> md = em.getMetadata();
+        md.put(BatchEnvelope.EXIST_BATCH_SIZE, snapshot.getEntries());
+        md.put(Snapshot.EXIST_SNAPSHOT_ID, snapshot.getId());
+        md.put(Snapshot.EXIST_SNAPSHOT_POSITION, snapshot.getPosition());
+
+        // The file is removed when the message is sent
+        em.setPayload(file, Files.size(file));
+
+        final int chunkSize = configuration.getParameters().getChunkSize();
+        new JMSMessageSender(configuration).sendMessage(em, (chunkSize > 0) ? chunkSize : DEFAULT_CHUNK_SIZE);
+
+        snapshot.complete();
+
+        LOG.info("Sent {}", snapshot);
+        return snapshot;
+    }
+
+    private void writeCollection(final BatchEnvelope.Writer writer, final Snapshot snapshot, final Collection collection) throws IOException {
+
+        final eXistMessage msg = new eXistMessage();
+        msg.setResourceType(eXistMessage.ResourceType.COLLECTION);
+        msg.setResourceOperation(eXistMessage.ResourceOperation.CREATE);
+        msg.setResourcePath(collection.getURI().toString());
+
+        final Map<String, Object> md = msg.getMetadata();
+        MessageHelper.retrievePermission(md, collection.getPermissions());
+        MessageHelper.retrieveFromCollection(md, collection);
+
+        write(writer, snapshot, msg);
+    }
+
+    private void writeDocument(final DBBroker broker, final BatchEnvelope.Writer writer, final Snapshot snapshot,
+                               final XmldbURI documentURI) throws IOException, PermissionDeniedException {
+
+        final DocumentImpl document = broker.getXMLResource(documentURI, Lock.LockMode.READ_LOCK);
+        if (document == null) {
+            // Removed meanwhile
+            return;
+        }
+
+        final eXistMessage msg = new eXistMessage();
+        try {
+            msg.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+            msg.setResourceOperation(eXistMessage.ResourceOperation.CREATE);
+            msg.setResourcePath(documentURI.toString());
+
+            final Map<String, Object> md = msg.getMetadata();
+            MessageHelper.retrieveDocMetadata(md, document.getMetadata());
+            MessageHelper.retrieveFromDocument(md, document);
+            MessageHelper.retrievePermission(md, document.getPermissions());
+            md.put(MessageHelper.EXIST_MESSAGE_CONTENTENCODING, codec.getName());
+
+            MessageHelper.serialize(broker, document, msg, codec, level, spillThreshold);
+
+        } finally {
+            document.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+        }
+
+        try {
+            write(writer, snapshot, msg);
+        } finally {
+            msg.resetPayload();
+        }
+    }
+
+    private void write(final BatchEnvelope.Writer writer, final Snapshot snapshot, final eXistMessage msg) throws IOException {
+
+        // All entries have the version of the snapshot
+        final Map<String, Object> md = msg.getMetadata();
+        md.put(MessageHelper.EXIST_RESOURCE_VERSION, snapshot.getPosition());
+
+        final String origin = Identity.getInstance().getIdentity();
+        if (StringUtils.isNotBlank(origin)) {
+            md.put(Constants.EXIST_INSTANCE_ID, origin);
+        }
+
+        writer.write(msg);
+        snapshot.addEntry(msg.getPayloadSize());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.publish;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.BatchEnvelope;
+import org.exist.jms.replication.shared.MessageSender;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the replication messages of a transaction. The messages are published when the
+ * transaction is committed, and discarded when the transaction is aborted, so changes
+ * that are rolled back are never replicated.
+ * <p>
+ * When transaction batching is configured, the messages of a transaction are sent as one
+ * (or a few) batch messages instead of one message per change.
+ */
+public class TransactionBatches {
+
+    private final static Logger LOG = LogManager.getLogger(TransactionBatches.class);
+
+    private static TransactionBatches instance;
+
+    /**
+     * Open batches per transaction and per trigger configuration. A batch is removed by its
+     * listener when the transaction is committed or aborted, the transaction when it has no
+     * batches left.
+     */
+    private final Map<Txn, Map<String, TransactionBatch>> batches = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong messagesPublished = new AtomicLong();
+    private final AtomicLong messagesDiscarded = new AtomicLong();
+    private final AtomicLong envelopesSent = new AtomicLong();
+
+    private TransactionBatches() {
+        // Singleton
+    }
+
+    public static synchronized TransactionBatches getInstance() {
+
+        if (null == instance) {
+            instance = new TransactionBatches();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Add message to the batch of the transaction. The batch is created, and registered with
+     * the transaction, for the first message.
+     *
+     * @param transaction   The transaction that made the change
+     * @param configuration Configuration of the trigger
+     * @param em            The message
+     */
+    public void add(final Txn transaction, final PublisherConfiguration configuration, final eXistMessage em) {
+
+        final TransactionBatch batch;
+        synchronized (batches) {
+            final Map<String, TransactionBatch> perConfiguration = batches.computeIfAbsent(transaction, t -> new LinkedHashMap<>());
+            batch = perConfiguration.computeIfAbsent(configuration.getKey(), k -> {
+                final TransactionBatch newBatch = new TransactionBatch(transaction, configuration);
+                transaction.registerListener(newBatch);
+                return newBatch;
+            });
+        }
+
+        batch.add(em);
+    }
+
+    /**
+     * @return Number of transactions with messages that are not yet committed or aborted.
+     */
+    public int getOpenTransactions() {
+        return batches.size();
+    }
+
+    /**
+     * Write statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "transactions", "transactions", null);
+
+        writeValue(builder, "open", batches.size());
+        writeValue(builder, "committed", committed.get());
+        writeValue(builder, "aborted", aborted.get());
+        writeValue(builder, "messagesPublished", messagesPublished.get());
+        writeValue(builder, "messagesDiscarded", messagesDiscarded.get());
+        writeValue(builder, "batchesSent", envelopesSent.get());
+
+        builder.endElement();
+    }
+
+    private void writeValue(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters("" + value);
+        builder.endElement();
+    }
+
+    /**
+     * Messages of one transaction for one trigger configuration.
+     */
+    private class TransactionBatch implements TxnListener {
+
+        private final Txn transaction;
+        private final PublisherConfiguration configuration;
+        private final List<eXistMessage> messages = new ArrayList<>();
+
+        TransactionBatch(final Txn transaction, final PublisherConfiguration configuration) {
+            this.transaction = transaction;
+            this.configuration = configuration;
+        }
+
+        synchronized void add(final eXistMessage em) {
+            messages.add(em);
+        }
+
+        private synchronized List<eXistMessage> remove() {
+            synchronized (batches) {
+                // Batches of the other configurations are completed by their own listener
+                final Map<String, TransactionBatch> perConfiguration = batches.get(transaction);
+                if (perConfiguration != null) {
+                    perConfiguration.remove(configuration.getKey(), this);
+                    if (perConfiguration.isEmpty()) {
+                        batches.remove(transaction);
+                    }
+                }
+            }
+            final List<eXistMessage> retVal = new ArrayList<>(messages);
+            messages.clear();
+            return retVal;
+        }
+
+        @Override
+        public void commit() {
+
+            final List<eXistMessage> toSend = remove();
+            if (toSend.isEmpty()) {
+                return;
+            }
+
+            committed.incrementAndGet();
+
+            final PublisherParameters parameters = configuration.getParameters();
+            final MessageSender sender = PublishQueueManager.getInstance().getSender(configuration);
+
+            if (!parameters.isTransactionBatch() || toSend.size() == 1 || parameters.getCoalesceWindow() > 0) {
+                // One message per change, the coalescer creates the batches itself
+                for (final eXistMessage em : toSend) {
+                    send(sender, em);
+                }
+                messagesPublished.addAndGet(toSend.size());
+                return;
+            }
+
+            LOG.debug("Sending {} changes of transaction {} as batch", toSend.size(), transaction.getId());
+
+            final int maxSize = parameters.getBatchMaxSize();
+            for (int start = 0; start < toSend.size(); start += maxSize) {
+                final List<eXistMessage> part = toSend.subList(start, Math.min(start + maxSize, toSend.size()));
+                try {
+                    final eXistMessage envelope = BatchEnvelope.create(part, parameters.getSpillThreshold());
+                    send(sender, envelope);
+                    envelopesSent.incrementAndGet();
+                    messagesPublished.addAndGet(part.size());
+
+                } catch (final Throwable t) {
+                    LOG.error("Unable to send batch of transaction {}: {}", transaction.getId(), t.getMessage(), t);
+                    part.forEach(em -> em.completeDelivery(false));
+
+                } finally {
+                    part.forEach(eXistMessage::resetPayload);
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+
+            final List<eXistMessage> toDiscard = remove();
+            if (toDiscard.isEmpty()) {
+                return;
+            }
+
+            aborted.incrementAndGet();
+            messagesDiscarded.addAndGet(toDiscard.size());
+
+            LOG.info("Transaction {} aborted, {} change(s) not replicated.", transaction.getId(), toDiscard.size());
+            for (final eXistMessage em : toDiscard) {
+                em.completeDelivery(false);
+                em.resetPayload();
+            }
+        }
+
+        /**
+         * Listeners may not throw exceptions, the transaction is already completed.
+         */
+        private void send(final MessageSender sender, final eXistMessage em) {
+            try {
+                sender.sendMessage(em);
+            } catch (final Throwable t) {
+                LOG.error("Unable to send message for '{}': {}", em.getResourcePath(), t.getMessage(), t);
+                em.completeDelivery(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Envelope for sending several replication messages as one JMS message. The envelope is
+ * the payload of a message with resource type {@link eXistMessage.ResourceType#BATCH};
+ * each entry contains the resource details, the metadata and the (compressed) payload of
+ * one message, in the order the changes were made.
+ */
+public class BatchEnvelope {
+
+    /**
+     * Number of messages in the envelope
+     */
+    public static final String EXIST_BATCH_SIZE = "exist.batch.size";
+
+    private final static Logger LOG = LogManager.getLogger(BatchEnvelope.class);
+
+    private static final int MAGIC = 0x65584254; // "eXBT"
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BatchEnvelope() {
+        // Utility class
+    }
+
+    /**
+     * Create envelope message for the messages. The payloads of the messages are not reset.
+     *
+     * @param messages  The messages, in order of the changes
+     * @param threshold Maximum number of bytes kept in memory, larger envelopes are written to a temporary file.
+     * @return The message containing all messages
+     * @throws IOException When the envelope could not be written
+     */
+    public static eXistMessage create(final List<eXistMessage> messages, final int threshold) throws IOException {
+
+        final DeferredFileOutputStream dfos = new DeferredFileOutputStream(threshold,
+                MessageHelper.PAYLOAD_FILE_PREFIX, MessageHelper.PAYLOAD_FILE_SUFFIX, null);
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(dfos, BUFFER_SIZE))) {
+
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(messages.size());
+
+            for (final eXistMessage em : messages) {
+                writeEntry(dos, em);
+            }
+
+        } catch (final IOException | RuntimeException ex) {
+            if (!dfos.isInMemory()) {
+                Files.deleteIfExists(dfos.getFile().toPath());
+            }
+            throw new IOException(String.format("Unable to create batch envelope: %s", ex.getMessage()), ex);
+        }
+
+        final eXistMessage envelope = new eXistMessage();
+        envelope.setResourceType(eXistMessage.ResourceType.BATCH);
+        envelope.setResourceOperation(eXistMessage.ResourceOperation.UNDEFINED);
+        envelope.setResourcePath(messages.isEmpty() ? "" : messages.get(0).getResourcePath());
+        envelope.getMetadata().put(EXIST_BATCH_SIZE, messages.size());
+
+        if (dfos.isInMemory()) {
+            envelope.setPayload(dfos.getData());
+        } else {
+            envelope.setPayload(dfos.getFile().toPath(), dfos.getByteCount());
+        }
+
+        // The entries are delivered with the envelope
+        final List<eXistMessage> entries = new ArrayList<>(messages);
+        envelope.addDeliveryListener(sent -> entries.forEach(em -> em.completeDelivery(sent)));
+
+        return envelope;
+    }
+
+    private static void writeEntry(final DataOutputStream dos, final eXistMessage em) throws IOException {
+
+        dos.writeUTF(em.getResourceType().name());
+        dos.writeUTF(em.getResourceOperation().name());
+        writeString(dos, em.getResourcePath());
+        writeString(dos, em.getDestinationPath());
+
+        final Map<String, Object> metadata = em.getMetadata();
+        dos.writeInt(metadata.size());
+        for (final Map.Entry<String, Object> entry : metadata.entrySet()) {
+            dos.writeUTF(entry.getKey());
+
+            final Object value = entry.getValue();
+            if (value == null) {
+                dos.writeByte(TYPE_NULL);
+
+            } else if (value instanceof Integer) {
+                dos.writeByte(TYPE_INTEGER);
+                dos.writeInt((Integer) value);
+
+            } else if (value instanceof Long) {
+                dos.writeByte(TYPE_LONG);
+                dos.writeLong((Long) value);
+
+            } else {
+                // Same conversion as for JMS message properties
+                dos.writeByte(TYPE_STRING);
+                writeString(dos, "" + value);
+            }
+        }
+
+        dos.writeLong(em.getPayloadSize());
+        try (InputStream is = em.getPayloadInputStream()) {
+            IOUtils.copy(is, dos, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Strings are written with their length, writeUTF is limited to 64 KiB.
+     */
+    private static void writeString(final DataOutputStream dos, final String value) throws IOException {
+        if (value == null) {
+            dos.writeInt(-1);
+        } else {
+            final byte[] data = value.getBytes("UTF-8");
+            dos.writeInt(data.length);
+            dos.write(data);
+        }
+    }
+
+    private static String readString(final DataInputStream dis) throws IOException {
+        final int length = dis.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] data = new byte[length];
+        dis.readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+    /**
+     * Writes the messages of an envelope to a file one by one, for envelopes with a number of
+     * messages that is not known in advance. The number of messages is written when the
+     * writer is closed.
+     */
+    public static class Writer implements Closeable {
+
+        private final Path file;
+        private final DataOutputStream dos;
+        private int size = 0;
+        private boolean closed = false;
+
+        /**
+         * Constructor
+         *
+         * @param file The file for the envelope, an existing file is overwritten.
+         * @throws IOException When the file can not be written.
+         */
+        public Writer(final Path file) throws IOException {
+            this.file = file;
+            this.dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(0);
+        }
+
+        /**
+         * Append message to the envelope. The payload of the message is not reset.
+         *
+         * @param em The message
+         * @throws IOException When the message could not be written
+         */
+        public void write(final eXistMessage em) throws IOException {
+            writeEntry(dos, em);
+            size++;
+        }
+
+        /**
+         * @return Number of messages written.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            dos.close();
+
+            // Number of messages follows the magic and the version
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(4);
+                buffer.putInt(size);
+                buffer.flip();
+                channel.write(buffer, 8);
+            }
+        }
+    }
+
+    /**
+     * Reads the messages of an envelope one by one, so only one payload is kept at a time.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream dis;
+        private final int threshold;
+        private final int size;
+        private int read = 0;
+
+        /**
+         * Constructor
+         *
+         * @param is        The payload of the envelope message
+         * @param threshold Payloads larger than this number of bytes are written to a temporary file.
+         * @throws IOException When the stream is not a batch envelope.
+         */
+        public Reader(final InputStream is, final int threshold) throws IOException {
+            this.dis = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+            this.threshold = threshold;
+
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Payload is not a batch envelope");
+            }
+
+            final int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported batch envelope version %d", version));
+            }
+
+            size = dis.readInt();
+        }
+
+        /**
+         * @return Number of messages in the envelope.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Read the next message. The payload of the message must be reset by the caller.
+         *
+         * @return The next message, NULL when all messages have been read.
+         * @throws IOException When the envelope is damaged.
+         */
+        public eXistMessage next() throws IOException {
+
+            if (read >= size) {
+                return null;
+            }
+
+            final eXistMessage em = new eXistMessage();
+            try {
+                em.setResourceType(dis.readUTF());
+                em.setResourceOperation(dis.readUTF());
+            } catch (final IllegalArgumentException ex) {
+                throw new IOException(String.format("Invalid entry %d in batch envelope: %s", read, ex.getMessage()), ex);
+            }
+            em.setResourcePath(readString(dis));
+            em.setDestinationPath(readString(dis));
+
+            final int nrProperties = dis.readInt();
+            final Map<String, Object> metadata = new HashMap<>();
+            for (int i = 0; i < nrProperties; i++) {
+                final String key = dis.readUTF();
+                final byte type = dis.readByte();
+                switch (type) {
+                    case TYPE_NULL:
+                        metadata.put(key, null);
+                        break;
+                    case TYPE_INTEGER:
+                        metadata.put(key, dis.readInt());
+                        break;
+                    case TYPE_LONG:
+                        metadata.put(key, dis.readLong());
+                        break;
+                    case TYPE_STRING:
+                        metadata.put(key, readString(dis));
+                        break;
+                    default:
+                        throw new IOException(String.format("Invalid property type %d in batch envelope", type));
+                }
+            }
+            em.setMetadata(metadata);
+
+            readPayload(em, dis.readLong());
+
+            read++;
+            return em;
+        }
+
+        private void readPayload(final eXistMessage em, final long length) throws IOException {
+
+            if (length <= threshold) {
+                final byte[] data = new byte[(int) length];
+                dis.readFully(data);
+                em.setPayload(data);
+                return;
+            }
+
+            final Path file = Files.createTempFile(MessageHelper.PAYLOAD_FILE_PREFIX, MessageHelper.PAYLOAD_FILE_SUFFIX);
+            try (OutputStream os = Files.newOutputStream(file)) {
+                final long copied = IOUtils.copyLarge(dis, os, 0, length);
+                if (copied != length) {
+                    throw new EOFException(String.format("Batch envelope is truncated, %d of %d bytes read", copied, length));
+                }
+            } catch (final IOException ex) {
+                Files.deleteIfExists(file);
+                throw ex;
+            }
+
+            LOG.debug("Payload of {} bytes written to {}", length, file);
+            em.setPayload(file, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            dis.close();
+        }
+    }
+}
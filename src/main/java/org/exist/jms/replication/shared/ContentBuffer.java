@@ -0,0 +1,161 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Uncompressed content of a received document, kept in memory or, when large, in a temporary
+ * file. The content is decompressed once and can be read several times, e.g. by the validate
+ * and the store phase of eXist-db. For codecs that decompress faster than the data can be
+ * buffered, the payload is decompressed again for each read.
+ */
+public class ContentBuffer implements Closeable {
+
+    private final static Logger LOG = LogManager.getLogger(ContentBuffer.class);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] data;
+    private final Path file;
+    private final long size;
+    private final eXistMessage message;
+    private final PayloadCodec codec;
+
+    private ContentBuffer(final byte[] data, final Path file, final long size) {
+        this.data = data;
+        this.file = file;
+        this.size = size;
+        this.message = null;
+        this.codec = null;
+    }
+
+    private ContentBuffer(final eXistMessage message, final PayloadCodec codec) {
+        this.data = null;
+        this.file = null;
+        this.size = -1;
+        this.message = message;
+        this.codec = codec;
+    }
+
+    /**
+     * Wrap content that is already available in memory.
+     *
+     * @param data The uncompressed content
+     * @return The buffer
+     */
+    public static ContentBuffer of(final byte[] data) {
+        return new ContentBuffer(data, null, data.length);
+    }
+
+    /**
+     * Get the uncompressed payload of a message.
+     *
+     * @param message   The message
+     * @param codec     The codec of the payload
+     * @param threshold Content larger than this number of bytes is kept in a temporary file.
+     * @return The buffer
+     * @throws IOException When the payload could not be decompressed
+     */
+    public static ContentBuffer decompress(final eXistMessage message, final PayloadCodec codec, final int threshold) throws IOException {
+
+        if (!codec.isBufferedForReuse()) {
+            return new ContentBuffer(message, codec);
+        }
+
+        try (InputStream is = codec.decompress(message.getPayloadInputStream())) {
+            return read(is, threshold);
+        }
+    }
+
+    /**
+     * Read content from a stream.
+     *
+     * @param is        Stream with the uncompressed content, the stream is not closed.
+     * @param threshold Content larger than this number of bytes is kept in a temporary file.
+     * @return The buffer
+     * @throws IOException When the content could not be read
+     */
+    public static ContentBuffer read(final InputStream is, final int threshold) throws IOException {
+
+        final DeferredFileOutputStream dfos = new DeferredFileOutputStream(threshold,
+                MessageHelper.PAYLOAD_FILE_PREFIX, MessageHelper.PAYLOAD_FILE_SUFFIX, null);
+
+        try (OutputStream os = dfos) {
+            IOUtils.copyLarge(is, os, new byte[COPY_BUFFER_SIZE]);
+
+        } catch (final IOException ex) {
+            if (!dfos.isInMemory()) {
+                Files.deleteIfExists(dfos.getFile().toPath());
+            }
+            throw ex;
+        }
+
+        return dfos.isInMemory()
+                ? new ContentBuffer(dfos.getData(), null, dfos.getByteCount())
+                : new ContentBuffer(null, dfos.getFile().toPath(), dfos.getByteCount());
+    }
+
+    /**
+     * @return New stream for reading the content from the start.
+     * @throws IOException When the temporary file could not be opened
+     */
+    public InputStream getInputStream() throws IOException {
+        if (codec != null) {
+            return codec.decompress(message.getPayloadInputStream());
+        }
+        return (file == null) ? new ByteArrayInputStream(data) : new BufferedInputStream(Files.newInputStream(file));
+    }
+
+    /**
+     * @return Size of the content in bytes, -1 when the content is not buffered.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Remove the temporary file, when used.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException ex) {
+                LOG.error("Unable to remove content file {}: {}", file, ex.getMessage());
+            }
+        }
+    }
+}
@@ -21,13 +21,15 @@
  */
 package org.exist.jms.replication.shared;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.collections.Collection;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.DocumentMetadata;
+import org.exist.jms.shared.codec.PayloadCodec;
 import org.exist.jms.shared.eXistMessage;
 import org.exist.security.Permission;
 import org.exist.storage.DBBroker;
@@ -35,10 +37,14 @@ import org.exist.storage.serializers.Serializer;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Helper class for retrieving (meta)data from an in eXist stored document.
@@ -58,82 +64,166 @@ public class MessageHelper {
     public static final String EXIST_RESOURCE_MODE = "exist.resource.permission.mode";
     public static final String EXIST_MESSAGE_CONTENTENCODING = "exist.message.content-encoding";
 
+    /*
+     * Chunked transfer of large payloads
+     */
+    public static final String EXIST_CHUNK_TRANSFER_ID = "exist.chunk.transfer-id";
+    public static final String EXIST_CHUNK_INDEX = "exist.chunk.index";
+    public static final String EXIST_CHUNK_COUNT = "exist.chunk.count";
+    public static final String EXIST_CHUNK_SIZE = "exist.chunk.size";
+    public static final String EXIST_CHUNK_TOTAL_SIZE = "exist.chunk.total-size";
+
+    /*
+     * Delta replication of XML documents
+     */
+    public static final String EXIST_DELTA_BASE_DIGEST = "exist.delta.base-digest";
+    public static final String EXIST_DELTA_DIGEST = "exist.delta.digest";
+
+    /*
+     * Digest of the uncompressed content, and indicator that the unchanged content is not sent
+     */
+    public static final String EXIST_CONTENT_DIGEST = "exist.content.digest";
+    public static final String EXIST_CONTENT_OMITTED = "exist.content.omitted";
+
+    /*
+     * Version of the change of a resource, see VersionClock
+     */
+    public static final String EXIST_RESOURCE_VERSION = "exist.resource.version";
+
     private final static Logger LOG = LogManager.getLogger(MessageHelper.class);
 
+    static final String PAYLOAD_FILE_PREFIX = "exist-jms-";
+    static final String PAYLOAD_FILE_SUFFIX = ".payload";
+
 
     /**
-     * Serialize document to byte array as gzipped document.
+     * Serialize document as compressed document into the payload of the message. Payloads
+     * larger than the threshold are written to a temporary file instead of kept in memory.
      *
-     * @param broker   The broker
-     * @param document Document to compress
-     * @return document as array of bytes
-     * @throws IOException When the
+     * @param broker    The broker
+     * @param document  Document to compress
+     * @param message   The message that receives the payload
+     * @param codec     Codec for compressing the document
+     * @param level     Compression level, {@link PayloadCodec#DEFAULT_LEVEL} for the codec default
+     * @param threshold Maximum number of bytes kept in memory
+     * @throws IOException When the document could not be serialized
      */
-    public static byte[] gzipSerialize(final DBBroker broker, final DocumentImpl document) throws IOException {
+    public static void serialize(final DBBroker broker, final DocumentImpl document, final eXistMessage message,
+                                 final PayloadCodec codec, final int level, final int threshold) throws IOException {
 
-        // This is the weak spot, the data is serialized into
-        // a byte array. Better to have an overflow to a file,
-        byte[] payload;
+        final String digest = compress(message, codec, level, threshold, os -> {
+            if (document.getResourceType() == DocumentImpl.XML_FILE) {
 
-        if (document.getResourceType() == DocumentImpl.XML_FILE) {
+                // Stream XML document
+                final Serializer serializer = broker.getSerializer();
 
-            // Stream XML document
-            final Serializer serializer = broker.getSerializer();
-
-            try {
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-                try (GZIPOutputStream gos = new GZIPOutputStream(baos);
-                     Writer w = new OutputStreamWriter(gos, "UTF-8")) {
+                try {
+                    final Writer w = new OutputStreamWriter(os, "UTF-8");
                     serializer.serialize(document, w);
                     w.flush();
+
+                } catch (final SAXException e) {
+                    LOG.error(e);
+                    throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
                 }
 
-                payload = baos.toByteArray();
+            } else {
+                // Stream NON-XML document
+                // DW: check classtype before using
+                broker.readBinaryResource((BinaryDocument) document, os);
+                os.flush();
+            }
+        });
 
+        message.getMetadata().put(EXIST_CONTENT_DIGEST, digest);
+    }
 
-            } catch (SAXException | IOException e) {
-                payload = new byte[0];
-                LOG.error(e);
-                throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
+    /**
+     * Serialize XML document into a string.
+     *
+     * @param broker   The broker
+     * @param document The XML document
+     * @return The serialized document
+     * @throws IOException When the document could not be serialized
+     */
+    public static String serializeToString(final DBBroker broker, final DocumentImpl document) throws IOException {
+        try {
+            return broker.getSerializer().serialize(document);
 
-            } catch (final Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
-                LOG.error(e.getMessage(), e);
-                throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
-            }
+        } catch (final SAXException e) {
+            throw new IOException(String.format("Error while serializing XML document: %s", e.getMessage()), e);
+        }
+    }
 
-        } else {
-            // Stream NON-XML document
+    /**
+     * Write compressed data into the payload of the message. Payloads larger than the threshold
+     * are written to a temporary file instead of kept in memory.
+     *
+     * @param message   The message that receives the payload
+     * @param codec     Codec for compressing the data
+     * @param level     Compression level, {@link PayloadCodec#DEFAULT_LEVEL} for the codec default
+     * @param threshold Maximum number of bytes kept in memory
+     * @param writer    Writes the uncompressed data
+     * @return SHA-256 digest of the uncompressed data
+     * @throws IOException When the data could not be written
+     */
+    public static String compress(final eXistMessage message, final PayloadCodec codec, final int level,
+                                  final int threshold, final PayloadWriter writer) throws IOException {
 
-            try {
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DeferredFileOutputStream dfos = new DeferredFileOutputStream(threshold, PAYLOAD_FILE_PREFIX, PAYLOAD_FILE_SUFFIX, null);
 
-                try (GZIPOutputStream gos = new GZIPOutputStream(baos)) {
-                    // DW: check classtype before using
-                    broker.readBinaryResource((BinaryDocument) document, gos);
-                    gos.flush();
-                }
+        final MessageDigest md = createDigest();
+        try (OutputStream os = new DigestOutputStream(codec.compress(dfos, level), md)) {
+            writer.write(os);
 
-                payload = baos.toByteArray();
+        } catch (final IOException | RuntimeException e) {
+            deleteQuietly(dfos);
+            LOG.error(e);
+            throw new IOException(String.format("Error while serializing document: %s", e.getMessage()), e);
+        }
 
-            } catch (final IOException e) {
-                payload = new byte[0];
-                LOG.error(e);
-                throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
+        // Keep small documents in memory, use the file otherwise
+        if (dfos.isInMemory()) {
+            message.setPayload(dfos.getData());
 
-            } catch (final Throwable e) {
-                payload = new byte[0];
-                System.gc(); // recover from out of memory exception
-                LOG.error(e.getMessage(), e);
-                throw new IOException(String.format("Error while serializing binary document: %s", e.getMessage()), e);
-            }
+        } else {
+            final Path file = dfos.getFile().toPath();
+            LOG.debug("Payload of {} bytes written to {}", dfos.getByteCount(), file);
+            message.setPayload(file, dfos.getByteCount());
         }
 
+        return toHex(md.digest());
+    }
+
+    /**
+     * @return SHA-256 message digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 
-        return payload;
+    /**
+     * Convert digest to hexadecimal string.
+     *
+     * @param digest The digest
+     * @return The digest in lowercase hexadecimal notation
+     */
+    public static String toHex(final byte[] digest) {
+        final StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
 
+    private static void deleteQuietly(final DeferredFileOutputStream dfos) {
+        if (!dfos.isInMemory()) {
+            FileUtils.deleteQuietly(dfos.getFile());
+        }
     }
 
     public static void retrieveDocMetadata(final Map<String, Object> props, final DocumentMetadata docMetadata) {
@@ -171,4 +261,12 @@ public class MessageHelper {
     public static void retrieveFromCollection(final Map<String, Object> props, final Collection collection) {
         props.put(EXIST_RESOURCE_CREATIONTIME, collection.getMetadata().getCreated());
     }
+
+    /**
+     * Writes data to a stream.
+     */
+    @FunctionalInterface
+    public interface PayloadWriter {
+        void write(OutputStream os) throws IOException;
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.eXistMessage;
+
+/**
+ * Snapshot of a collection tree, for bringing a new replica online. A snapshot is a batch
+ * envelope with the collections and the compressed documents of the tree. All entries carry
+ * the version of the publisher at the start of the snapshot; changes that are older than
+ * the snapshot are skipped by the replica, newer changes are applied on top of it.
+ * <p>
+ * Instances describe one created or loaded snapshot.
+ */
+public class Snapshot {
+
+    /**
+     * ID of the snapshot, marks a batch message as snapshot
+     */
+    public static final String EXIST_SNAPSHOT_ID = "exist.snapshot.id";
+
+    /**
+     * Version of the publisher at the start of the snapshot
+     */
+    public static final String EXIST_SNAPSHOT_POSITION = "exist.snapshot.position";
+
+    private final String id;
+    private final String collection;
+    private final long startTime = System.currentTimeMillis();
+
+    private long position = -1;
+    private int entries = 0;
+    private long bytes = 0;
+    private long duration = -1;
+
+    /**
+     * Constructor
+     *
+     * @param id         ID of the snapshot
+     * @param collection Root collection of the snapshot
+     */
+    public Snapshot(final String id, final String collection) {
+        this.id = id;
+        this.collection = collection;
+    }
+
+    /**
+     * Verify if the message contains a snapshot.
+     *
+     * @param em The message
+     * @return TRUE when the message is a snapshot.
+     */
+    public static boolean isSnapshot(final eXistMessage em) {
+        return em.getResourceType() == eXistMessage.ResourceType.BATCH
+                && em.getMetadata().get(EXIST_SNAPSHOT_ID) != null;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(final long position) {
+        this.position = position;
+    }
+
+    /**
+     * Count an entry of the snapshot.
+     *
+     * @param size Size of the payload of the entry
+     */
+    public void addEntry(final long size) {
+        entries++;
+        bytes += size;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Mark snapshot as completed.
+     */
+    public void complete() {
+        duration = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return Time in milliseconds to create or load the snapshot, -1 when not completed.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("snapshot %s of '%s': %d entries, %d bytes in %d ms", id, collection, entries, bytes, duration);
+    }
+
+    /**
+     * Write details and throughput to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     * @return Node number of the written element
+     */
+    public int write(final MemTreeBuilder builder) {
+
+        final int nodeNr = builder.startElement("", "snapshot", "snapshot", null);
+        builder.addAttribute(new QName("id", null, null), id);
+
+        builder.startElement("", "collection", "collection", null);
+        builder.characters("" + collection);
+        builder.endElement();
+
+        builder.startElement("", "position", "position", null);
+        builder.characters("" + position);
+        builder.endElement();
+
+        builder.startElement("", "entries", "entries", null);
+        builder.characters("" + entries);
+        builder.endElement();
+
+        builder.startElement("", "bytes", "bytes", null);
+        builder.characters("" + bytes);
+        builder.endElement();
+
+        builder.startElement("", "duration", "duration", null);
+        builder.characters("" + duration);
+        builder.endElement();
+
+        // Throughput per second
+        final long millis = Math.max(duration, 1);
+
+        builder.startElement("", "entriesPerSecond", "entriesPerSecond", null);
+        builder.characters("" + (entries * 1000L / millis));
+        builder.endElement();
+
+        builder.startElement("", "bytesPerSecond", "bytesPerSecond", null);
+        builder.characters("" + (bytes * 1000L / millis));
+        builder.endElement();
+
+        builder.endElement(); // snapshot
+
+        return nodeNr;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+/**
+ * Hybrid logical clock for the versions of replicated resources. A version is the wall
+ * clock time in milliseconds shifted by 16 bits, plus a counter for versions within the
+ * same millisecond. Versions are strictly increasing, also when the wall clock goes back,
+ * and are larger than all versions that were received; a change made after a received
+ * change therefore always has a higher version.
+ */
+public class VersionClock {
+
+    private static final int COUNTER_BITS = 16;
+
+    private static VersionClock instance;
+
+    private long last = 0;
+
+    private VersionClock() {
+        // Singleton
+    }
+
+    public static synchronized VersionClock getInstance() {
+
+        if (null == instance) {
+            instance = new VersionClock();
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return New version, higher than all versions before.
+     */
+    public synchronized long next() {
+        last = Math.max(last + 1, System.currentTimeMillis() << COUNTER_BITS);
+        return last;
+    }
+
+    /**
+     * Advance the clock to a received version.
+     *
+     * @param version The version of a received change
+     */
+    public synchronized void observe(final long version) {
+        last = Math.max(last, version);
+    }
+
+    /**
+     * @param version A version
+     * @return The wall clock time in milliseconds of the version.
+     */
+    public static long getTime(final long version) {
+        return version >>> COUNTER_BITS;
+    }
+}
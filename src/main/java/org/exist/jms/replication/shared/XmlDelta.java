@@ -0,0 +1,391 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node level difference between two serializations of an XML document.
+ * <p>
+ * Both documents are split into their top level nodes (elements, text, comments and
+ * processing instructions). Nodes that are equal at the start and at the end are skipped.
+ * When exactly one element remains on both sides, and the start tags are equal, the
+ * comparison continues with the children of that element. The delta consists of the
+ * position of the parent element, and the range of child nodes that is replaced by new
+ * nodes; an insert or a delete is a replacement with an empty range.
+ * <p>
+ * A delta can only be applied to exactly the same serialization as it was created from,
+ * which is verified with a digest of the base document.
+ */
+public class XmlDelta {
+
+    private static final int VERSION = 1;
+
+    private final int[] path;
+    private final int start;
+    private final int deleteCount;
+    private final String insert;
+
+    private XmlDelta(final int[] path, final int start, final int deleteCount, final String insert) {
+        this.path = path;
+        this.start = start;
+        this.deleteCount = deleteCount;
+        this.insert = insert;
+    }
+
+    /**
+     * Compute difference between two serializations.
+     *
+     * @param base   The serialization the delta will be applied to
+     * @param target The serialization that results from applying the delta
+     * @return The delta
+     * @throws IOException When a document is not well-formed.
+     */
+    public static XmlDelta diff(final String base, final String target) throws IOException {
+
+        final List<Integer> path = new ArrayList<>();
+
+        Range baseRange = new Range(0, base.length());
+        Range targetRange = new Range(0, target.length());
+
+        while (true) {
+            final List<Range> baseNodes = split(base, baseRange);
+            final List<Range> targetNodes = split(target, targetRange);
+
+            // Equal nodes at the start
+            int prefix = 0;
+            while (prefix < baseNodes.size() && prefix < targetNodes.size()
+                    && equal(base, baseNodes.get(prefix), target, targetNodes.get(prefix))) {
+                prefix++;
+            }
+
+            // Equal nodes at the end
+            int suffix = 0;
+            while (suffix < baseNodes.size() - prefix && suffix < targetNodes.size() - prefix
+                    && equal(base, baseNodes.get(baseNodes.size() - 1 - suffix),
+                    target, targetNodes.get(targetNodes.size() - 1 - suffix))) {
+                suffix++;
+            }
+
+            final int baseCount = baseNodes.size() - prefix - suffix;
+            final int targetCount = targetNodes.size() - prefix - suffix;
+
+            // Continue with the children when only one element is changed
+            if (baseCount == 1 && targetCount == 1) {
+                final Range baseContent = getContent(base, baseNodes.get(prefix));
+                final Range targetContent = getContent(target, targetNodes.get(prefix));
+
+                if (baseContent != null && targetContent != null
+                        && base.regionMatches(baseNodes.get(prefix).from, target, targetNodes.get(prefix).from,
+                        baseContent.from - baseNodes.get(prefix).from)
+                        && baseContent.from - baseNodes.get(prefix).from == targetContent.from - targetNodes.get(prefix).from) {
+                    path.add(prefix);
+                    baseRange = baseContent;
+                    targetRange = targetContent;
+                    continue;
+                }
+            }
+
+            final String insert = (targetCount == 0)
+                    ? ""
+                    : target.substring(targetNodes.get(prefix).from, targetNodes.get(prefix + targetCount - 1).to);
+
+            return new XmlDelta(path.stream().mapToInt(Integer::intValue).toArray(), prefix, baseCount, insert);
+        }
+    }
+
+    /**
+     * Apply delta to the serialization it was created from.
+     *
+     * @param base The serialization of the base document
+     * @return The serialization of the new document
+     * @throws IOException When the delta does not fit the document.
+     */
+    public String apply(final String base) throws IOException {
+
+        Range range = new Range(0, base.length());
+
+        for (final int index : path) {
+            final List<Range> nodes = split(base, range);
+            if (index >= nodes.size()) {
+                throw new IOException("Delta does not match document structure");
+            }
+            range = getContent(base, nodes.get(index));
+            if (range == null) {
+                throw new IOException("Delta does not match document structure");
+            }
+        }
+
+        final List<Range> nodes = split(base, range);
+        if (start + deleteCount > nodes.size()) {
+            throw new IOException("Delta does not match document structure");
+        }
+
+        final int from = (start < nodes.size()) ? nodes.get(start).from : range.to;
+        final int to = (deleteCount == 0) ? from : nodes.get(start + deleteCount - 1).to;
+
+        return base.substring(0, from) + insert + base.substring(to);
+    }
+
+    /**
+     * @return Approximate size of the delta in characters.
+     */
+    public int getSize() {
+        return insert.length() + 4 * (path.length + 3);
+    }
+
+    /**
+     * Write delta to stream.
+     *
+     * @param os The stream
+     * @throws IOException When the delta could not be written.
+     */
+    public void write(final OutputStream os) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(VERSION);
+        dos.writeInt(path.length);
+        for (final int index : path) {
+            dos.writeInt(index);
+        }
+        dos.writeInt(start);
+        dos.writeInt(deleteCount);
+        final byte[] data = insert.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(data.length);
+        dos.write(data);
+        dos.flush();
+    }
+
+    /**
+     * Read delta from stream.
+     *
+     * @param is The stream
+     * @return The delta
+     * @throws IOException When the stream does not contain a delta.
+     */
+    public static XmlDelta read(final InputStream is) throws IOException {
+        final DataInputStream dis = new DataInputStream(is);
+
+        final int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported delta version %d", version));
+        }
+
+        final int[] path = new int[dis.readInt()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = dis.readInt();
+        }
+        final int start = dis.readInt();
+        final int deleteCount = dis.readInt();
+        final byte[] data = new byte[dis.readInt()];
+        dis.readFully(data);
+
+        return new XmlDelta(path, start, deleteCount, new String(data, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get SHA-256 digest of serialization.
+     *
+     * @param text The serialization
+     * @return Digest as hexadecimal string
+     */
+    public static String digest(final String text) {
+        return MessageHelper.toHex(MessageHelper.createDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static boolean equal(final String text1, final Range range1, final String text2, final Range range2) {
+        final int length = range1.to - range1.from;
+        return length == range2.to - range2.from && text1.regionMatches(range1.from, text2, range2.from, length);
+    }
+
+    /**
+     * Split range into nodes.
+     */
+    private static List<Range> split(final String text, final Range range) throws IOException {
+
+        final List<Range> nodes = new ArrayList<>();
+
+        int pos = range.from;
+        while (pos < range.to) {
+            final int begin = pos;
+
+            if (text.charAt(pos) != '<') {
+                // Text
+                pos = text.indexOf('<', pos);
+                if (pos < 0 || pos > range.to) {
+                    pos = range.to;
+                }
+
+            } else if (text.startsWith("<!--", pos)) {
+                pos = skip(text, pos, "-->");
+
+            } else if (text.startsWith("<![CDATA[", pos)) {
+                pos = skip(text, pos, "]]>");
+
+            } else if (text.startsWith("<?", pos)) {
+                pos = skip(text, pos, "?>");
+
+            } else if (text.startsWith("<!", pos)) {
+                pos = skipDoctype(text, pos);
+
+            } else if (text.startsWith("</", pos)) {
+                throw new IOException(String.format("Unexpected end tag at position %d", pos));
+
+            } else {
+                pos = skipElement(text, pos);
+            }
+
+            if (pos > range.to) {
+                throw new IOException(String.format("Node at position %d exceeds its parent", begin));
+            }
+
+            nodes.add(new Range(begin, pos));
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Get the range between start and end tag of an element node.
+     *
+     * @return The range, NULL when the node is not an element or has no content.
+     */
+    private static Range getContent(final String text, final Range node) throws IOException {
+
+        if (text.charAt(node.from) != '<' || text.startsWith("<!", node.from) || text.startsWith("<?", node.from)) {
+            return null;
+        }
+
+        final int startTagEnd = skipTag(text, node.from);
+        if (text.charAt(startTagEnd - 2) == '/') {
+            // Empty element
+            return null;
+        }
+
+        final int endTagStart = text.lastIndexOf("</", node.to - 1);
+        if (endTagStart < startTagEnd) {
+            throw new IOException(String.format("Missing end tag for element at position %d", node.from));
+        }
+
+        return new Range(startTagEnd, endTagStart);
+    }
+
+    private static int skip(final String text, final int pos, final String terminator) throws IOException {
+        final int end = text.indexOf(terminator, pos);
+        if (end < 0) {
+            throw new IOException(String.format("Missing '%s' for node at position %d", terminator, pos));
+        }
+        return end + terminator.length();
+    }
+
+    private static int skipDoctype(final String text, final int pos) throws IOException {
+        int depth = 0;
+        for (int i = pos; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '>' && depth == 0) {
+                return i + 1;
+            }
+        }
+        throw new IOException(String.format("Unterminated declaration at position %d", pos));
+    }
+
+    /**
+     * Skip start or end tag, attribute values may contain '>'.
+     */
+    private static int skipTag(final String text, final int pos) throws IOException {
+        char quote = 0;
+        for (int i = pos + 1; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        throw new IOException(String.format("Unterminated tag at position %d", pos));
+    }
+
+    /**
+     * Skip element including all its descendants.
+     */
+    private static int skipElement(final String text, final int pos) throws IOException {
+
+        int i = skipTag(text, pos);
+        if (text.charAt(i - 2) == '/') {
+            return i;
+        }
+
+        int depth = 1;
+        while (depth > 0) {
+            i = text.indexOf('<', i);
+            if (i < 0) {
+                throw new IOException(String.format("Missing end tag for element at position %d", pos));
+            }
+
+            if (text.startsWith("<!--", i)) {
+                i = skip(text, i, "-->");
+
+            } else if (text.startsWith("<![CDATA[", i)) {
+                i = skip(text, i, "]]>");
+
+            } else if (text.startsWith("<?", i)) {
+                i = skip(text, i, "?>");
+
+            } else if (text.startsWith("</", i)) {
+                i = skipTag(text, i);
+                depth--;
+
+            } else {
+                i = skipTag(text, i);
+                if (text.charAt(i - 2) != '/') {
+                    depth++;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Range of characters, end exclusive.
+     */
+    private static class Range {
+        private final int from;
+        private final int to;
+
+        Range(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
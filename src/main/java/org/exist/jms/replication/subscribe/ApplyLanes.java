@@ -0,0 +1,413 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.Snapshot;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.xmldb.XmldbURI;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Applies received changes in parallel lanes. Changes are assigned to a lane by the path
+ * of the collection they affect, so the changes of a collection are applied in the order
+ * they were received while unrelated collections are updated concurrently.
+ * <p>
+ * Changes that affect more than one collection (collection delete, copy and move, document
+ * copy and move, batches and snapshots) are a barrier: they are applied when all lanes are idle.
+ * <p>
+ * In CLIENT_ACKNOWLEDGE mode acknowledging a message acknowledges all messages the session has
+ * delivered, including messages that are still waiting in a lane. Messages are therefore only
+ * acknowledged when every delivered message is applied; when too many messages are not yet
+ * acknowledged, the session waits for the lanes to become idle. When a change can not be applied,
+ * nothing is acknowledged anymore and the session is recovered, so all unacknowledged messages
+ * are delivered again.
+ * <p>
+ * A JMS session must only be used by one thread, so the lanes only apply the changes; messages
+ * are acknowledged and the session is recovered by the thread that receives the messages. The
+ * receiver polls for messages and calls {@link #onIdle()} when no message arrived within the poll
+ * interval, so the last messages are acknowledged while no messages are received.
+ */
+class ApplyLanes {
+
+    private final static Logger LOG = LogManager.getLogger(ApplyLanes.class);
+
+    private static final int LANE_CAPACITY = 100;
+
+    /**
+     * Number of delivered messages after which the session waits until they are all applied and acknowledged
+     */
+    private static final int MAX_UNACKNOWLEDGED = 1000;
+
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * Time in milliseconds the receiver waits for a message before {@link #onIdle()} is called.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    private final Consumer<eXistMessage> applier;
+    private final Supplier<Session> session;
+    private final Report report;
+    private final List<BlockingQueue<Task>> lanes = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Acknowledge administration, guarded by 'this'
+    private Message lastDelivered = null;
+    private long received = 0;
+    private long completed = 0;
+    private long acknowledged = 0;
+    private boolean failed = false;
+
+    /**
+     * Constructor
+     *
+     * @param nrLanes Number of lanes
+     * @param applier Applies a change to the database, throws a runtime exception on failure
+     * @param session Provides the JMS session, for redelivering the messages after a failure
+     * @param report  Report for the statistics and errors
+     */
+    ApplyLanes(final int nrLanes, final Consumer<eXistMessage> applier, final Supplier<Session> session, final Report report) {
+        this.applier = applier;
+        this.session = session;
+        this.report = report;
+
+        for (int i = 0; i < nrLanes; i++) {
+            final BlockingQueue<Task> lane = new ArrayBlockingQueue<>(LANE_CAPACITY);
+            lanes.add(lane);
+
+            final Thread worker = new Thread(() -> processLane(lane), String.format("jms-apply-lane-%d", i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        LOG.info("Started {} apply lanes.", nrLanes);
+    }
+
+    /**
+     * Apply change, called by the JMS session thread. Blocks when the lane of the change is full,
+     * when the change is a barrier, or when too many messages are not acknowledged.
+     *
+     * @param msg The received JMS message, acknowledged when all delivered changes are applied
+     * @param em  The change; the payload is reset when applied.
+     */
+    void submit(final Message msg, final eXistMessage em) {
+
+        if (recoverWhenFailed()) {
+            // Delivered again with the other unacknowledged messages
+            em.resetPayload();
+            return;
+        }
+
+        acknowledgeCompleted();
+
+        if (getUnacknowledged() >= MAX_UNACKNOWLEDGED) {
+            // All delivered changes are applied when the lanes are idle
+            awaitIdle();
+            acknowledgeCompleted();
+        }
+
+        register(msg);
+        final String partition = getPartition(em);
+
+        if (partition == null) {
+            // Wait for the lanes to finish, then apply in the session thread
+            report.incCounter("nrApplyBarriers");
+            awaitIdle();
+            new Task(em).run();
+            acknowledgeCompleted();
+            return;
+        }
+
+        final BlockingQueue<Task> lane = lanes.get(Math.floorMod(partition.hashCode(), lanes.size()));
+        inFlight.incrementAndGet();
+        try {
+            lane.put(new Task(em));
+
+        } catch (final InterruptedException ex) {
+            inFlight.decrementAndGet();
+            Thread.currentThread().interrupt();
+            em.resetPayload();
+            throw new MessageReceiveException("Interrupted while waiting for apply lane", em);
+        }
+    }
+
+    /**
+     * Acknowledge a message that does not need to be applied, together with the other messages.
+     *
+     * @param msg The received JMS message.
+     */
+    void acknowledge(final Message msg) {
+        if (!recoverWhenFailed()) {
+            register(msg);
+            complete(true);
+            acknowledgeCompleted();
+        }
+    }
+
+    /**
+     * Acknowledge the applied messages, or recover the session after a failure. Called by the JMS
+     * session thread when no message was received within the poll interval.
+     */
+    void onIdle() {
+        if (!recoverWhenFailed()) {
+            acknowledgeCompleted();
+        }
+    }
+
+    /**
+     * @return Time in milliseconds the receiver waits for a message before {@link #onIdle()} is called.
+     */
+    long getPollInterval() {
+        return POLL_INTERVAL;
+    }
+
+    /**
+     * @return Number of changes that are waiting in a lane or are being applied.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Wait for all lanes to become idle; all delivered changes are applied then.
+     */
+    void awaitIdle() {
+        synchronized (inFlight) {
+            while (inFlight.get() > 0) {
+                try {
+                    inFlight.wait();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new MessageReceiveException("Interrupted while waiting for apply lanes");
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the changes in the lanes and acknowledge them, then stop the lane threads. Called when
+     * the receiver is closed, after the delivery of messages has stopped.
+     */
+    void close() {
+        try {
+            awaitIdle();
+            acknowledgeCompleted();
+        } catch (final MessageReceiveException ex) {
+            LOG.warn("Stopping apply lanes while changes are pending: {}", ex.getMessage());
+        }
+
+        workers.forEach(Thread::interrupt);
+        for (final Thread worker : workers) {
+            try {
+                worker.join(SHUTDOWN_TIMEOUT);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.clear();
+
+        LOG.info("Stopped apply lanes.");
+    }
+
+    /**
+     * Determine the collection affected by the change.
+     *
+     * @return The path of the collection, NULL when the change affects multiple collections.
+     */
+    private String getPartition(final eXistMessage em) {
+
+        if (Snapshot.isSnapshot(em)) {
+            return null;
+        }
+
+        final eXistMessage.ResourceOperation operation = em.getResourceOperation();
+        switch (em.getResourceType()) {
+            case DOCUMENT:
+                if (operation == eXistMessage.ResourceOperation.MOVE || operation == eXistMessage.ResourceOperation.COPY) {
+                    return null;
+                }
+                return XmldbURI.create(em.getResourcePath()).removeLastSegment().toString();
+
+            case COLLECTION:
+                if (operation == eXistMessage.ResourceOperation.CREATE || operation == eXistMessage.ResourceOperation.UPDATE
+                        || operation == eXistMessage.ResourceOperation.METADATA) {
+                    return XmldbURI.create(em.getResourcePath()).toString();
+                }
+                return null;
+
+            default:
+                return null;
+        }
+    }
+
+    private synchronized void register(final Message msg) {
+        received++;
+        lastDelivered = msg;
+    }
+
+    private synchronized long getUnacknowledged() {
+        return received - acknowledged;
+    }
+
+    /**
+     * Mark change as done, called by the lane threads.
+     */
+    private synchronized void complete(final boolean success) {
+        completed++;
+        if (!success) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Acknowledge the delivered messages when all of them are done and none of them failed.
+     * Called by the JMS session thread.
+     */
+    private void acknowledgeCompleted() {
+
+        final Message msg;
+        synchronized (this) {
+            if (failed || completed != received || acknowledged == received) {
+                return;
+            }
+            msg = lastDelivered;
+            acknowledged = received;
+        }
+
+        try {
+            msg.acknowledge();
+        } catch (final JMSException ex) {
+            // Not acknowledged messages are delivered again
+            LOG.error("Unable to acknowledge message: {}", ex.getMessage());
+            report.addListenerError(ex);
+        }
+    }
+
+    /**
+     * After a failure, wait for the lanes and let the broker deliver all unacknowledged messages again.
+     * Called by the JMS session thread.
+     *
+     * @return TRUE when the session is recovered, the current message is delivered again.
+     */
+    private boolean recoverWhenFailed() {
+
+        synchronized (this) {
+            if (!failed) {
+                return false;
+            }
+        }
+
+        awaitIdle();
+
+        synchronized (this) {
+            lastDelivered = null;
+            received = 0;
+            completed = 0;
+            acknowledged = 0;
+            failed = false;
+        }
+
+        try {
+            LOG.warn("A change could not be applied, recovering session to receive the unacknowledged messages again.");
+            session.get().recover();
+            report.incCounter("nrSessionRecoveries");
+
+        } catch (final JMSException ex) {
+            throw new MessageReceiveException(String.format("Unable to recover session: %s", ex.getMessage()), ex);
+        }
+
+        return true;
+    }
+
+    private void processLane(final BlockingQueue<Task> lane) {
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            final Task task;
+            try {
+                task = lane.take();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                task.run();
+
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.decrementAndGet();
+                    inFlight.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Change to apply.
+     */
+    private class Task implements Runnable {
+
+        private final eXistMessage em;
+
+        private Task(final eXistMessage em) {
+            this.em = em;
+        }
+
+        @Override
+        public void run() {
+
+            final long start = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                applier.accept(em);
+                report.incMessageCounterOK();
+                success = true;
+
+            } catch (final Throwable t) {
+                // Failure is reported, the message is delivered again after the session is recovered
+                report.addListenerError(t);
+                LOG.error("Could not apply change for '{}': {}", em.getResourcePath(), t.getMessage(), t);
+
+            } finally {
+                em.resetPayload();
+                report.addProcessingTime(System.currentTimeMillis() - start);
+                complete(success);
+            }
+        }
+    }
+}
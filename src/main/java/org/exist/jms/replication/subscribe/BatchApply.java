@@ -0,0 +1,243 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Applies received changes in batches: up to a maximum number of changes, or the changes
+ * received within a time window, are applied in one database transaction, after which the
+ * transacted JMS session is committed.
+ * <p>
+ * When a batch fails, its changes are applied one by one to isolate the change that can not
+ * be applied (poison message); a poison message is put in quarantine by the single applier.
+ * When a change can neither be applied nor be put in quarantine, the session is rolled back so
+ * all messages of the batch are delivered again. The changes that were already applied are then
+ * skipped as superseded.
+ * <p>
+ * A JMS session must only be used by one thread, so all methods are called by the thread that
+ * receives the messages. The receiver polls for messages and calls {@link #flushExpired()} when
+ * no message arrived within the poll interval, so a batch is applied after the timeout while no
+ * messages are received.
+ */
+class BatchApply {
+
+    private final static Logger LOG = LogManager.getLogger(BatchApply.class);
+
+    private final int maxSize;
+    private final long timeout;
+    private final Consumer<List<eXistMessage>> batchApplier;
+    private final Consumer<eXistMessage> singleApplier;
+    private final Supplier<Session> session;
+    private final Report report;
+
+    // Guarded by 'this'
+    private final List<eXistMessage> pending = new ArrayList<>();
+    private int uncommitted = 0;
+    private long firstReceived = 0;
+    private eXistMessage barrier = null;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize       Maximum number of changes in a batch
+     * @param timeout       Maximum time in milliseconds a change waits for the batch to be applied
+     * @param batchApplier  Applies changes in one transaction, throws a runtime exception on failure
+     * @param singleApplier Applies one change in its own transaction, or puts it in quarantine; throws a
+     *                      runtime exception when the change can be neither applied nor put in quarantine
+     * @param session       Supplies the transacted JMS session
+     * @param report        Report for the statistics and errors
+     */
+    BatchApply(final int maxSize, final long timeout, final Consumer<List<eXistMessage>> batchApplier,
+               final Consumer<eXistMessage> singleApplier, final Supplier<Session> session, final Report report) {
+        this.maxSize = maxSize;
+        this.timeout = timeout;
+        this.batchApplier = batchApplier;
+        this.singleApplier = singleApplier;
+        this.session = session;
+        this.report = report;
+
+        LOG.info("Applying changes in batches of at most {} changes or {} ms.", maxSize, timeout);
+    }
+
+    /**
+     * Add change to the batch, apply the batch when it is full. Called by the JMS session thread.
+     *
+     * @param em The change; the payload is reset when applied.
+     */
+    synchronized void add(final eXistMessage em) {
+
+        received();
+        pending.add(em);
+
+        if (pending.size() >= maxSize || isExpired()) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply a change that is not applied in a batch, e.g. a snapshot. The pending changes are
+     * applied first; the session is committed after the change is applied. Called by the JMS
+     * session thread.
+     *
+     * @param em The change, the payload is reset by the caller.
+     */
+    synchronized void addBarrier(final eXistMessage em) {
+
+        received();
+        barrier = em;
+        try {
+            flush();
+        } finally {
+            barrier = null;
+        }
+    }
+
+    /**
+     * Register a received message that does not need to be applied, it is committed with the batch.
+     */
+    synchronized void acknowledge() {
+        received();
+    }
+
+    private void received() {
+        if (uncommitted == 0) {
+            firstReceived = System.currentTimeMillis();
+        }
+        uncommitted++;
+    }
+
+    /**
+     * @return Time in milliseconds the receiver waits for a message before {@link #flushExpired()} is called.
+     */
+    long getPollInterval() {
+        return Math.max(10, timeout / 2);
+    }
+
+    /**
+     * Apply pending changes when the oldest change waited for the timeout. Called by the JMS
+     * session thread when no message was received within the poll interval.
+     */
+    synchronized void flushExpired() {
+        if (isExpired()) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply and commit the pending changes. Called when the receiver is closed, after the
+     * delivery of messages has stopped.
+     */
+    synchronized void close() {
+        if (uncommitted > 0) {
+            flush();
+        }
+    }
+
+    private boolean isExpired() {
+        return uncommitted > 0 && System.currentTimeMillis() - firstReceived >= timeout;
+    }
+
+    /**
+     * Apply pending changes, then commit or roll back the JMS session.
+     */
+    private void flush() {
+
+        final long start = System.currentTimeMillis();
+        final int size = pending.size();
+        final int total = (barrier == null) ? size : size + 1;
+
+        try {
+            boolean completed = true;
+
+            if (size > 0) {
+                try {
+                    batchApplier.accept(pending);
+
+                    report.incCounter("nrApplyBatches");
+                    report.addToCounter("nrApplyBatchChanges", size);
+                    pending.forEach(em -> report.incMessageCounterOK());
+
+                } catch (final Throwable t) {
+                    report.incCounter("nrApplyBatchesFailed");
+                    LOG.warn("Batch of {} changes failed ({}), applying the changes one by one.", size, t.getMessage());
+                    completed = isolate(pending);
+                }
+            }
+
+            if (completed && barrier != null) {
+                completed = isolate(Collections.singletonList(barrier));
+            }
+
+            if (completed) {
+                session.get().commit();
+            } else {
+                LOG.error("A change could not be applied nor be put in quarantine, the {} messages are delivered again.", total);
+                report.incCounter("nrApplyBatchesRolledBack");
+                session.get().rollback();
+            }
+
+        } catch (final JMSException ex) {
+            // Messages that are not committed are delivered again
+            LOG.error("Unable to complete JMS transaction: {}", ex.getMessage(), ex);
+            report.addListenerError(ex);
+
+        } finally {
+            pending.forEach(eXistMessage::resetPayload);
+            pending.clear();
+            uncommitted = 0;
+
+            report.addProcessingTime(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Apply changes one by one, stop at the first change that can neither be applied nor be put
+     * in quarantine.
+     *
+     * @return FALSE when a change could neither be applied nor be put in quarantine.
+     */
+    private boolean isolate(final List<eXistMessage> changes) {
+
+        for (final eXistMessage em : changes) {
+            try {
+                singleApplier.accept(em);
+                report.incMessageCounterOK();
+
+            } catch (final Throwable t) {
+                report.addListenerError(t);
+                LOG.error("Change for '{}' can not be applied nor be put in quarantine: {}", em.getResourcePath(), t.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Reassembles payloads that were sent as a sequence of chunk messages. Chunks are appended
+ * to a part file in the order of their index. The part file survives a restart, so an
+ * interrupted transfer is resumed with the first chunk that was not yet written; chunks that
+ * are delivered again are skipped.
+ * <p>
+ * The part file of a completed transfer is kept until the assembled change is committed or
+ * stored in quarantine, so the final chunk can be delivered again when the change fails.
+ */
+class ChunkAssembler {
+
+    private final static Logger LOG = LogManager.getLogger(ChunkAssembler.class);
+
+    /**
+     * Part files of transfers that did not complete are removed after this time
+     */
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final Pattern VALID_TRANSFER_ID = Pattern.compile("[A-Za-z0-9\\-]+");
+
+    private final Path directory;
+    private final Report report;
+    private final Set<String> activeTransfers = new HashSet<>();
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory for storing the part files
+     * @param report    Report for the chunk statistics
+     */
+    ChunkAssembler(final Path directory, final Report report) {
+        this.directory = directory;
+        this.report = report;
+
+        removeStaleTransfers();
+    }
+
+    /**
+     * Verify if message is part of a chunked transfer.
+     *
+     * @param em The message
+     * @return TRUE when the message is a chunk.
+     */
+    static boolean isChunk(final eXistMessage em) {
+        return em.getMetadata().get(MessageHelper.EXIST_CHUNK_TRANSFER_ID) != null;
+    }
+
+    /**
+     * Add chunk to the transfer.
+     *
+     * @param chunk The received chunk
+     * @return The message with the complete payload when the last chunk has been received, else NULL.
+     * @throws IOException When the chunk can not be written, or a chunk is missing.
+     */
+    synchronized eXistMessage add(final eXistMessage chunk) throws IOException {
+
+        final Map<String, Object> md = chunk.getMetadata();
+
+        final String transferId = String.valueOf(md.get(MessageHelper.EXIST_CHUNK_TRANSFER_ID));
+        if (!VALID_TRANSFER_ID.matcher(transferId).matches()) {
+            throw new IOException(String.format("Invalid chunk transfer id '%s'", transferId));
+        }
+
+        final int index = toLong(md, MessageHelper.EXIST_CHUNK_INDEX).intValue();
+        final int count = toLong(md, MessageHelper.EXIST_CHUNK_COUNT).intValue();
+        final long chunkSize = toLong(md, MessageHelper.EXIST_CHUNK_SIZE);
+        final long totalSize = toLong(md, MessageHelper.EXIST_CHUNK_TOTAL_SIZE);
+
+        final Path partFile = directory.resolve(transferId + PART_SUFFIX);
+        Files.createDirectories(directory);
+
+        // Determine the number of completely written chunks
+        long length = Files.exists(partFile) ? Files.size(partFile) : 0;
+        final int written;
+        if (length == totalSize) {
+            written = count;
+
+        } else {
+            written = (int) (length / chunkSize);
+
+            // Remove remains of an interrupted write
+            if (length != written * chunkSize) {
+                length = written * chunkSize;
+                try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+        }
+
+        if (activeTransfers.add(transferId) && written > 0) {
+            LOG.info("Resuming transfer {} of '{}' at chunk {} of {}", transferId, chunk.getResourcePath(), written, count);
+            report.incCounter("nrChunkedTransfersResumed");
+        }
+
+        if (index > written) {
+            // A chunk is missing, the transfer can not be completed anymore
+            removeTransfer(transferId, partFile);
+            report.incCounter("nrChunkedTransfersFailed");
+            throw new IOException(String.format("Missing chunk %d of transfer %s for '%s', received chunk %d",
+                    written, transferId, chunk.getResourcePath(), index));
+        }
+
+        if (index < written) {
+            // Delivered again, already written
+            LOG.debug("Skipping chunk {} of transfer {}, already received.", index, transferId);
+            report.incCounter("nrChunksDuplicate");
+
+        } else {
+            try (InputStream is = chunk.getPayloadInputStream();
+                 OutputStream os = Files.newOutputStream(partFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                IOUtils.copy(is, os);
+            }
+
+            report.incCounter("nrChunksReceived");
+            report.addToCounter("nrChunkBytesReceived", chunk.getPayloadSize());
+        }
+
+        if (index + 1 < count) {
+            // Wait for more
+            return null;
+        }
+
+        // All chunks received
+        final long size = Files.size(partFile);
+        if (size != totalSize) {
+            removeTransfer(transferId, partFile);
+            report.incCounter("nrChunkedTransfersFailed");
+            throw new IOException(String.format("Size of transfer %s for '%s' is %d bytes, expected %d bytes",
+                    transferId, chunk.getResourcePath(), size, totalSize));
+        }
+
+        report.incCounter("nrChunkedTransfersCompleted");
+
+        LOG.debug("Completed transfer {} of '{}', {} bytes in {} chunks", transferId, chunk.getResourcePath(), size, count);
+
+        // The part file is removed when the change is completed, not when the payload is reset
+        chunk.setPayload(partFile, size, false);
+        return chunk;
+    }
+
+    /**
+     * Remove the part file of an assembled change, after the change is committed or stored in quarantine.
+     *
+     * @param em The change, nothing is removed when it is not assembled from chunks.
+     */
+    synchronized void complete(final eXistMessage em) {
+
+        if (!isChunk(em)) {
+            return;
+        }
+
+        final String transferId = String.valueOf(em.getMetadata().get(MessageHelper.EXIST_CHUNK_TRANSFER_ID));
+        if (VALID_TRANSFER_ID.matcher(transferId).matches()) {
+            removeTransfer(transferId, directory.resolve(transferId + PART_SUFFIX));
+        }
+    }
+
+    private Long toLong(final Map<String, Object> md, final String key) throws IOException {
+        final Object value = md.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.valueOf(String.valueOf(value));
+        } catch (final NumberFormatException ex) {
+            throw new IOException(String.format("Invalid value '%s' for %s", value, key));
+        }
+    }
+
+    private void removeTransfer(final String transferId, final Path partFile) {
+        activeTransfers.remove(transferId);
+        try {
+            Files.deleteIfExists(partFile);
+        } catch (final IOException ex) {
+            LOG.error("Unable to remove {}: {}", partFile, ex.getMessage());
+        }
+    }
+
+    /**
+     * Remove part files of transfers that will not be completed anymore.
+     */
+    private void removeStaleTransfers() {
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + PART_SUFFIX)) {
+            for (final Path partFile : stream) {
+                if (now - Files.getLastModifiedTime(partFile).toMillis() > MAX_AGE) {
+                    LOG.info("Removing incomplete transfer {}", partFile);
+                    Files.deleteIfExists(partFile);
+                }
+            }
+        } catch (final IOException ex) {
+            LOG.error("Unable to cleanup chunk directory {}: {}", directory, ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the content digests of the replicated documents. With the index a replica
+ * recognizes content that it already has, so the document is not written again.
+ * <p>
+ * The index is kept in memory and is persisted as an append-only log in the data directory
+ * of the database; the log is compacted when it is loaded and when most of its lines are outdated. An entry is only valid when the
+ * document still has the recorded modification time, so local changes invalidate the entry.
+ */
+class DigestIndex {
+
+    private final static Logger LOG = LogManager.getLogger(DigestIndex.class);
+
+    private static final String INDEX_FILE = "jms-digest-index";
+
+    private static final String PUT = "put";
+    private static final String REMOVE = "del";
+    private static final String REMOVE_TREE = "deltree";
+
+    /**
+     * Minimum number of lines in the log before it is compacted at runtime
+     */
+    private static final int COMPACT_MIN_LINES = 10000;
+
+    private static final Map<Path, DigestIndex> INSTANCES = new HashMap<>();
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private Writer writer;
+    private long lines = 0;
+
+    private DigestIndex(final Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Get the index of a database, the index is shared by all receivers of the database.
+     *
+     * @param dataDirectory The data directory of the database
+     * @return The index
+     */
+    static synchronized DigestIndex getInstance(final Path dataDirectory) {
+        return INSTANCES.computeIfAbsent(dataDirectory.resolve(INDEX_FILE), DigestIndex::new);
+    }
+
+    /**
+     * Verify that the document has the content with the digest.
+     *
+     * @param path         Path of the document
+     * @param digest       Digest of the content
+     * @param lastModified Current modification time of the document
+     * @return TRUE when the document has the content.
+     */
+    synchronized boolean matches(final String path, final String digest, final long lastModified) {
+        final Entry entry = entries.get(path);
+        return entry != null && entry.digest.equals(digest) && entry.lastModified == lastModified;
+    }
+
+    /**
+     * Record the digest of the content of a document.
+     *
+     * @param path         Path of the document
+     * @param digest       Digest of the content
+     * @param lastModified Modification time of the document after it was written
+     */
+    synchronized void put(final String path, final String digest, final long lastModified) {
+        entries.put(path, new Entry(digest, lastModified));
+        append(PUT + '\t' + digest + '\t' + lastModified + '\t' + path);
+    }
+
+    /**
+     * Remove the entry of a document.
+     *
+     * @param path Path of the document
+     */
+    synchronized void remove(final String path) {
+        if (entries.remove(path) != null) {
+            append(REMOVE + '\t' + path);
+        }
+    }
+
+    /**
+     * Remove the entries of all documents in a collection and its sub collections.
+     *
+     * @param collectionPath Path of the collection
+     */
+    synchronized void removeTree(final String collectionPath) {
+        final String prefix = collectionPath.endsWith("/") ? collectionPath : collectionPath + "/";
+        if (entries.keySet().removeIf(path -> path.startsWith(prefix))) {
+            append(REMOVE_TREE + '\t' + prefix);
+        }
+    }
+
+    /**
+     * @return Number of documents in the index.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void append(final String line) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            lines++;
+
+        } catch (final IOException ex) {
+            // The index is an optimization, without entry the document is written again
+            LOG.error("Unable to update digest index {}: {}", file, ex.getMessage());
+        }
+
+        // More than half of the lines are outdated
+        if (lines >= COMPACT_MIN_LINES && lines > 2L * entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Replay the log, then compact it.
+     */
+    private void load() {
+
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", 4);
+                if (PUT.equals(fields[0]) && fields.length == 4) {
+                    entries.put(fields[3], new Entry(fields[1], Long.parseLong(fields[2])));
+
+                } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+                    entries.remove(fields[1]);
+
+                } else if (REMOVE_TREE.equals(fields[0]) && fields.length == 2) {
+                    entries.keySet().removeIf(path -> path.startsWith(fields[1]));
+                }
+            }
+
+        } catch (final IOException | NumberFormatException ex) {
+            // Incomplete last line after a crash, or unreadable file
+            LOG.error("Unable to read digest index {} completely: {}", file, ex.getMessage());
+        }
+
+        compact();
+
+        LOG.info("Loaded digest index {} with {} entries.", file, entries.size());
+    }
+
+    /**
+     * Write the current entries as a new log.
+     */
+    private void compact() {
+
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (final IOException ex) {
+                LOG.debug(ex.getMessage());
+            }
+            writer = null;
+        }
+
+        final Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter w = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    w.write(PUT + '\t' + entry.getValue().digest + '\t' + entry.getValue().lastModified + '\t' + entry.getKey());
+                    w.write('\n');
+                }
+            }
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lines = entries.size();
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to compact digest index {}: {}", file, ex.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final String digest;
+        private final long lastModified;
+
+        private Entry(final String digest, final long lastModified) {
+            this.digest = digest;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of collections that are known to exist, so the collection of a received document
+ * is not checked and saved for each document. Entries are removed when a collection is
+ * deleted or moved by a replicated change; a collection that is removed locally is detected
+ * when it is opened.
+ */
+class KnownCollections {
+
+    private static final int MAX_ENTRIES = 100_000;
+
+    private final Set<String> collections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param path Path of the collection
+     * @return TRUE when the collection is known to exist.
+     */
+    boolean contains(final String path) {
+        return collections.contains(path);
+    }
+
+    /**
+     * Register a collection that exists.
+     *
+     * @param path Path of the collection
+     */
+    void add(final String path) {
+        if (collections.size() >= MAX_ENTRIES) {
+            collections.clear();
+        }
+        collections.add(path);
+    }
+
+    /**
+     * Remove a collection and its sub collections.
+     *
+     * @param path Path of the collection
+     */
+    void removeTree(final String path) {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        collections.removeIf(entry -> entry.equals(path) || entry.startsWith(prefix));
+    }
+}
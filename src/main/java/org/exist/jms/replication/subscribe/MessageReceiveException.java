@@ -44,7 +44,6 @@ public class MessageReceiveException extends RuntimeException {
     public MessageReceiveException(final String msg, final eXistMessage message) {
         super(msg);
         this.message = message;
-        this.message.resetPayload();
     }
 
     public MessageReceiveException(final Throwable t) {
@@ -59,7 +58,6 @@ public class MessageReceiveException extends RuntimeException {
     public MessageReceiveException(final String msg, final Throwable t, final eXistMessage message) {
         super(msg, t);
         this.message = message;
-        this.message.resetPayload();
     }
 
     public eXistMessage getExistMessage() {
@@ -68,6 +66,5 @@ public class MessageReceiveException extends RuntimeException {
 
     public void setExistMessage(final eXistMessage message) {
         this.message = message;
-        this.message.resetPayload();
     }
 }
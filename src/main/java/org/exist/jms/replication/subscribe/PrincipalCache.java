@@ -0,0 +1,202 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.security.Account;
+import org.exist.security.Group;
+import org.exist.security.SecurityManager;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of user and group names resolved by the security manager, for setting the owner and group
+ * of received resources. Names that do not exist are cached as well, together with the fallback
+ * name. Entries expire after a configurable time, so changes of accounts and groups are seen
+ * eventually; the cache can be invalidated explicitly.
+ */
+class PrincipalCache {
+
+    private final static Logger LOG = LogManager.getLogger(PrincipalCache.class);
+
+    /**
+     * Default time to live of an entry in milliseconds
+     */
+    static final int DEFAULT_TTL = 60_000;
+
+    private static final int MAX_ENTRIES = 10_000;
+
+    /**
+     * Resolved name, the fallback when the principal does not exist.
+     */
+    private static class Entry {
+        private final String name;
+        private final boolean exists;
+        private final long expires;
+
+        private Entry(final String name, final boolean exists, final long expires) {
+            this.name = name;
+            this.exists = exists;
+            this.expires = expires;
+        }
+    }
+
+    private final SecurityManager securityManager;
+    private final long ttl;
+
+    private final Map<String, Entry> accounts = new ConcurrentHashMap<>();
+    private final Map<String, Entry> groups = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param securityManager The security manager of the database
+     * @param ttl             Time to live of an entry in milliseconds, 0 disables the cache.
+     */
+    PrincipalCache(final SecurityManager securityManager, final long ttl) {
+        this.securityManager = securityManager;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get name of an existing account.
+     *
+     * @param userName Name of the account
+     * @return The name of the account, the name of the system subject when the account does not exist.
+     */
+    String getAccountName(final String userName) {
+        return resolve(accounts, userName, () -> {
+            final Account account = securityManager.getAccount(userName);
+            if (account == null) {
+                LOG.error("Username {} does not exist.", userName);
+                return null;
+            }
+            return account.getName();
+        }, () -> securityManager.getSystemSubject().getName());
+    }
+
+    /**
+     * Get name of an existing group.
+     *
+     * @param groupName Name of the group
+     * @return The name of the group, the default group of the system subject when the group does not exist.
+     */
+    String getGroupName(final String groupName) {
+        return resolve(groups, groupName, () -> {
+            final Group group = securityManager.getGroup(groupName);
+            if (group == null) {
+                LOG.info("Group {} does not exist.", groupName);
+                return null;
+            }
+            return group.getName();
+        }, () -> securityManager.getSystemSubject().getDefaultGroup().getName());
+    }
+
+    private String resolve(final Map<String, Entry> cache, final String key,
+                           final Supplier<String> lookup, final Supplier<String> fallback) {
+
+        final long now = System.currentTimeMillis();
+
+        final Entry entry = cache.get(key);
+        if (entry != null && entry.expires > now) {
+            hits.incrementAndGet();
+            if (!entry.exists) {
+                negativeHits.incrementAndGet();
+            }
+            return entry.name;
+        }
+
+        misses.incrementAndGet();
+
+        final String name = lookup.get();
+        final Entry resolved = (name == null)
+                ? new Entry(fallback.get(), false, now + ttl)
+                : new Entry(name, true, now + ttl);
+
+        if (ttl > 0) {
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+            cache.put(key, resolved);
+        }
+
+        return resolved.name;
+    }
+
+    /**
+     * Remove all entries, the names are resolved again by the security manager.
+     */
+    void invalidate() {
+        accounts.clear();
+        groups.clear();
+        invalidations.incrementAndGet();
+        LOG.debug("Principal cache invalidated.");
+    }
+
+    /**
+     * Write cache statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    void write(final MemTreeBuilder builder) {
+
+        final long nrHits = hits.get();
+        final long nrLookups = nrHits + misses.get();
+
+        builder.startElement("", "principalCache", "principalCache", null);
+
+        builder.startElement("", "entries", "entries", null);
+        builder.characters("" + (accounts.size() + groups.size()));
+        builder.endElement();
+
+        builder.startElement("", "hits", "hits", null);
+        builder.characters("" + nrHits);
+        builder.endElement();
+
+        builder.startElement("", "negativeHits", "negativeHits", null);
+        builder.characters("" + negativeHits.get());
+        builder.endElement();
+
+        builder.startElement("", "misses", "misses", null);
+        builder.characters("" + misses.get());
+        builder.endElement();
+
+        builder.startElement("", "hitRate", "hitRate", null);
+        builder.characters(String.format(Locale.ROOT, "%.3f", (nrLookups == 0) ? 0.0 : (double) nrHits / nrLookups));
+        builder.endElement();
+
+        builder.startElement("", "invalidations", "invalidations", null);
+        builder.characters("" + invalidations.get());
+        builder.endElement();
+
+        builder.endElement(); // principalCache
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.BatchEnvelope;
+import org.exist.jms.shared.Report;
+import org.exist.jms.shared.eXistMessage;
+import org.exist.storage.BrokerPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Received changes that could not be applied. Instead of being delivered again by the broker
+ * right away, a failed change is stored in the data directory of the database and is retried
+ * with an increasing delay. When the change still fails after the maximum number of retries it
+ * is parked, until it is replayed on request.
+ * <p>
+ * A change is stored as batch envelope with one entry, together with the number of attempts
+ * and the last error. Changes that wait for a retry are scheduled again after a restart.
+ */
+public class Quarantine {
+
+    private final static Logger LOG = LogManager.getLogger(Quarantine.class);
+
+    private static final String QUARANTINE_DIRECTORY = "jms-quarantine";
+    private static final String RETRY_SUFFIX = ".retry";
+    private static final String PARKED_SUFFIX = ".parked";
+
+    private static final String RETRY_ATTEMPTS = "exist.retry.attempts";
+    private static final String RETRY_ERROR = "exist.retry.error";
+    private static final String RETRY_FIRST_FAILURE = "exist.retry.first-failure";
+
+    private static final int PAYLOAD_THRESHOLD = 1024 * 1024;
+    private static final long MAX_DELAY = TimeUnit.HOURS.toMillis(1);
+
+    private static final Map<Path, Quarantine> INSTANCES = new HashMap<>();
+
+    private final Path directory;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    private volatile Consumer<eXistMessage> applier;
+    private volatile Report report;
+    private volatile int maxRetries = 5;
+    private volatile long retryDelay = 1000;
+    private boolean configured = false;
+
+    private Quarantine(final Path directory) {
+        this.directory = directory;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "jms-apply-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the quarantine of a database, the quarantine is shared by all receivers of the database.
+     *
+     * @param dataDirectory The data directory of the database
+     * @return The quarantine
+     */
+    static synchronized Quarantine getInstance(final Path dataDirectory) {
+        return INSTANCES.computeIfAbsent(dataDirectory.resolve(QUARANTINE_DIRECTORY), Quarantine::new);
+    }
+
+    /**
+     * Get the quarantine of a database.
+     *
+     * @param brokerPool The database
+     * @return The quarantine
+     */
+    public static Quarantine getInstance(final BrokerPool brokerPool) {
+        return getInstance(ReplicationJmsListener.getDataDirectory(brokerPool));
+    }
+
+    /**
+     * Register the receiver that applies retried and replayed changes, with the retry settings of
+     * its configuration. The changes that waited for a retry when the database was stopped are
+     * scheduled with the first registration.
+     *
+     * @param applier    Applies a change in its own transaction, throws a runtime exception on failure
+     * @param maxRetries Number of retries before a change is parked
+     * @param retryDelay Delay in milliseconds before the first retry, doubled for each next retry
+     * @param report     Report for the statistics and errors
+     */
+    synchronized void register(final Consumer<eXistMessage> applier, final int maxRetries, final long retryDelay, final Report report) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.configured = true;
+        setApplier(applier, report);
+    }
+
+    /**
+     * Register a receiver that is created without configuration, only when no receiver is
+     * registered yet; the settings of a configured receiver are kept.
+     *
+     * @param applier Applies a change in its own transaction, throws a runtime exception on failure
+     * @param report  Report for the statistics and errors
+     */
+    synchronized void registerDefault(final Consumer<eXistMessage> applier, final Report report) {
+        if (!configured && this.applier == null) {
+            setApplier(applier, report);
+        }
+    }
+
+    private void setApplier(final Consumer<eXistMessage> applier, final Report report) {
+        final boolean first = (this.applier == null);
+        this.applier = applier;
+        this.report = report;
+
+        if (first) {
+            for (final Path file : list(RETRY_SUFFIX)) {
+                schedule(file, retryDelay);
+            }
+        }
+    }
+
+    /**
+     * Store a change that could not be applied, and schedule its retry.
+     *
+     * @param em    The change with its payload; the payload is reset by the caller
+     * @param cause The reason the change could not be applied
+     * @throws IOException The change could not be stored.
+     */
+    void add(final eXistMessage em, final Throwable cause) throws IOException {
+
+        final Map<String, Object> metadata = em.getMetadata();
+        metadata.put(RETRY_ATTEMPTS, 0);
+        metadata.put(RETRY_ERROR, String.valueOf(cause.getMessage()));
+        metadata.put(RETRY_FIRST_FAILURE, System.currentTimeMillis());
+
+        final String id = UUID.randomUUID().toString();
+
+        if (maxRetries == 0) {
+            store(directory.resolve(id + PARKED_SUFFIX), em);
+            parked(em);
+            return;
+        }
+
+        final Path file = directory.resolve(id + RETRY_SUFFIX);
+        store(file, em);
+        schedule(file, retryDelay);
+
+        LOG.warn("Change {} of '{}' could not be applied, retry in {} ms: {}",
+                em.getResourceOperation(), em.getResourcePath(), retryDelay, cause.getMessage());
+    }
+
+    private void schedule(final Path file, final long delay) {
+        scheduler.schedule(() -> retry(file), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply a stored change again; it is rescheduled or parked when it fails again.
+     */
+    private void retry(final Path file) {
+
+        final Consumer<eXistMessage> current = applier;
+        if (current == null || !Files.exists(file)) {
+            return;
+        }
+
+        retried.incrementAndGet();
+
+        eXistMessage em = null;
+        try {
+            em = load(file);
+
+            try {
+                current.accept(em);
+
+            } catch (final Throwable t) {
+                final Map<String, Object> metadata = em.getMetadata();
+                final int attempts = toInt(metadata.get(RETRY_ATTEMPTS)) + 1;
+                metadata.put(RETRY_ATTEMPTS, attempts);
+                metadata.put(RETRY_ERROR, String.valueOf(t.getMessage()));
+
+                if (attempts >= maxRetries) {
+                    store(file.resolveSibling(getId(file) + PARKED_SUFFIX), em);
+                    Files.deleteIfExists(file);
+                    parked(em);
+
+                } else {
+                    final long delay = Math.min(MAX_DELAY, retryDelay << Math.min(attempts, 30));
+                    store(file, em);
+                    schedule(file, delay);
+                    LOG.warn("Retry {} of change for '{}' failed, next retry in {} ms: {}",
+                            attempts, em.getResourcePath(), delay, t.getMessage());
+                }
+                return;
+            }
+
+            Files.deleteIfExists(file);
+            recovered.incrementAndGet();
+            incCounter("nrRetriesSucceeded");
+            LOG.info("Change {} of '{}' is applied after retry.", em.getResourceOperation(), em.getResourcePath());
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to retry {}: {}", file, ex.getMessage(), ex);
+            addError(ex);
+
+        } finally {
+            if (em != null) {
+                em.resetPayload();
+            }
+        }
+    }
+
+    private void parked(final eXistMessage em) {
+        parked.incrementAndGet();
+        incCounter("nrMessagesParked");
+        LOG.error("Change {} of '{}' could not be applied and is parked: {}",
+                em.getResourceOperation(), em.getResourcePath(), em.getMetadata().get(RETRY_ERROR));
+    }
+
+    /**
+     * Apply parked changes again, in the order they were parked. Changes that fail again stay parked.
+     *
+     * @param ids IDs of the changes to replay, all parked changes when empty
+     * @return Number of replayed changes that were applied, and number of changes that failed again
+     * @throws IllegalStateException No receiver is registered for applying the changes.
+     */
+    public synchronized int[] replay(final Set<String> ids) {
+
+        final Consumer<eXistMessage> current = applier;
+        if (current == null) {
+            throw new IllegalStateException("No replication receiver is registered to apply the parked changes.");
+        }
+
+        int applied = 0;
+        int failed = 0;
+        for (final Path file : list(PARKED_SUFFIX)) {
+
+            if (!ids.isEmpty() && !ids.contains(getId(file))) {
+                continue;
+            }
+
+            eXistMessage em = null;
+            try {
+                em = load(file);
+                try {
+                    current.accept(em);
+                    Files.deleteIfExists(file);
+                    applied++;
+                    replayed.incrementAndGet();
+                    incCounter("nrMessagesReplayed");
+
+                } catch (final Throwable t) {
+                    final Map<String, Object> metadata = em.getMetadata();
+                    metadata.put(RETRY_ATTEMPTS, toInt(metadata.get(RETRY_ATTEMPTS)) + 1);
+                    metadata.put(RETRY_ERROR, String.valueOf(t.getMessage()));
+                    store(file, em);
+                    failed++;
+                    LOG.error("Replay of change for '{}' failed: {}", em.getResourcePath(), t.getMessage());
+                }
+
+            } catch (final IOException ex) {
+                LOG.error("Unable to replay {}: {}", file, ex.getMessage(), ex);
+                failed++;
+
+            } finally {
+                if (em != null) {
+                    em.resetPayload();
+                }
+            }
+        }
+
+        return new int[]{applied, failed};
+    }
+
+    private void store(final Path file, final eXistMessage em) throws IOException {
+
+        Files.createDirectories(directory);
+
+        final eXistMessage envelope = BatchEnvelope.create(Collections.singletonList(em), PAYLOAD_THRESHOLD);
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (InputStream is = envelope.getPayloadInputStream();
+             OutputStream os = Files.newOutputStream(tmp)) {
+            IOUtils.copy(is, os);
+
+        } finally {
+            envelope.resetPayload();
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private eXistMessage load(final Path file) throws IOException {
+        try (BatchEnvelope.Reader reader = new BatchEnvelope.Reader(Files.newInputStream(file), PAYLOAD_THRESHOLD)) {
+            final eXistMessage em = reader.next();
+            if (em == null) {
+                throw new IOException(String.format("No change stored in %s", file));
+            }
+            return em;
+        }
+    }
+
+    /**
+     * @return Files with the suffix, oldest first.
+     */
+    private List<Path> list(final String suffix) {
+
+        final List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)) {
+            stream.forEach(files::add);
+        } catch (final IOException ex) {
+            LOG.error("Unable to read quarantine {}: {}", directory, ex.getMessage());
+        }
+
+        files.sort((a, b) -> Long.compare(lastModified(a), lastModified(b)));
+        return files;
+    }
+
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (final IOException ex) {
+            return 0;
+        }
+    }
+
+    private static String getId(final Path file) {
+        final String name = file.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private static int toInt(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value));
+        } catch (final NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private void incCounter(final String name) {
+        final Report current = report;
+        if (current != null) {
+            current.incCounter(name);
+        }
+    }
+
+    private void addError(final Throwable t) {
+        final Report current = report;
+        if (current != null) {
+            current.addListenerError(t);
+        }
+    }
+
+    /**
+     * Write the statistics, and optionally the stored changes, to XML report.
+     *
+     * @param builder        The builder to create the XML report.
+     * @param includeChanges Write a description of each stored change
+     * @return Node number of the written element
+     */
+    public int write(final MemTreeBuilder builder, final boolean includeChanges) {
+
+        final int nodeNr = builder.startElement("", "quarantine", "quarantine", null);
+        builder.addAttribute(new QName("maxRetries", null, null), "" + maxRetries);
+        builder.addAttribute(new QName("retryDelay", null, null), "" + retryDelay);
+
+        builder.startElement("", "statistics", "statistics", null);
+        builder.startElement("", "retried", "retried", null);
+        builder.characters("" + retried.get());
+        builder.endElement();
+        builder.startElement("", "recovered", "recovered", null);
+        builder.characters("" + recovered.get());
+        builder.endElement();
+        builder.startElement("", "parked", "parked", null);
+        builder.characters("" + parked.get());
+        builder.endElement();
+        builder.startElement("", "replayed", "replayed", null);
+        builder.characters("" + replayed.get());
+        builder.endElement();
+        builder.endElement(); // statistics
+
+        if (!includeChanges) {
+            builder.endElement(); // quarantine
+            return nodeNr;
+        }
+
+        final List<Path> files = list(RETRY_SUFFIX);
+        files.addAll(list(PARKED_SUFFIX));
+        for (final Path file : files) {
+
+            eXistMessage em = null;
+            try {
+                em = load(file);
+                final Map<String, Object> metadata = em.getMetadata();
+
+                builder.startElement("", "change", "change", null);
+                builder.addAttribute(new QName("id", null, null), getId(file));
+                builder.addAttribute(new QName("state", null, null), file.toString().endsWith(PARKED_SUFFIX) ? "parked" : "retry");
+                builder.addAttribute(new QName("type", null, null), em.getResourceType().name());
+                builder.addAttribute(new QName("operation", null, null), em.getResourceOperation().name());
+                builder.addAttribute(new QName("attempts", null, null), "" + toInt(metadata.get(RETRY_ATTEMPTS)));
+                builder.addAttribute(new QName("firstFailure", null, null), String.valueOf(metadata.get(RETRY_FIRST_FAILURE)));
+                builder.addAttribute(new QName("size", null, null), "" + em.getPayloadSize());
+
+                builder.startElement("", "path", "path", null);
+                builder.characters(em.getResourcePath());
+                builder.endElement();
+
+                if (em.getDestinationPath() != null) {
+                    builder.startElement("", "destination", "destination", null);
+                    builder.characters(em.getDestinationPath());
+                    builder.endElement();
+                }
+
+                builder.startElement("", "error", "error", null);
+                builder.characters(String.valueOf(metadata.get(RETRY_ERROR)));
+                builder.endElement();
+
+                builder.endElement(); // change
+
+            } catch (final IOException ex) {
+                // Removed by a retry meanwhile
+                LOG.debug("Unable to read {}: {}", file, ex.getMessage());
+
+            } finally {
+                if (em != null) {
+                    em.resetPayload();
+                }
+            }
+        }
+
+        builder.endElement(); // quarantine
+        return nodeNr;
+    }
+}
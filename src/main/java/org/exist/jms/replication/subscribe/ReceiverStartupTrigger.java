@@ -60,7 +60,7 @@ public class ReceiverStartupTrigger implements org.exist.storage.StartupTrigger
             jmsConfig.loadSubscriberParameters(parameters);
 
             // Setup listeners
-            final ReplicationJmsListener jmsListener = new ReplicationJmsListener(broker.getBrokerPool());
+            final ReplicationJmsListener jmsListener = new ReplicationJmsListener(broker.getBrokerPool(), parameters);
 
             final Receiver receiver = new Receiver(jmsConfig, jmsListener);
             manager.register(receiver);
@@ -26,17 +26,25 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.collections.Collection;
 import org.exist.collections.IndexInfo;
+import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.jms.replication.shared.BatchEnvelope;
+import org.exist.jms.replication.shared.ContentBuffer;
 import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.replication.shared.Snapshot;
+import org.exist.jms.replication.shared.VersionClock;
+import org.exist.jms.replication.shared.XmlDelta;
 import org.exist.jms.shared.*;
-import org.exist.security.Account;
-import org.exist.security.Group;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
 import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
 import org.exist.util.MimeTable;
 import org.exist.util.MimeType;
 import org.exist.xmldb.XmldbURI;
@@ -46,12 +54,18 @@ import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.zip.GZIPInputStream;
+import java.util.WeakHashMap;
 
 /**
  * JMS listener for receiving JMS replication messages
@@ -61,24 +75,154 @@ import java.util.zip.GZIPInputStream;
 public class ReplicationJmsListener extends eXistMessagingListener {
 
     private final static Logger LOG = LogManager.getLogger(ReplicationJmsListener.class);
+    private static final String CHUNK_DIRECTORY = "jms-chunks";
+    private static final int BATCH_PAYLOAD_THRESHOLD = 1024 * 1024;
+    private static final int CONTENT_MEMORY_THRESHOLD = 4 * 1024 * 1024;
+    private static final int SNAPSHOT_COMMIT_SIZE = 1000;
     private final BrokerPool brokerPool;
     private final org.exist.security.SecurityManager securityManager;
     private final TransactionManager txnManager;
 
     private String localID = null;
     private Report report = null;
+    private final ChunkAssembler chunkAssembler;
+    private final DigestIndex digestIndex;
+    private final VersionIndex versionIndex;
+    private final KnownCollections knownCollections = new KnownCollections();
+    private final PrincipalCache principalCache;
+    private final ApplyLanes applyLanes;
+    private final BatchApply batchApply;
+    private final Quarantine quarantine;
+    private volatile Snapshot lastSnapshot = null;
 
     /**
-     * Constructor
+     * Listeners for loading snapshot files when no replication receiver is registered, per database
+     */
+    private static final Map<BrokerPool, ReplicationJmsListener> SNAPSHOT_LOADERS = new WeakHashMap<>();
+
+    /**
+     * Constructor, changes are applied one by one.
      *
      * @param brokerpool Reference to database broker pool
      */
     public ReplicationJmsListener(final BrokerPool brokerpool) {
+        this(brokerpool, 1, 1, 0, PrincipalCache.DEFAULT_TTL);
+        this.quarantine.registerDefault(this::apply, report);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param brokerpool Reference to database broker pool
+     * @param parameters Subscriber parameters, for the number of apply lanes, the batch size, the principal cache
+     *                   and the retries of failed changes
+     */
+    public ReplicationJmsListener(final BrokerPool brokerpool, final SubscriberParameters parameters) {
+        this(brokerpool, parameters.getApplyLanes(), parameters.getBatchSize(), parameters.getBatchTimeout(),
+                parameters.getPrincipalCacheTtl());
+        this.quarantine.register(this::apply, parameters.getMaxRetries(), parameters.getRetryDelay(), report);
+    }
+
+    private ReplicationJmsListener(final BrokerPool brokerpool, final int nrLanes, final int batchSize,
+                                   final long batchTimeout, final long principalCacheTtl) {
         this.brokerPool = brokerpool;
         this.securityManager = brokerpool.getSecurityManager();
         this.txnManager = brokerpool.getTransactionManager();
+        this.principalCache = new PrincipalCache(securityManager, principalCacheTtl);
         this.localID = Identity.getInstance().getIdentity();
         this.report = getReport();
+        this.chunkAssembler = new ChunkAssembler(getDataDirectory(brokerpool).resolve(CHUNK_DIRECTORY), report);
+        this.digestIndex = DigestIndex.getInstance(getDataDirectory(brokerpool));
+        this.versionIndex = VersionIndex.getInstance(getDataDirectory(brokerpool));
+        this.quarantine = Quarantine.getInstance(getDataDirectory(brokerpool));
+        this.applyLanes = (nrLanes > 1) ? new ApplyLanes(nrLanes, this::applyOrQuarantine, this::getSession, report) : null;
+        this.batchApply = (batchSize > 1)
+                ? new BatchApply(batchSize, batchTimeout, this::applyAll, this::applyOrQuarantine, this::getSession, report)
+                : null;
+    }
+
+    /**
+     * In batch mode the JMS session is transacted, it is committed when a batch is applied.
+     */
+    @Override
+    public boolean isTransacted() {
+        return batchApply != null;
+    }
+
+    /**
+     * Resolved users and groups might have been changed while the receiver was stopped.
+     */
+    @Override
+    public void invalidateCaches() {
+        principalCache.invalidate();
+    }
+
+    /**
+     * Messages in the lanes or in the pending batch are acknowledged later.
+     */
+    @Override
+    public boolean holdsMessages() {
+        return applyLanes != null || batchApply != null;
+    }
+
+    /**
+     * In batch and lane mode the messages are received in a loop, so a batch that waited for the
+     * timeout is committed, and changes applied by the lanes are acknowledged, by the thread of
+     * the session.
+     */
+    @Override
+    public long getReceiveTimeout() {
+        if (batchApply != null) {
+            return batchApply.getPollInterval();
+        }
+        return (applyLanes == null) ? 0 : applyLanes.getPollInterval();
+    }
+
+    @Override
+    public void onIdle() {
+        if (batchApply != null) {
+            batchApply.flushExpired();
+        }
+        if (applyLanes != null) {
+            applyLanes.onIdle();
+        }
+        versionIndex.flush();
+    }
+
+    /**
+     * Apply the changes that are still in the lanes or the pending batch, stop the lane threads and
+     * write the version index to disk.
+     */
+    @Override
+    public void close() {
+        if (applyLanes != null) {
+            applyLanes.close();
+        }
+        if (batchApply != null) {
+            batchApply.close();
+        }
+        versionIndex.flush();
+    }
+
+    @Override
+    public void writeStatistics(final MemTreeBuilder builder) {
+        principalCache.write(builder);
+        quarantine.write(builder, false);
+
+        final Snapshot snapshot = lastSnapshot;
+        if (snapshot != null) {
+            snapshot.write(builder);
+        }
+    }
+
+    /**
+     * Get the data directory of the database, for reassembling chunked transfers and the indexes.
+     */
+    static Path getDataDirectory(final BrokerPool brokerPool) {
+        final Object dataDir = brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        return (dataDir instanceof Path)
+                ? (Path) dataDir
+                : Paths.get(System.getProperty("java.io.tmpdir"));
     }
 
     /**
@@ -115,13 +259,15 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Start reporting
         report.start();
 
+        eXistMessage em = null;
+        boolean submitted = false;
         try {
             // Detect if the sender of the incoming message is the receiver
             if (StringUtils.isNotEmpty(localID)) {
                 final String remoteID = msg.getStringProperty(Constants.EXIST_INSTANCE_ID);
                 if (localID.equals(remoteID)) {
                     LOG.info("Incoming JMS messsage was originally sent by this instance. Stopped processing.");
-                    msg.acknowledge();
+                    acknowledge(msg);
                     return; // Do not throw exeception; Receive was OK
                 }
             }
@@ -129,7 +275,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             if (msg instanceof BytesMessage) {
 
                 // Prepare received message
-                final eXistMessage em = convertMessage((BytesMessage) msg);
+                em = convertMessage((BytesMessage) msg);
 
                 final Enumeration e = msg.getPropertyNames();
                 while (e.hasMoreElements()) {
@@ -139,6 +285,17 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                     }
                 }
 
+                // Reassemble chunked transfer, continue when all chunks are received
+                if (ChunkAssembler.isChunk(em)) {
+                    final eXistMessage assembled = chunkAssembler.add(em);
+                    if (assembled == null) {
+                        report.incMessageCounterOK();
+                        acknowledge(msg);
+                        return;
+                    }
+                    em = assembled;
+                }
+
                 // Report some details into logging
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(em.getFullReport());
@@ -146,27 +303,42 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                     LOG.info(em.getReport());
                 }
 
-                // First step: distinct between update for documents and messsages
-                switch (em.getResourceType()) {
-                    case DOCUMENT:
-                        handleDocument(em);
-                        break;
-                    case COLLECTION:
-                        handleCollection(em);
-                        break;
-                    default:
-                        // We need to ack the message
-                        msg.acknowledge();
+                if (em.getResourceType() == eXistMessage.ResourceType.UNDEFINED) {
+                    // We need to ack the message
+                    acknowledge(msg);
+                    chunkAssembler.complete(em);
 
-                        final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
-                        LOG.error(errorMessage);
-                        throw new MessageReceiveException(errorMessage);
+                    final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
+                    LOG.error(errorMessage);
+                    throw new MessageReceiveException(errorMessage);
                 }
+
+                if (Snapshot.isSnapshot(em) && batchApply != null) {
+                    // Loaded in bulk after the pending batch, committed with the batch
+                    batchApply.addBarrier(em);
+                    return;
+                }
+
+                if (applyLanes != null) {
+                    // Applied by the lane of the change, acknowledged when all delivered changes are applied
+                    applyLanes.submit(msg, em);
+                    submitted = true;
+                    return;
+                }
+
+                if (batchApply != null) {
+                    // Applied with the batch, committed with the JMS transaction
+                    batchApply.add(em);
+                    submitted = true;
+                    return;
+                }
+
+                applyOrQuarantine(em);
                 report.incMessageCounterOK();
 
             } else {
                 // We need to ack the message
-                msg.acknowledge();
+                acknowledge(msg);
 
                 // Only ByteMessage objects supported. 
                 throw new MessageReceiveException(String.format("Could not handle message type %s", msg.getClass().getSimpleName()));
@@ -188,12 +360,369 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             throw new MessageReceiveException(String.format("Could not handle received message: %s", t.getMessage()), t);
 
         } finally {
+            // Remove (temporary) payload data, a submitted change is cleaned up by its lane
+            if (em != null && !submitted) {
+                em.resetPayload();
+            }
+
             // update statistics
             report.stop();
-            report.addCumulatedProcessingTime();
+            if (!submitted) {
+                report.addCumulatedProcessingTime();
+            }
+        }
+    }
+
+    /**
+     * Acknowledge message, in order with the changes that are applied in parallel.
+     */
+    private void acknowledge(final Message msg) throws JMSException {
+        if (applyLanes != null) {
+            applyLanes.acknowledge(msg);
+        } else if (batchApply != null) {
+            batchApply.acknowledge();
+        } else {
+            msg.acknowledge();
+        }
+    }
+
+    /**
+     * Apply change to the database, in its own transaction.
+     *
+     * @param em The change
+     */
+    private void apply(final eXistMessage em) {
+
+        if (Snapshot.isSnapshot(em)) {
+            final String id = String.valueOf(em.getMetadata().get(Snapshot.EXIST_SNAPSHOT_ID));
+            try (InputStream is = em.getPayloadInputStream()) {
+                loadSnapshot(new Snapshot(id, em.getResourcePath()), is, em.getMetadata().get(Constants.EXIST_INSTANCE_ID));
+            } catch (final IOException ex) {
+                throw new MessageReceiveException(String.format("Unable to read snapshot %s: %s", id, ex.getMessage()), ex);
+            }
+            return;
+        }
+
+        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
+             Txn txn = txnManager.beginTransaction()) {
+
+            setOrigin(txn);
+
+            apply(broker, txn, em);
+
+            // Commit change
+            txn.commit();
+
+        } catch (final MessageReceiveException ex) {
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new MessageReceiveException(t.getMessage(), t, em);
         }
     }
 
+    /**
+     * Apply change to the database, in its own transaction. A change that can not be applied is
+     * put in quarantine to be retried later, instead of being delivered again by the broker.
+     *
+     * @param em The change
+     * @throws MessageReceiveException The change could not be applied, nor be put in quarantine.
+     */
+    private void applyOrQuarantine(final eXistMessage em) {
+        try {
+            apply(em);
+
+        } catch (final Throwable t) {
+            try {
+                quarantine.add(em, t);
+                report.addListenerError(t);
+                report.incCounter("nrMessagesQuarantined");
+
+            } catch (final IOException ex) {
+                LOG.error("Unable to put change for '{}' in quarantine: {}", em.getResourcePath(), ex.getMessage());
+                throw t;
+            }
+        }
+
+        // Committed or in quarantine, the chunks are not needed anymore
+        chunkAssembler.complete(em);
+    }
+
+    /**
+     * Get the listener that loads snapshot files of a database when no replication receiver is
+     * registered. The listener is created once; it does not receive messages and does not
+     * apply the changes in quarantine.
+     *
+     * @param brokerPool The database
+     * @return The listener
+     */
+    public static synchronized ReplicationJmsListener getSnapshotLoader(final BrokerPool brokerPool) {
+        return SNAPSHOT_LOADERS.computeIfAbsent(brokerPool,
+                pool -> new ReplicationJmsListener(pool, 1, 1, 0, PrincipalCache.DEFAULT_TTL));
+    }
+
+    /**
+     * Load snapshot from a local file, the file is not removed.
+     *
+     * @param file The file created by the publisher of the snapshot
+     * @return Details of the loaded snapshot
+     * @throws IOException When the file can not be read
+     */
+    public Snapshot loadSnapshot(final Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return loadSnapshot(new Snapshot(file.getFileName().toString(), file.toString()), is, null);
+        }
+    }
+
+    /**
+     * Apply the entries of a snapshot. The entries are committed in transactions of
+     * {@value #SNAPSHOT_COMMIT_SIZE} entries instead of one transaction for the whole tree;
+     * a snapshot that fails is loaded again completely.
+     *
+     * @param snapshot Receives the statistics of the snapshot
+     * @param is       The snapshot envelope
+     * @param origin   Publisher of the snapshot, NULL when the entries carry it
+     */
+    private Snapshot loadSnapshot(final Snapshot snapshot, final InputStream is, final Object origin) {
+
+        LOG.info("Loading snapshot {} of '{}'", snapshot.getId(), snapshot.getCollection());
+
+        try (BatchEnvelope.Reader reader = new BatchEnvelope.Reader(is, BATCH_PAYLOAD_THRESHOLD);
+             DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()))) {
+
+            Txn txn = null;
+            try {
+                eXistMessage entry;
+                while ((entry = reader.next()) != null) {
+                    try {
+                        if (origin != null) {
+                            entry.getMetadata().putIfAbsent(Constants.EXIST_INSTANCE_ID, origin);
+                        }
+
+                        if (entry.getResourceType() == eXistMessage.ResourceType.BATCH) {
+                            throw new MessageReceiveException(String.format("Unknown resource type %s", entry.getResourceType()), entry);
+                        }
+
+                        if (txn == null) {
+                            txn = txnManager.beginTransaction();
+                            setOrigin(txn);
+                        }
+
+                        applyChange(broker, txn, entry);
+
+                        final VersionIndex.Version version = getVersion(entry);
+                        if (version != null) {
+                            snapshot.setPosition(version.getVersion());
+                        }
+                        snapshot.addEntry(entry.getPayloadSize());
+
+                    } finally {
+                        entry.resetPayload();
+                    }
+
+                    if (snapshot.getEntries() % SNAPSHOT_COMMIT_SIZE == 0) {
+                        txn.commit();
+                        txn.close();
+                        txn = null;
+                    }
+                }
+
+                if (txn != null) {
+                    txn.commit();
+                }
+
+            } finally {
+                if (txn != null) {
+                    txn.close();
+                }
+            }
+
+        } catch (final MessageReceiveException ex) {
+            LOG.error("Snapshot {} failed after {} entries: {}", snapshot.getId(), snapshot.getEntries(), ex.getMessage());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new MessageReceiveException(String.format("Snapshot %s failed after %d entries: %s",
+                    snapshot.getId(), snapshot.getEntries(), t.getMessage()), t);
+        }
+
+        snapshot.complete();
+        lastSnapshot = snapshot;
+
+        report.incCounter("nrSnapshotsLoaded");
+        report.addToCounter("nrSnapshotEntriesApplied", snapshot.getEntries());
+
+        LOG.info("Loaded {}, changes up to position {} are skipped.", snapshot, snapshot.getPosition());
+        return snapshot;
+    }
+
+    /**
+     * Apply changes to the database in one transaction.
+     *
+     * @param messages The changes, in the order they were received
+     */
+    private void applyAll(final List<eXistMessage> messages) {
+
+        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
+             Txn txn = txnManager.beginTransaction()) {
+
+            setOrigin(txn);
+
+            for (final eXistMessage em : messages) {
+                apply(broker, txn, em);
+            }
+
+            // Commit changes
+            txn.commit();
+
+            messages.forEach(chunkAssembler::complete);
+
+        } catch (final MessageReceiveException ex) {
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new MessageReceiveException(t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Apply change to the database within a transaction. The transaction is not committed.
+     *
+     * @param broker The broker
+     * @param txn    The transaction
+     * @param em     The change
+     */
+    private void apply(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        if (em.getResourceType() == eXistMessage.ResourceType.BATCH) {
+            handleBatch(broker, txn, em);
+        } else {
+            applyChange(broker, txn, em);
+        }
+    }
+
+    /**
+     * Apply change of a document or collection, unless a newer change of the resource was applied already.
+     */
+    private void applyChange(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        final VersionIndex.Version version = getVersion(em);
+        if (version != null && isSuperseded(em, version)) {
+            LOG.info("Change {} of '{}' is superseded by an applied change, skipped.", em.getResourceOperation(), em.getResourcePath());
+            report.incCounter("nrSupersededSkipped");
+            return;
+        }
+
+        // Accounts and groups are replicated, resolve them again
+        final String resourcePath = em.getResourcePath();
+        if (resourcePath != null && resourcePath.startsWith(org.exist.security.SecurityManager.SECURITY_COLLECTION_URI.toString())) {
+            principalCache.invalidate();
+        }
+
+        // First step: distinct between update for documents and messsages
+        switch (em.getResourceType()) {
+            case DOCUMENT:
+                handleDocument(broker, txn, em);
+                break;
+            case COLLECTION:
+                handleCollection(broker, txn, em);
+                break;
+            default:
+                final String errorMessage = String.format("Unknown resource type %s", em.getResourceType());
+                LOG.error(errorMessage);
+                throw new MessageReceiveException(errorMessage, em);
+        }
+
+        if (version != null) {
+            recordVersion(txn, em, version);
+        }
+    }
+
+    /**
+     * Get version of the change, NULL when the publisher does not send versions.
+     */
+    private VersionIndex.Version getVersion(final eXistMessage em) {
+
+        final Object value = em.getMetadata().get(MessageHelper.EXIST_RESOURCE_VERSION);
+        final long version;
+        if (value instanceof Number) {
+            version = ((Number) value).longValue();
+        } else if (value instanceof String) {
+            try {
+                version = Long.parseLong((String) value);
+            } catch (final NumberFormatException ex) {
+                LOG.error("Invalid version '{}' for '{}'", value, em.getResourcePath());
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        final Object origin = em.getMetadata().get(Constants.EXIST_INSTANCE_ID);
+        return new VersionIndex.Version(version, (origin == null) ? "" : origin.toString(), false);
+    }
+
+    /**
+     * Verify the version of the change against the paths that are changed.
+     */
+    private boolean isSuperseded(final eXistMessage em, final VersionIndex.Version version) {
+        switch (em.getResourceOperation()) {
+            case MOVE:
+                return versionIndex.isSuperseded(em.getResourcePath(), version)
+                        || versionIndex.isSuperseded(em.getDestinationPath(), version);
+            case COPY:
+                return versionIndex.isSuperseded(em.getDestinationPath(), version);
+            default:
+                return versionIndex.isSuperseded(em.getResourcePath(), version);
+        }
+    }
+
+    /**
+     * Record the version of the changed paths when the transaction is committed, an aborted
+     * change leaves the index untouched.
+     */
+    private void recordVersion(final Txn txn, final eXistMessage em, final VersionIndex.Version version) {
+
+        final boolean isCollection = em.getResourceType() == eXistMessage.ResourceType.COLLECTION;
+
+        // Local changes get a higher version than the received change
+        VersionClock.getInstance().observe(version.getVersion());
+
+        txn.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                switch (em.getResourceOperation()) {
+                    case DELETE:
+                    case MOVE:
+                        if (isCollection) {
+                            versionIndex.removeTree(em.getResourcePath(), version.asRemoved());
+                        } else {
+                            versionIndex.put(em.getResourcePath(), version.asRemoved());
+                        }
+
+                        if (em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE) {
+                            versionIndex.put(em.getDestinationPath(), version);
+                        }
+                        break;
+                    case COPY:
+                        versionIndex.put(em.getDestinationPath(), version);
+                        break;
+                    default:
+                        versionIndex.put(em.getResourcePath(), version);
+                        break;
+                }
+            }
+
+            @Override
+            public void abort() {
+                // Nothing recorded
+            }
+        });
+    }
+
     //
     // The code below handles the incoming message ; DW: should be moved to separate class
     //
@@ -220,11 +749,8 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             value = bm.getStringProperty(eXistMessage.EXIST_DESTINATION_PATH);
             em.setDestinationPath(value);
 
-            // This is potentially memory intensive
-            final long size = bm.getBodyLength();
-            final byte[] payload = new byte[(int) size];
-            bm.readBytes(payload);
-            em.setPayload(payload);
+            // The body is streamed when the payload is applied, it is not copied
+            em.setPayload(bm);
 
         } catch (final JMSException ex) {
             final String errorMessage = String.format("Unable to convert incoming message. (%s):  %s", ex.getErrorCode(), ex.getMessage());
@@ -240,33 +766,91 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         return em;
     }
 
+    /**
+     * Handle all changes of a batch message, in the order they were made.
+     *
+     * @param em Message containing the batch envelope
+     */
+    private void handleBatch(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        final Object origin = em.getMetadata().get(Constants.EXIST_INSTANCE_ID);
+
+        int index = 0;
+        try (BatchEnvelope.Reader reader = new BatchEnvelope.Reader(em.getPayloadInputStream(), BATCH_PAYLOAD_THRESHOLD)) {
+
+            LOG.debug("Applying batch of {} changes", reader.getSize());
+
+            eXistMessage entry;
+            while ((entry = reader.next()) != null) {
+                try {
+                    LOG.info("Batch entry {}/{}: {}", index + 1, reader.getSize(), entry.getReport());
+
+                    // The changes of a batch are made by the publisher of the batch
+                    if (origin != null) {
+                        entry.getMetadata().putIfAbsent(Constants.EXIST_INSTANCE_ID, origin);
+                    }
+
+                    if (entry.getResourceType() == eXistMessage.ResourceType.BATCH) {
+                        throw new MessageReceiveException(String.format("Unknown resource type %s", entry.getResourceType()), entry);
+                    }
+                    applyChange(broker, txn, entry);
+
+                } finally {
+                    entry.resetPayload();
+                }
+                index++;
+            }
+
+            report.incCounter("nrBatchesReceived");
+            report.addToCounter("nrBatchEntriesApplied", index);
+
+        } catch (final IOException ex) {
+            throw new MessageReceiveException(String.format("Unable to read batch entry %d: %s", index, ex.getMessage()), em);
+
+        } catch (final MessageReceiveException ex) {
+            report.addToCounter("nrBatchEntriesApplied", index);
+            LOG.error("Batch entry {} failed, the {} preceding change(s) are rolled back with it.", index, index);
+            throw ex;
+        }
+    }
+
     /**
      * Handle operation on documents
      *
      * @param em Message containing information about documents
      */
-    private void handleDocument(final eXistMessage em) {
+    private void handleDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        // Content at these paths changes, or is removed
+        if (em.getResourceOperation() != eXistMessage.ResourceOperation.CREATE
+                && em.getResourceOperation() != eXistMessage.ResourceOperation.UPDATE
+                && em.getResourceOperation() != eXistMessage.ResourceOperation.METADATA) {
+            digestIndex.remove(em.getResourcePath());
+            if (em.getDestinationPath() != null) {
+                digestIndex.remove(em.getDestinationPath());
+            }
+        }
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createUpdateDocument(em);
+                createUpdateDocument(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataDocument(em);
+                updateMetadataDocument(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteDocument(em);
+                deleteDocument(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateDocument(em, false);
+                relocateDocument(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateDocument(em, true);
+                relocateDocument(broker, txn, em, true);
                 break;
 
             default:
@@ -281,28 +865,44 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      *
      * @param em Message containing information about collections
      */
-    private void handleCollection(final eXistMessage em) {
+    private void handleCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
+
+        // These collections do not exist anymore
+        if (em.getResourceOperation() == eXistMessage.ResourceOperation.DELETE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE) {
+            knownCollections.removeTree(em.getResourcePath());
+        }
+
+        // Content in these collections changes, or is removed
+        if (em.getResourceOperation() == eXistMessage.ResourceOperation.DELETE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.MOVE
+                || em.getResourceOperation() == eXistMessage.ResourceOperation.COPY) {
+            digestIndex.removeTree(em.getResourcePath());
+            if (em.getDestinationPath() != null) {
+                digestIndex.removeTree(em.getDestinationPath());
+            }
+        }
 
         switch (em.getResourceOperation()) {
             case CREATE:
             case UPDATE:
-                createCollection(em);
+                createCollection(broker, txn, em);
                 break;
 
             case METADATA:
-                updateMetadataCollection(em);
+                updateMetadataCollection(broker, txn, em);
                 break;
 
             case DELETE:
-                deleteCollection(em);
+                deleteCollection(broker, txn, em);
                 break;
 
             case MOVE:
-                relocateCollection(em, false);
+                relocateCollection(broker, txn, em, false);
                 break;
 
             case COPY:
-                relocateCollection(em, true);
+                relocateCollection(broker, txn, em, true);
                 break;
 
             default:
@@ -315,7 +915,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created document in database
      */
-    private void createUpdateDocument(final eXistMessage em) {
+    private void createUpdateDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final Map<String, Object> metaData = em.getMetadata();
 
@@ -344,99 +944,114 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         final Optional<Long> lastModified = getLastModified(metaData);
         final Optional<Long> createTime = getCreationTime(metaData);
 
-        // Check for collection, create if not existent
-        try {
-            createOrCheckCollection(colURI);
+        // Digest of the content, and whether the content is omitted because it is unchanged
+        final String contentDigest = Objects.toString(metaData.get(MessageHelper.EXIST_CONTENT_DIGEST), null);
+        final boolean contentOmitted = Boolean.parseBoolean(Objects.toString(metaData.get(MessageHelper.EXIST_CONTENT_OMITTED), null));
 
-        } catch (final MessageReceiveException e) {
-            LOG.error(e.getMessage(), e);
-            e.setExistMessage(em);
-            throw e;
+        // Get codec of the payload, gzip when not set
+        final PayloadCodec codec;
+        try {
+            codec = PayloadCodecs.getCodec(Objects.toString(metaData.get(MessageHelper.EXIST_MESSAGE_CONTENTENCODING), null));
+        } catch (final IllegalArgumentException ex) {
+            throw new MessageReceiveException(ex.getMessage(), em);
+        }
 
-        } catch (final Throwable t) {
-            if (LOG.isDebugEnabled()) {
-                LOG.error(t.getMessage(), t);
-            } else {
-                LOG.error(t.getMessage());
-            }
-            throw new MessageReceiveException(String.format("Unable to create collection in database: %s", t.getMessage()), em);
+        // Check for collection, create if not existent; known collections are not checked again
+        final boolean known = knownCollections.contains(colURI.toString());
+        if (known) {
+            report.incCounter("nrCollectionChecksSkipped");
+        } else {
+            checkCollection(broker, txn, colURI, em);
         }
 
 
         // Reference to the collection
         Collection collection = null;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
+        try {
 
             collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
 
+            if (collection == null && known) {
+                // Removed locally after it was registered
+                knownCollections.removeTree(colURI.toString());
+                checkCollection(broker, txn, colURI, em);
+                collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
+            }
+
             if (collection == null) {
                 throw new MessageReceiveException("Collection " + sourcePath + " does not exist", em);
             }
 
-            setOrigin(txn);
+            // Do not write content the document already has
+            if (contentDigest != null) {
+                final DocumentImpl current = collection.getDocument(broker, docURI);
+                if (current != null && digestIndex.matches(em.getResourcePath(), contentDigest, current.getMetadata().getLastModified())) {
+
+                    setMetadata(current, userName, groupName, mode, mimeType, lastModified, createTime);
+                    broker.storeMetadata(txn, current);
+
+                    digestIndex.put(em.getResourcePath(), contentDigest, current.getMetadata().getLastModified());
+                    report.incCounter("nrWritesSkipped");
+                    return;
+                }
+            }
+
+            if (contentOmitted) {
+                LOG.error("Content of '{}' is not sent because it did not change, but the local version is not the "
+                        + "published version. Update is skipped, the document can be requested with replication:sync().",
+                        em.getResourcePath());
+                report.incCounter("nrContentMissing");
+                // Document is not changed
+                return;
+            }
 
             final DocumentImpl doc;
             if (mime.isXMLType()) {
 
-                InputSource inputsource = null;
-
-                // Stream into database
-                try (InputStream byteInputStream = new ByteArrayInputStream(em.getPayload())) {
+                // Updates can be sent as delta against the previously replicated version
+                final String baseDigest = Objects.toString(metaData.get(MessageHelper.EXIST_DELTA_BASE_DIGEST), null);
+                final byte[] content = (baseDigest == null) ? null : applyDelta(broker, collection, docURI, em, codec, baseDigest);
+                if (baseDigest != null && content == null) {
+                    // Document is not changed
+                    return;
+                }
 
-                    // DW: future improvement: determine compression based on property.
-                    GZIPInputStream gis = new GZIPInputStream(byteInputStream);
-                    inputsource = new InputSource(gis);
+                // Decompress once, the content is parsed by the validate and by the store phase
+                try (ContentBuffer buffer = (content == null)
+                        ? ContentBuffer.decompress(em, codec, CONTENT_MEMORY_THRESHOLD) : ContentBuffer.of(content)) {
 
-                    // DW: collection can be null?
-                    final IndexInfo info = collection.validateXMLResource(txn, broker, docURI, inputsource);
+                    final IndexInfo info;
+                    try (InputStream is = buffer.getInputStream()) {
+                        // DW: collection can be null?
+                        info = collection.validateXMLResource(txn, broker, docURI, new InputSource(is));
+                    }
                     doc = info.getDocument();
                     doc.getMetadata().setMimeType(mimeType);
 
-                    // reconstruct gzip input stream
-                    byteInputStream.reset();
-                    gis = new GZIPInputStream(byteInputStream);
-                    inputsource = new InputSource(gis);
-
-                    collection.store(txn, broker, info, inputsource);
-
-
-                } finally {
-                    if (inputsource != null) {
-                        inputsource.getByteStream().close();
+                    try (InputStream is = buffer.getInputStream()) {
+                        collection.store(txn, broker, info, new InputSource(is));
                     }
                 }
 
             } else {
 
                 // Stream into database
-                try (ByteArrayInputStream bais = new ByteArrayInputStream(em.getPayload());
-                     GZIPInputStream gis = new GZIPInputStream(bais);
-                     BufferedInputStream bis = new BufferedInputStream(gis)) {
+                try (InputStream is = em.getPayloadInputStream();
+                     InputStream dis = codec.decompress(is);
+                     BufferedInputStream bis = new BufferedInputStream(dis)) {
                     // DW: collection can be null
-                    doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, em.getPayload().length);
+                    doc = collection.addBinaryResource(txn, broker, docURI, bis, mimeType, em.getPayloadSize());
                 }
             }
 
-            // Set owner,group and permissions
-            final Permission permission = doc.getPermissions();
-            if (userName.isPresent()) {
-                permission.setOwner(userName.get());
-            }
-            if (groupName.isPresent()) {
-                permission.setGroup(groupName.get());
-            }
-            if (mode.isPresent()) {
-                permission.setMode(mode.get());
-            }
-
-            // Set dates
-            lastModified.ifPresent(aLong -> doc.getMetadata().setLastModified(aLong));
-            createTime.ifPresent(aLong -> doc.getMetadata().setCreated(aLong));
+            // Set owner, group, permissions and dates
+            setMetadata(doc, userName, groupName, mode, mimeType, lastModified, createTime);
 
-            // Commit change
-            txn.commit();
+            // Next time the same content is not written again
+            if (contentDigest != null) {
+                digestIndex.put(em.getResourcePath(), contentDigest, doc.getMetadata().getLastModified());
+            }
 
 
         } catch (final Throwable ex) {
@@ -457,11 +1072,96 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
+    /**
+     * Create collection of a document when not existent, and register it as known collection.
+     */
+    private void checkCollection(final DBBroker broker, final Txn txn, final XmldbURI colURI, final eXistMessage em) {
+        try {
+            createOrCheckCollection(broker, txn, colURI);
+            knownCollections.add(colURI.toString());
+
+        } catch (final MessageReceiveException e) {
+            LOG.error(e.getMessage(), e);
+            e.setExistMessage(em);
+            throw e;
+
+        } catch (final Throwable t) {
+            if (LOG.isDebugEnabled()) {
+                LOG.error(t.getMessage(), t);
+            } else {
+                LOG.error(t.getMessage());
+            }
+            throw new MessageReceiveException(String.format("Unable to create collection in database: %s", t.getMessage()), em);
+        }
+    }
+
+    /**
+     * Set owner, group, permissions, mime type and dates of a document.
+     */
+    private void setMetadata(final DocumentImpl doc, final Optional<String> userName, final Optional<String> groupName,
+                             final Optional<Integer> mode, final String mimeType, final Optional<Long> lastModified,
+                             final Optional<Long> createTime) throws PermissionDeniedException {
+
+        final Permission permission = doc.getPermissions();
+        if (userName.isPresent()) {
+            permission.setOwner(userName.get());
+        }
+        if (groupName.isPresent()) {
+            permission.setGroup(groupName.get());
+        }
+        if (mode.isPresent()) {
+            permission.setMode(mode.get());
+        }
+
+        if (mimeType != null) {
+            doc.getMetadata().setMimeType(mimeType);
+        }
+
+        lastModified.ifPresent(aLong -> doc.getMetadata().setLastModified(aLong));
+        createTime.ifPresent(aLong -> doc.getMetadata().setCreated(aLong));
+    }
+
+    /**
+     * Apply delta to the current version of the document.
+     *
+     * @return The new version of the document, NULL when the current version is not the base version of the delta.
+     */
+    private byte[] applyDelta(final DBBroker broker, final Collection collection, final XmldbURI docURI, final eXistMessage em,
+                              final PayloadCodec codec, final String baseDigest) throws IOException, PermissionDeniedException {
+
+        final DocumentImpl current = collection.getDocument(broker, docURI);
+
+        String result = null;
+        if (current != null && current.getResourceType() == DocumentImpl.XML_FILE) {
+
+            final String base = MessageHelper.serializeToString(broker, current);
+            if (baseDigest.equals(XmlDelta.digest(base))) {
+
+                final XmlDelta delta;
+                try (InputStream is = codec.decompress(em.getPayloadInputStream())) {
+                    delta = XmlDelta.read(is);
+                }
+
+                result = delta.apply(base);
+            }
+        }
+
+        if (result == null || !XmlDelta.digest(result).equals(em.getMetadata().get(MessageHelper.EXIST_DELTA_DIGEST))) {
+            LOG.error("Delta for '{}' does not match the local version, update is skipped. The complete document is sent "
+                    + "with a later update, or can be requested with replication:sync().", em.getResourcePath());
+            report.incCounter("nrDeltaBaseMismatch");
+            return null;
+        }
+
+        report.incCounter("nrDeltasApplied");
+        return result.getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Metadata is updated in database
      * <p>
      */
-    private void updateMetadataDocument(final eXistMessage em) {
+    private void updateMetadataDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
         // Permissions
         // Mimetype
         // owner/groupname
@@ -481,16 +1181,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         Collection collection = null;
         final DocumentImpl resource;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
             if (collection == null) {
                 LOG.error("Collection does not exist {}", colURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -498,7 +1194,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
@@ -536,9 +1231,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             // Make persistent
             broker.storeMetadata(txn, resource);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), e, em);
@@ -552,7 +1244,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Remove document from database. If a document or collection does not exist, this is logged.
      */
-    private void deleteDocument(final eXistMessage em) {
+    private void deleteDocument(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         final XmldbURI colURI = sourcePath.removeLastSegment();
@@ -561,16 +1253,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Reference to the collection
         Collection collection = null;
 
-        try (final DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(colURI, Lock.LockMode.WRITE_LOCK);
             if (collection == null) {
                 LOG.error("Collection does not exist {}", colURI);
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -578,7 +1266,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             final DocumentImpl resource = collection.getDocument(broker, docURI);
             if (resource == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // silently ignore
             }
 
@@ -590,9 +1277,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 collection.removeXMLResource(txn, broker, resource.getFileURI());
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -611,31 +1295,24 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Remove collection from database
      */
-    private void deleteCollection(final eXistMessage em) {
+    private void deleteCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
         Collection collection = null;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK);
             if (collection == null) {
                 LOG.error("Collection does not exist: {}", sourcePath);
-                txn.abort();
                 return;  // be silent
             }
 
             // Remove collection
             broker.removeCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -654,7 +1331,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Created collection in database
      */
-    private void createCollection(final eXistMessage em) {
+    private void createCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -668,25 +1345,24 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         final Optional<Long> createTime = getCreationTime(metaData);
 
         // Be sure collection exists
-        createOrCheckCollection(sourcePath);
+        createOrCheckCollection(broker, txn, sourcePath);
 
         // Update meta data
-        updateCollectionMetadata(sourcePath, userName, groupName, mode, createTime);
+        updateCollectionMetadata(broker, txn, sourcePath, userName, groupName, mode, createTime);
+
+        knownCollections.add(sourcePath.toString());
     }
 
     /**
      * Create new collection when required.
      */
-    private Collection createOrCheckCollection(final XmldbURI sourcePath) throws MessageReceiveException {
+    private Collection createOrCheckCollection(final DBBroker broker, final Txn txn, final XmldbURI sourcePath) throws MessageReceiveException {
 
         // Reference to collection
         Collection collection = null;
 
         // New collection to be created
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Create collection when required
             collection = broker.getOrCreateCollection(txn, sourcePath);
@@ -697,9 +1373,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -717,7 +1390,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     /**
      * Create new collection when required, or force update meta-data when already present.
      */
-    private Collection updateCollectionMetadata(final XmldbURI sourcePath, final Optional<String> userName,
+    private Collection updateCollectionMetadata(final DBBroker broker, final Txn txn, final XmldbURI sourcePath, final Optional<String> userName,
                                                 final Optional<String> groupName, final Optional<Integer> mode,
                                                 final Optional<Long> createTime) throws MessageReceiveException {
 
@@ -725,10 +1398,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         Collection collection = null;
 
         // New collection to be created
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Create collection when required
             collection = broker.openCollection(sourcePath, Lock.LockMode.WRITE_LOCK);
@@ -758,9 +1428,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable t) {
 
             if (LOG.isDebugEnabled()) {
@@ -778,7 +1445,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
     }
 
 
-    private void relocateDocument(final eXistMessage em, final boolean keepDocument) {
+    private void relocateDocument(final DBBroker broker, final Txn txn, final eXistMessage em, final boolean keepDocument) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
         final XmldbURI sourceColURI = sourcePath.removeLastSegment();
@@ -796,16 +1463,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Use the correct lock
         final Lock.LockMode lockTypeOriginal = keepDocument ? Lock.LockMode.READ_LOCK : Lock.LockMode.WRITE_LOCK;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             srcCollection = broker.openCollection(sourceColURI, lockTypeOriginal);
             if (srcCollection == null) {
                 LOG.error("Collection not found: {}", sourceColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -813,7 +1476,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             srcDocument = srcCollection.getDocument(broker, sourceDocURI);
             if (srcDocument == null) {
                 LOG.error("No resource found for path: {}", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
@@ -821,7 +1483,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             destCollection = broker.openCollection(destColURI, Lock.LockMode.WRITE_LOCK);
             if (destCollection == null) {
                 LOG.error("Destination collection {} does not exist.", destColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -832,9 +1493,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 broker.moveResource(txn, srcDocument, destCollection, destDocURI);
             }
 
-            // Commit change
-            txnManager.commit(txn);
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), e, em);
@@ -845,7 +1503,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         }
     }
 
-    private void relocateCollection(final eXistMessage em, final boolean keepCollection) {
+    private void relocateCollection(final DBBroker broker, final Txn txn, final eXistMessage em, final boolean keepCollection) {
 
         final XmldbURI sourcePath = XmldbURI.create(em.getResourcePath());
 
@@ -859,16 +1517,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         // Use the correct lock
         final Lock.LockMode lockTypeOriginal = keepCollection ? Lock.LockMode.READ_LOCK : Lock.LockMode.WRITE_LOCK;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open source collection if possible, else abort
             srcCollection = broker.openCollection(sourcePath, lockTypeOriginal);
             if (srcCollection == null) {
                 LOG.error("Source collection {} does not exist.", sourcePath);
-                txn.abort();
                 return; // be silent
             }
 
@@ -877,7 +1531,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             destCollection = broker.openCollection(destColURI, Lock.LockMode.WRITE_LOCK);
             if (destCollection == null) {
                 LOG.error("Destination collection {} does not exist.", destColURI);
-                txn.abort();
                 return; // be silent
             }
 
@@ -888,9 +1541,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
                 broker.moveCollection(txn, srcCollection, destCollection, destDocURI);
             }
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), em);
@@ -906,7 +1556,7 @@ public class ReplicationJmsListener extends eXistMessagingListener {
         return "replication";
     }
 
-    private void updateMetadataCollection(final eXistMessage em) {
+    private void updateMetadataCollection(final DBBroker broker, final Txn txn, final eXistMessage em) {
         final XmldbURI sourceColURI = XmldbURI.create(em.getResourcePath());
 
         final Map<String, Object> metaData = em.getMetadata();
@@ -921,16 +1571,12 @@ public class ReplicationJmsListener extends eXistMessagingListener {
 
         Collection collection = null;
 
-        try (DBBroker broker = brokerPool.get(Optional.of(securityManager.getSystemSubject()));
-             Txn txn = txnManager.beginTransaction()) {
-
-            setOrigin(txn);
+        try {
 
             // Open collection if possible, else abort
             collection = broker.openCollection(sourceColURI, Lock.LockMode.WRITE_LOCK);
             if (collection == null) {
                 LOG.error("Collection not found: {}", sourceColURI);
-                txnManager.abort(txn);
                 return; // be silent
             }
 
@@ -952,9 +1598,6 @@ public class ReplicationJmsListener extends eXistMessagingListener {
             // Make persistent
             broker.saveCollection(txn, collection);
 
-            // Commit change
-            txn.commit();
-
         } catch (final Throwable e) {
             LOG.error(e.getMessage(), e);
             throw new MessageReceiveException(e.getMessage(), em);
@@ -973,36 +1616,13 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      */
     private Optional<String> getOrCreateUserName(final Map<String, Object> metaData) {
 
-        String userName = null;
         final Object prop = metaData.get(MessageHelper.EXIST_RESOURCE_OWNER);
-        if (prop != null && prop instanceof String) {
-            userName = (String) prop;
-        } else {
+        if (!(prop instanceof String)) {
             LOG.debug("No username provided");
             return Optional.empty();
         }
 
-        Account account = securityManager.getAccount(userName);
-        if (account == null) {
-            LOG.error("Username {} does not exist.", userName);
-
-//            final Account user = new UserAider(userName);
-//            try {
-//                securityManager.addAccount(user);
-//                account = user;
-//            } catch (PermissionDeniedException | EXistException e) {
-//                LOG.error(String.format("Unable to create user %s. Fall back to default. %s", userName,e.getMessage()));
-//            }
-//
-//
-//        }
-//
-//        // Fallback
-//        if (account == null) {
-            account = securityManager.getSystemSubject();
-        }
-
-        return Optional.of(account.getName());
+        return Optional.of(principalCache.getAccountName((String) prop));
     }
 
     /**
@@ -1011,34 +1631,13 @@ public class ReplicationJmsListener extends eXistMessagingListener {
      */
     private Optional<String> getOrCreateGroupName(final Map<String, Object> metaData) {
 
-        String groupName = null;
         final Object prop = metaData.get(MessageHelper.EXIST_RESOURCE_GROUP);
-        if (prop != null && prop instanceof String) {
-            groupName = (String) prop;
-        } else {
+        if (!(prop instanceof String)) {
             LOG.debug("No groupname provided");
             return Optional.empty();
         }
 
-        Group group = securityManager.getGroup(groupName);
-        if (group == null) {
-            LOG.info("Group {} does not exist.", groupName);
-//
-//            try {
-//                Group newGroup = new GroupAider(groupName);
-//                securityManager.addGroup(newGroup);
-//                group = newGroup;
-//            } catch (PermissionDeniedException | EXistException e) {
-//                LOG.error(String.format("Unable to create group %s. Fall back to default. %s", groupName, e.getMessage()));
-//            }
-//        }
-//
-//        // Fallback
-//        if (group == null) {
-            group = securityManager.getSystemSubject().getDefaultGroup();
-        }
-
-        return Optional.of(group.getName());
+        return Optional.of(principalCache.getGroupName((String) prop));
     }
 
     private Optional<Long> getLastModified(final Map<String, Object> metaData) {
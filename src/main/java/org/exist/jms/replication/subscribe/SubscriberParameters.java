@@ -39,12 +39,30 @@ public class SubscriberParameters extends ClientParameters {
     public static final String MESSAGE_SELECTOR = Constants.MESSAGE_SELECTOR; //"messageselector";
     public static final String DURABLE = Constants.DURABLE; //"durable";
     public static final String NO_LOCAL = Constants.NO_LOCAL; //"nolocal";
+    public static final String APPLY_LANES = Constants.SUBSCRIBER_APPLY_LANES; //"apply-lanes";
+    public static final String BATCH_SIZE = Constants.SUBSCRIBER_BATCH_SIZE; //"batch-size";
+    public static final String BATCH_TIMEOUT = Constants.SUBSCRIBER_BATCH_TIMEOUT; //"batch-timeout";
+    public static final String PRINCIPAL_CACHE_TTL = Constants.SUBSCRIBER_PRINCIPAL_CACHE_TTL; //"principal-cache-ttl";
+    public static final String MAX_RETRIES = Constants.SUBSCRIBER_MAX_RETRIES; //"max-retries";
+    public static final String RETRY_DELAY = Constants.SUBSCRIBER_RETRY_DELAY; //"retry-delay";
+    public static final String PREFETCH = Constants.CONSUMER_PREFETCH; //"prefetch";
+    public static final String ADAPTIVE_PREFETCH = Constants.CONSUMER_ADAPTIVE_PREFETCH; //"adaptive-prefetch";
+    public static final String TARGET_LATENCY = Constants.CONSUMER_TARGET_LATENCY; //"target-latency";
 
     private String subscriberName;
     private String messageSelector;
 
     private boolean noLocal = Boolean.TRUE;
     private boolean durable = Boolean.TRUE;
+    private int applyLanes = 1;
+    private int batchSize = 1;
+    private int batchTimeout = 500;
+    private int principalCacheTtl = PrincipalCache.DEFAULT_TTL;
+    private int maxRetries = 5;
+    private int retryDelay = 1000;
+    private int prefetch = 0;
+    private boolean adaptivePrefetch = false;
+    private int targetLatency = 1000;
 
     public boolean isDurable() {
         return durable;
@@ -62,6 +80,69 @@ public class SubscriberParameters extends ClientParameters {
         return noLocal;
     }
 
+    /**
+     * @return Number of lanes for applying changes in parallel, 1 when changes are applied one by one.
+     */
+    public int getApplyLanes() {
+        return applyLanes;
+    }
+
+    /**
+     * @return Maximum number of changes applied in one transaction, 1 when changes are applied one by one.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return Maximum time in milliseconds a change waits for its batch to be applied.
+     */
+    public int getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    /**
+     * @return Time to live in milliseconds of resolved users and groups, 0 when they are not cached.
+     */
+    public int getPrincipalCacheTtl() {
+        return principalCacheTtl;
+    }
+
+    /**
+     * @return Number of retries of a change that could not be applied, before the change is parked.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return Delay in milliseconds before the first retry of a change, doubled for each next retry.
+     */
+    public int getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @return Number of messages the provider delivers ahead, 0 when the default of the provider is used.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return TRUE when the prefetch is adjusted at runtime to the apply latency and the free memory.
+     */
+    public boolean isAdaptivePrefetch() {
+        return adaptivePrefetch;
+    }
+
+    /**
+     * @return Apply latency in milliseconds the adjustment of the prefetch aims for.
+     */
+    public int getTargetLatency() {
+        return targetLatency;
+    }
+
     @Override
     public void processParameters() throws ClientParameterException {
 
@@ -157,6 +238,46 @@ public class SubscriberParameters extends ClientParameters {
             }
         }
 
+        // Get number of apply lanes, default one
+        applyLanes = getInteger(APPLY_LANES, applyLanes, 1);
+
+        // Get batch size and time window, default no batches
+        batchSize = getInteger(BATCH_SIZE, batchSize, 1);
+        batchTimeout = getInteger(BATCH_TIMEOUT, batchTimeout, 1);
+
+        if (applyLanes > 1 && batchSize > 1) {
+            final String errorText = "'" + APPLY_LANES + "' and '" + BATCH_SIZE + "' can not be combined.";
+            LOG.error(errorText);
+            throw new ClientParameterException(errorText);
+        }
+
+        // Get time to live of resolved users and groups
+        principalCacheTtl = getInteger(PRINCIPAL_CACHE_TTL, principalCacheTtl, 0);
+
+        // Get retries of changes that could not be applied
+        maxRetries = getInteger(MAX_RETRIES, maxRetries, 0);
+        retryDelay = getInteger(RETRY_DELAY, retryDelay, 1);
+
+        // Get consumer flow control, default the prefetch of the provider
+        prefetch = getInteger(PREFETCH, prefetch, 0);
+        targetLatency = getInteger(TARGET_LATENCY, targetLatency, 1);
+
+        value = props.getProperty(ADAPTIVE_PREFETCH);
+        if (value != null) {
+
+            if ("FALSE".equalsIgnoreCase(value) || "NO".equalsIgnoreCase(value)) {
+                adaptivePrefetch = false;
+
+            } else if ("TRUE".equalsIgnoreCase(value) || "YES".equalsIgnoreCase(value)) {
+                adaptivePrefetch = true;
+
+            } else {
+                final String errorText = "'" + ADAPTIVE_PREFETCH + "' contains wrong value '" + value + "'";
+                LOG.error(errorText);
+                throw new ClientParameterException(errorText);
+            }
+        }
+
         // FOr a durable connection (default) a clientId must be set
         if (durable && clientId == null) {
             final String errorText = "For durable connections the " + Constants.CLIENT_ID + " must be set.";
@@ -169,11 +290,36 @@ public class SubscriberParameters extends ClientParameters {
         connectionPassword = props.getProperty(Constants.JMS_CONNECTION_PASSWORD);
     }
 
+    private int getInteger(final String key, final int defaultValue, final int minimum) throws ClientParameterException {
+
+        final String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+
+        int retVal;
+        try {
+            retVal = Integer.parseInt(value.trim());
+        } catch (final NumberFormatException ex) {
+            retVal = -1;
+        }
+
+        if (retVal < minimum) {
+            final String errorText = "'" + key + "' contains wrong value '" + value + "'";
+            LOG.error(errorText);
+            throw new ClientParameterException(errorText);
+        }
+        return retVal;
+    }
+
     @Override
     public String getReport() {
-        return String.format("Subscriber configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s'",
+        return String.format("Subscriber configuration: %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%s' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%d' %s='%s' %s='%d'",
                 Context.INITIAL_CONTEXT_FACTORY, initialContextFactory, Context.PROVIDER_URL, providerUrl,
                 Constants.DESTINATION, topic, Constants.CLIENT_ID, clientId, SUBSCRIBER_NAME, subscriberName,
-                MESSAGE_SELECTOR, messageSelector, NO_LOCAL, noLocal, DURABLE, durable);
+                MESSAGE_SELECTOR, messageSelector, NO_LOCAL, noLocal, DURABLE, durable, APPLY_LANES, applyLanes,
+                BATCH_SIZE, batchSize, BATCH_TIMEOUT, batchTimeout, PRINCIPAL_CACHE_TTL, principalCacheTtl,
+                MAX_RETRIES, maxRetries, RETRY_DELAY, retryDelay,
+                PREFETCH, prefetch, ADAPTIVE_PREFETCH, adaptivePrefetch, TARGET_LATENCY, targetLatency);
     }
 }
@@ -0,0 +1,344 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.replication.subscribe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.jms.replication.shared.VersionClock;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the last applied version of the replicated resources. With the index a replica
+ * recognizes changes that are superseded by a change it already applied, e.g. after a
+ * redelivery or when changes of different publishers cross.
+ * <p>
+ * A removed resource is kept as tombstone, so an older change does not create it again;
+ * the tombstone of a collection covers all resources in the collection. Tombstones are
+ * discarded after a retention period.
+ * <p>
+ * To keep the index small, only versions newer than a watermark of their origin are kept: the
+ * watermark trails the newest version of the origin by {@link #VERSION_RETENTION}. A change of an
+ * origin below its watermark is superseded, the origin published later changes since then. A
+ * change that crosses the change of another origin is only recognized within the retention period.
+ * <p>
+ * The index is kept in memory and is persisted as an append-only log in the data directory of the
+ * database; the log is flushed at most once per {@link #FLUSH_INTERVAL} and when the receiver is
+ * idle or closed. The log is compacted when it is loaded, when most of its lines are outdated and
+ * when versions passed the watermark. Versions are recorded when the transaction that applied the
+ * change is committed.
+ */
+class VersionIndex {
+
+    private final static Logger LOG = LogManager.getLogger(VersionIndex.class);
+
+    private static final String INDEX_FILE = "jms-version-index";
+
+    private static final long TOMBSTONE_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Time a version is kept after a newer change of the same origin
+     */
+    private static final long VERSION_RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Minimum time in milliseconds between two flushes of the log
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private static final String PUT = "put";
+    private static final String TOMBSTONE = "tomb";
+    private static final String REMOVE = "del";
+    private static final String REMOVE_TREE = "deltree";
+    private static final String WATERMARK = "mark";
+
+    /**
+     * Minimum number of lines in the log before it is compacted at runtime
+     */
+    private static final int COMPACT_MIN_LINES = 10000;
+
+    private static final Map<Path, VersionIndex> INSTANCES = new HashMap<>();
+
+    private final Path file;
+    private final Map<String, Version> entries = new HashMap<>();
+    private final Map<String, Long> newest = new HashMap<>();
+    private Writer writer;
+    private long lines = 0;
+    private long lastFlush = 0;
+    private long lastCompact = 0;
+
+    private VersionIndex(final Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Get the index of a database, the index is shared by all receivers of the database.
+     *
+     * @param dataDirectory The data directory of the database
+     * @return The index
+     */
+    static synchronized VersionIndex getInstance(final Path dataDirectory) {
+        return INSTANCES.computeIfAbsent(dataDirectory.resolve(INDEX_FILE), VersionIndex::new);
+    }
+
+    /**
+     * Verify if a change is superseded by an applied change of the resource, or by the
+     * removal of one of its collections.
+     *
+     * @param path    Path of the resource
+     * @param version Version of the change
+     * @return TRUE when the version is not newer than the applied version.
+     */
+    synchronized boolean isSuperseded(final String path, final Version version) {
+
+        // Later changes of the origin were applied already
+        if (isBelowWatermark(version)) {
+            return true;
+        }
+
+        final Version applied = entries.get(path);
+        if (applied != null && !version.isNewerThan(applied)) {
+            return true;
+        }
+
+        // Removed with a collection
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            final Version collection = entries.get(path.substring(0, slash));
+            if (collection != null && collection.removed && !version.isNewerThan(collection)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the version of a change.
+     *
+     * @param path    Path of the resource
+     * @param version Version of the change
+     */
+    synchronized void put(final String path, final Version version) {
+        entries.put(path, version);
+        newest.merge(version.origin, version.version, Math::max);
+        append((version.removed ? TOMBSTONE : PUT) + '\t' + version.version + '\t' + version.origin + '\t' + path);
+    }
+
+    /**
+     * Record the removal of a collection; the entries of the resources in the collection
+     * are replaced by the tombstone of the collection.
+     *
+     * @param path    Path of the collection
+     * @param version Version of the change
+     */
+    synchronized void removeTree(final String path, final Version version) {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        if (entries.keySet().removeIf(entry -> entry.startsWith(prefix))) {
+            append(REMOVE_TREE + '\t' + prefix);
+        }
+        put(path, version);
+    }
+
+    /**
+     * @return Number of resources in the index.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the buffered lines of the log to disk.
+     */
+    synchronized void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+                lastFlush = System.currentTimeMillis();
+
+            } catch (final IOException ex) {
+                LOG.error("Unable to update version index {}: {}", file, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return TRUE when the version is older than the versions of its origin that are kept.
+     */
+    private boolean isBelowWatermark(final Version version) {
+        final Long last = newest.get(version.origin);
+        return last != null
+                && VersionClock.getTime(version.version) < VersionClock.getTime(last) - VERSION_RETENTION;
+    }
+
+    private void append(final String line) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.write('\n');
+            lines++;
+
+        } catch (final IOException ex) {
+            // Without entry an older change is not recognized after a restart
+            LOG.error("Unable to update version index {}: {}", file, ex.getMessage());
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - lastFlush >= FLUSH_INTERVAL) {
+            flush();
+        }
+
+        // More than half of the lines are outdated, or versions passed the watermark
+        if (lines >= COMPACT_MIN_LINES && (lines > 2L * entries.size() || now - lastCompact >= VERSION_RETENTION)) {
+            compact();
+        }
+    }
+
+    /**
+     * Replay the log, then compact it.
+     */
+    private void load() {
+
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", 4);
+                if ((PUT.equals(fields[0]) || TOMBSTONE.equals(fields[0])) && fields.length == 4) {
+                    final Version version = new Version(Long.parseLong(fields[1]), fields[2], TOMBSTONE.equals(fields[0]));
+                    entries.put(fields[3], version);
+                    newest.merge(version.origin, version.version, Math::max);
+
+                } else if (WATERMARK.equals(fields[0]) && fields.length == 3) {
+                    newest.merge(fields[2].intern(), Long.parseLong(fields[1]), Math::max);
+
+                } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+                    entries.remove(fields[1]);
+
+                } else if (REMOVE_TREE.equals(fields[0]) && fields.length == 2) {
+                    entries.keySet().removeIf(path -> path.startsWith(fields[1]));
+                }
+            }
+
+        } catch (final IOException | NumberFormatException ex) {
+            // Incomplete last line after a crash, or unreadable file
+            LOG.error("Unable to read version index {} completely: {}", file, ex.getMessage());
+        }
+
+        compact();
+
+        LOG.info("Loaded version index {} with {} entries.", file, entries.size());
+    }
+
+    /**
+     * Write the newest version per origin and the current entries, without expired tombstones and
+     * versions below the watermark, as a new log.
+     */
+    private void compact() {
+
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (final IOException ex) {
+                LOG.debug(ex.getMessage());
+            }
+            writer = null;
+        }
+
+        lastCompact = System.currentTimeMillis();
+        final long expired = lastCompact - TOMBSTONE_RETENTION;
+        entries.values().removeIf(version -> version.removed
+                ? VersionClock.getTime(version.version) < expired
+                : isBelowWatermark(version));
+
+        final Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter w = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (final Map.Entry<String, Long> entry : newest.entrySet()) {
+                    w.write(WATERMARK + '\t' + entry.getValue() + '\t' + entry.getKey());
+                    w.write('\n');
+                }
+                for (final Map.Entry<String, Version> entry : entries.entrySet()) {
+                    final Version version = entry.getValue();
+                    w.write((version.removed ? TOMBSTONE : PUT) + '\t' + version.version + '\t' + version.origin + '\t' + entry.getKey());
+                    w.write('\n');
+                }
+            }
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lines = newest.size() + entries.size();
+
+        } catch (final IOException ex) {
+            LOG.error("Unable to compact version index {}: {}", file, ex.getMessage());
+        }
+    }
+
+    /**
+     * Version of a change; changes with the same version are ordered by the id of their origin.
+     */
+    static class Version {
+        private final long version;
+        private final String origin;
+        private final boolean removed;
+
+        /**
+         * Constructor
+         *
+         * @param version Version of the change
+         * @param origin  Identity of the instance that made the change
+         * @param removed TRUE when the change removes the resource
+         */
+        Version(final long version, final String origin, final boolean removed) {
+            this.version = version;
+            // Shared by all entries of the origin
+            this.origin = origin.intern();
+            this.removed = removed;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        Version asRemoved() {
+            return new Version(version, origin, true);
+        }
+
+        boolean isNewerThan(final Version other) {
+            return version > other.version || (version == other.version && origin.compareTo(other.origin) > 0);
+        }
+    }
+}
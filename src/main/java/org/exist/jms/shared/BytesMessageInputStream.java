@@ -0,0 +1,86 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream for reading the body of a received bytes message, without copying the body
+ * into one array. The body is read from the start.
+ */
+class BytesMessageInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BytesMessage message;
+    private byte[] buffer;
+
+    /**
+     * Constructor
+     *
+     * @param message The received message
+     * @throws IOException When the message could not be reset.
+     */
+    BytesMessageInputStream(final BytesMessage message) throws IOException {
+        this.message = message;
+        try {
+            message.reset();
+        } catch (final JMSException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int len = read(single, 0, 1);
+        return (len == -1) ? -1 : (single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        try {
+            if (off == 0) {
+                return message.readBytes(b, len);
+            }
+
+            // The message can only fill an array from its start
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            final int read = message.readBytes(buffer, Math.min(len, BUFFER_SIZE));
+            if (read > 0) {
+                System.arraycopy(buffer, 0, b, off, read);
+            }
+            return read;
+
+        } catch (final JMSException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+}
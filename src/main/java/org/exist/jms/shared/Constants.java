@@ -60,6 +60,7 @@ public class Constants {
     public static final String JMS_EXPIRATION = "jms.expiration";
     public static final String JMS_MESSAGE_ID = "jms.message-id";
     public static final String JMS_PRIORITY = "jms.priority";
+    public static final String JMS_REPLY_TO = "jms.reply-to";
     public static final String JMS_TIMESTAMP = "jms.timestamp";
     public static final String JMS_TYPE = "jms.type";
     /*
@@ -77,16 +78,69 @@ public class Constants {
      * JMS message selector
      */
     public static final String MESSAGE_SELECTOR = "consumer.message-selector";
+    /*
+     * Consumer flow control: number of messages delivered ahead by the provider, adjustment at runtime
+     * and the apply latency in milliseconds the adjustment aims for
+     */
+    public static final String CONSUMER_PREFETCH = "consumer.prefetch";
+    public static final String CONSUMER_ADAPTIVE_PREFETCH = "consumer.adaptive-prefetch";
+    public static final String CONSUMER_TARGET_LATENCY = "consumer.target-latency";
     /*
      * Topic parameters (durable, prefent backfire)
      */
     public static final String DURABLE = "subscriber.durable";
     public static final String NO_LOCAL = "subscriber.nolocal";
     public static final String SUBSCRIBER_NAME = "subscriber.name";
+    /*
+     * Number of lanes for applying changes in parallel
+     */
+    public static final String SUBSCRIBER_APPLY_LANES = "subscriber.apply-lanes";
+    /*
+     * Applying changes in batches, maximum number of changes and time window in milliseconds
+     */
+    public static final String SUBSCRIBER_BATCH_SIZE = "subscriber.batch-size";
+    public static final String SUBSCRIBER_BATCH_TIMEOUT = "subscriber.batch-timeout";
+    /*
+     * Time to live in milliseconds of resolved users and groups, 0 disables the cache
+     */
+    public static final String SUBSCRIBER_PRINCIPAL_CACHE_TTL = "subscriber.principal-cache-ttl";
+    /*
+     * Retries of changes that could not be applied, number of retries before the change is parked,
+     * and delay in milliseconds before the first retry
+     */
+    public static final String SUBSCRIBER_MAX_RETRIES = "subscriber.max-retries";
+    public static final String SUBSCRIBER_RETRY_DELAY = "subscriber.retry-delay";
     /*
      * Producer parameters
      */
     public static final String PRODUCER_TTL = "producer.time-to-live";
     public static final String PRODUCER_PRIORITY = "producer.priority";
     public static final String PRODUCER_DELIVERY_MODE = "producer.delivery-mode";
+    public static final String PRODUCER_IDLE_TIMEOUT = "producer.idle-timeout";
+    /*
+     * Connection pool parameters; maximum number of connections per broker, maximum number of
+     * sessions per connection, and time in milliseconds before an unused connection is closed
+     */
+    public static final String POOL_MAX_CONNECTIONS = "pool.max-connections";
+    public static final String POOL_MAX_SESSIONS = "pool.max-sessions";
+    public static final String POOL_IDLE_TIMEOUT = "pool.idle-timeout";
+    /*
+     * Publisher (replication trigger) parameters
+     */
+    public static final String PUBLISHER_ASYNC = "publisher.async";
+    public static final String PUBLISHER_QUEUE_SIZE = "publisher.queue-size";
+    public static final String PUBLISHER_THREADS = "publisher.threads";
+    public static final String PUBLISHER_OVERFLOW_POLICY = "publisher.overflow-policy";
+    public static final String PUBLISHER_DRAIN_TIMEOUT = "publisher.drain-timeout";
+    public static final String PUBLISHER_SPILL_THRESHOLD = "publisher.spill-threshold";
+    public static final String PUBLISHER_CHUNK_SIZE = "publisher.chunk-size";
+    public static final String PUBLISHER_CONTENT_ENCODING = "publisher.content-encoding";
+    public static final String PUBLISHER_COMPRESSION_LEVEL = "publisher.compression-level";
+    public static final String PUBLISHER_TRANSACTION_BATCH = "publisher.transaction-batch";
+    public static final String PUBLISHER_BATCH_MAX_SIZE = "publisher.batch-max-size";
+    public static final String PUBLISHER_COALESCE_WINDOW = "publisher.coalesce-window";
+    public static final String PUBLISHER_DELTA = "publisher.delta";
+    public static final String PUBLISHER_DELTA_MIN_SIZE = "publisher.delta-min-size";
+    public static final String PUBLISHER_DELTA_FULL_INTERVAL = "publisher.delta-full-interval";
+    public static final String PUBLISHER_OMIT_UNCHANGED = "publisher.omit-unchanged";
 }
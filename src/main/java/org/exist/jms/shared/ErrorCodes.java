@@ -50,6 +50,9 @@ public class ErrorCodes {
 
     public final static ErrorCode JMS030 = new JmsErrorCode("JMS030", "Missing collection trigger configuration.");
     public final static ErrorCode JMS031 = new JmsErrorCode("JMS031", "Missing resource.");
+    public final static ErrorCode JMS032 = new JmsErrorCode("JMS032", "Unsupported content encoding.");
+    public final static ErrorCode JMS033 = new JmsErrorCode("JMS033", "No replication receiver to apply quarantined changes.");
+    public final static ErrorCode JMS034 = new JmsErrorCode("JMS034", "No reply received in time.");
 
 
     protected final static class JmsErrorCode extends ErrorCode {
@@ -103,6 +103,11 @@ public class JmsConfiguration extends MessagingConfiguration {
         setLocalProperty(Constants.MESSAGE_SELECTOR, params.getMessageSelector());
         setLocalProperty(Constants.NO_LOCAL, "" + params.isNoLocal());
         setLocalProperty(Constants.SUBSCRIBER_NAME, params.getSubscriberName());
+        if (params.getPrefetch() > 0) {
+            setLocalProperty(Constants.CONSUMER_PREFETCH, "" + params.getPrefetch());
+        }
+        setLocalProperty(Constants.CONSUMER_ADAPTIVE_PREFETCH, "" + params.isAdaptivePrefetch());
+        setLocalProperty(Constants.CONSUMER_TARGET_LATENCY, "" + params.getTargetLatency());
 
         setLocalProperty(Constants.JMS_CONNECTION_USERNAME, params.getConnectionUsername());
         setLocalProperty(Constants.JMS_CONNECTION_PASSWORD, params.getConnectionPassword());
@@ -264,6 +269,28 @@ public class JmsConfiguration extends MessagingConfiguration {
         return getProperty(Constants.SUBSCRIBER_NAME);
     }
 
+    /**
+     * @return Number of messages the provider delivers ahead, 0 when the default of the provider is used.
+     */
+    public int getPrefetch() {
+        return Math.max(0, NumberUtils.toInt(getProperty(Constants.CONSUMER_PREFETCH), 0));
+    }
+
+    /**
+     * @return TRUE when the prefetch is adjusted at runtime.
+     */
+    public boolean isAdaptivePrefetch() {
+        return BooleanUtils.toBoolean(getProperty(Constants.CONSUMER_ADAPTIVE_PREFETCH));
+    }
+
+    /**
+     * @return Apply latency in milliseconds the adjustment of the prefetch aims for.
+     */
+    public int getTargetLatency() {
+        final int latency = NumberUtils.toInt(getProperty(Constants.CONSUMER_TARGET_LATENCY), 1000);
+        return latency > 0 ? latency : 1000;
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
@@ -278,6 +305,8 @@ public class JmsConfiguration extends MessagingConfiguration {
                 .append(Constants.PRODUCER_TTL, getTimeToLive())
                 .append(Constants.DURABLE, isDurable())
                 .append(Constants.NO_LOCAL, isNoLocal())
+                .append(Constants.CONSUMER_PREFETCH, getPrefetch())
+                .append(Constants.CONSUMER_ADAPTIVE_PREFETCH, isAdaptivePrefetch())
                 .toString();
     }
 
@@ -0,0 +1,172 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of JNDI initial contexts and the objects that are looked up, typically connection
+ * factories and destinations. A context is created once per environment; each name is looked
+ * up once per context. When a connection fails, the context of its environment must be
+ * invalidated, so the objects are looked up again for the next connection.
+ */
+public class JndiCache {
+
+    private final static Logger LOG = LogManager.getLogger(JndiCache.class);
+
+    private static JndiCache instance;
+
+    private final Map<String, CachedContext> contexts = new ConcurrentHashMap<>();
+
+    private JndiCache() {
+        // Singleton
+    }
+
+    public static synchronized JndiCache getInstance() {
+
+        if (null == instance) {
+            instance = new JndiCache();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create the environment of the initial context for the JMS configuration.
+     *
+     * @param jmsConfig JMS configuration
+     * @return Initial context factory and provider URL
+     */
+    public static Properties createEnvironment(final JmsConfiguration jmsConfig) {
+        final Properties environment = new Properties();
+        environment.setProperty(Context.INITIAL_CONTEXT_FACTORY, jmsConfig.getInitialContextFactory());
+        environment.setProperty(Context.PROVIDER_URL, jmsConfig.getBrokerURL());
+        return environment;
+    }
+
+    private static String createKey(final Properties environment) {
+        return new TreeMap<>(environment).toString();
+    }
+
+    /**
+     * Lookup object, the result is cached.
+     *
+     * @param environment Environment of the initial context
+     * @param name        Name of the object
+     * @param type        Expected type of the object
+     * @param <T>         Type of the object
+     * @return The object
+     * @throws NamingException The context can not be created, or the name can not be resolved.
+     */
+    public <T> T lookup(final Properties environment, final String name, final Class<T> type) throws NamingException {
+
+        final String key = createKey(environment);
+
+        CachedContext context = contexts.get(key);
+        if (context == null) {
+            final CachedContext created = new CachedContext(new InitialContext(environment));
+            context = contexts.putIfAbsent(key, created);
+            if (context == null) {
+                context = created;
+            } else {
+                // Created concurrently by another thread
+                created.close();
+            }
+        }
+
+        final Object object = context.lookup(name);
+        if (!type.isInstance(object)) {
+            throw new NamingException(String.format("'%s' is a %s, expected a %s",
+                    name, object.getClass().getName(), type.getName()));
+        }
+        return type.cast(object);
+    }
+
+    /**
+     * Remove the context and its cached objects, e.g. after a connection failed.
+     *
+     * @param environment Environment of the initial context
+     */
+    public void invalidate(final Properties environment) {
+        final CachedContext context = contexts.remove(createKey(environment));
+        if (context != null) {
+            LOG.debug("Invalidated JNDI context for {}", environment.getProperty(Context.PROVIDER_URL));
+            context.close();
+        }
+    }
+
+    /**
+     * Remove all contexts and their cached objects.
+     */
+    public void clear() {
+        contexts.keySet().forEach(key -> {
+            final CachedContext context = contexts.remove(key);
+            if (context != null) {
+                context.close();
+            }
+        });
+    }
+
+    /**
+     * Initial context with the objects that are looked up.
+     */
+    private static class CachedContext {
+
+        private final Context context;
+        private final Map<String, Object> objects = new ConcurrentHashMap<>();
+
+        CachedContext(final Context context) {
+            this.context = context;
+        }
+
+        Object lookup(final String name) throws NamingException {
+
+            Object object = objects.get(name);
+            if (object == null) {
+                // Contexts are not guaranteed to be thread safe
+                synchronized (context) {
+                    object = context.lookup(name);
+                }
+                objects.put(name, object);
+            }
+            return object;
+        }
+
+        void close() {
+            objects.clear();
+            try {
+                synchronized (context) {
+                    context.close();
+                }
+            } catch (final NamingException ex) {
+                LOG.debug("Problem closing context, ignored. {}", ex.getMessage());
+            }
+        }
+    }
+}
@@ -27,7 +27,12 @@ import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.jms.shared.ReportItem.CONTEXT;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -42,7 +47,7 @@ public class Report {
     /**
      * Storage for errors
      */
-    private final List<ReportItem> errors = new ArrayList<>();
+    private final List<ReportItem> errors = Collections.synchronizedList(new ArrayList<>());
     /*
      * Raw times
      */
@@ -57,11 +62,15 @@ public class Report {
      * Cumulated time successful messages
      */
     private long totalTime = 0;
+    /**
+     * Additional named counters
+     */
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
 
     /**
      * Increase the nr of total received messages
      */
-    public void incMessageCounterTotal() {
+    public synchronized void incMessageCounterTotal() {
         messageCounterTotal++;
     }
 
@@ -82,7 +91,7 @@ public class Report {
     /**
      * Increase the number of correctly processed messages
      */
-    public void incMessageCounterOK() {
+    public synchronized void incMessageCounterOK() {
         messageCounterOK++;
     }
 
@@ -96,10 +105,19 @@ public class Report {
     /**
      * Add the current processing time to the total processing time
      */
-    public void addCumulatedProcessingTime() {
+    public synchronized void addCumulatedProcessingTime() {
         this.totalTime += (stopTime - startTime);
     }
 
+    /**
+     * Add processing time of a message that is processed outside the listener thread.
+     *
+     * @param duration Processing time in milliseconds
+     */
+    public synchronized void addProcessingTime(final long duration) {
+        this.totalTime += duration;
+    }
+
     /**
      * @return Total processing time
      */
@@ -107,6 +125,34 @@ public class Report {
         return totalTime;
     }
 
+    /**
+     * Add value to a named counter, the counter is created when not existent.
+     *
+     * @param name  Name of the counter
+     * @param delta Value to add
+     */
+    public void addToCounter(final String name, final long delta) {
+        counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Increase a named counter by one.
+     *
+     * @param name Name of the counter
+     */
+    public void incCounter(final String name) {
+        addToCounter(name, 1);
+    }
+
+    /**
+     * @return Sorted snapshot of all named counters
+     */
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> retVal = new TreeMap<>();
+        counters.forEach((key, value) -> retVal.put(key, value.get()));
+        return retVal;
+    }
+
     /**
      * Add an Listener error to the report
      *
@@ -189,6 +235,7 @@ public class Report {
         errors.clear();
         messageCounterOK = 0;
         messageCounterTotal = 0;
+        counters.clear();
 
     }
 }
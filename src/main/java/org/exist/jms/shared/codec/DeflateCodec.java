@@ -0,0 +1,81 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate (zlib) codec. Levels 0-9 are supported, level 1 is fastest and level 9
+ * gives the best compression; level 0 does not compress.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    public static final String NAME = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream os, final int level) throws IOException {
+        final Deflater deflater = new Deflater(level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level);
+        return new DeflaterOutputStream(os, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Not done by the stream for a provided deflater
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isValidLevel(final int level) {
+        return level == DEFAULT_LEVEL || (level >= 0 && level <= 9);
+    }
+
+    @Override
+    public InputStream decompress(final InputStream is) throws IOException {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(is, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Not done by the stream for a provided inflater
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
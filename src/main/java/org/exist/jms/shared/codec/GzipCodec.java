@@ -0,0 +1,62 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIP codec, the default codec. Levels 0-9 are supported, level 0 does not compress.
+ */
+public class GzipCodec implements PayloadCodec {
+
+    public static final String NAME = "gzip";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream os, final int level) throws IOException {
+        return new GZIPOutputStream(os, BUFFER_SIZE) {
+            {
+                if (level != DEFAULT_LEVEL) {
+                    def.setLevel(level);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isValidLevel(final int level) {
+        return level == DEFAULT_LEVEL || (level >= 0 && level <= 9);
+    }
+
+    @Override
+    public InputStream decompress(final InputStream is) throws IOException {
+        return new GZIPInputStream(is, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * LZ4 codec using the LZ4 frame format. Without a level the fast compressor is used,
+ * levels 1-17 select the high compression compressor.
+ */
+public class Lz4Codec implements PayloadCodec {
+
+    public static final String NAME = "lz4";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream os, final int level) throws IOException {
+
+        final LZ4Factory factory = LZ4Factory.fastestInstance();
+        final LZ4Compressor compressor = (level <= 0) ? factory.fastCompressor() : factory.highCompressor(level);
+
+        return new LZ4FrameOutputStream(os, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB, -1L, compressor,
+                XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+    }
+
+    @Override
+    public boolean isValidLevel(final int level) {
+        return level == DEFAULT_LEVEL || (level >= 1 && level <= 17);
+    }
+
+    @Override
+    public InputStream decompress(final InputStream is) throws IOException {
+        return new LZ4FrameInputStream(is);
+    }
+
+    @Override
+    public boolean isBufferedForReuse() {
+        // Decompressing is faster than buffering
+        return false;
+    }
+}
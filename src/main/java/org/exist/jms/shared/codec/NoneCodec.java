@@ -0,0 +1,52 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec that does not compress, suitable for fast networks or already compressed data.
+ */
+public class NoneCodec implements PayloadCodec {
+
+    public static final String NAME = "none";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream os, final int level) {
+        return os;
+    }
+
+    @Override
+    public InputStream decompress(final InputStream is) {
+        return is;
+    }
+
+    @Override
+    public boolean isBufferedForReuse() {
+        // Data is not compressed
+        return false;
+    }
+}
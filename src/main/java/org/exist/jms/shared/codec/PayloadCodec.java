@@ -0,0 +1,79 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec for message payloads. The name of the codec is transferred as
+ * value of the content-encoding message property, the receiver uses it to select the
+ * codec for decoding the payload.
+ * <p>
+ * Additional codecs can be registered via {@link java.util.ServiceLoader}.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Compression level that selects the default of the codec.
+     */
+    int DEFAULT_LEVEL = -1;
+
+    /**
+     * @return Name of the codec, used as content-encoding value.
+     */
+    String getName();
+
+    /**
+     * Wrap stream for compressing data. Closing the returned stream closes the wrapped stream.
+     *
+     * @param os    The stream receiving the compressed data
+     * @param level Compression level, meaning depends on codec; {@link #DEFAULT_LEVEL} for the default.
+     * @return Stream to write the uncompressed data to
+     * @throws IOException When the stream could not be created.
+     */
+    OutputStream compress(OutputStream os, int level) throws IOException;
+
+    /**
+     * Wrap stream for decompressing data. Closing the returned stream closes the wrapped stream.
+     *
+     * @param is The stream with compressed data
+     * @return Stream with uncompressed data
+     * @throws IOException When the stream could not be created.
+     */
+    InputStream decompress(InputStream is) throws IOException;
+
+    /**
+     * @param level Compression level
+     * @return TRUE when the codec supports the compression level; {@link #DEFAULT_LEVEL} is always supported.
+     */
+    default boolean isValidLevel(final int level) {
+        return true;
+    }
+
+    /**
+     * @return TRUE when decompressing costs more than buffering the uncompressed data, so data
+     * that is read more than once is decompressed only once.
+     */
+    default boolean isBufferedForReuse() {
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.codec;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Registry of the available payload codecs. Besides the built-in codecs, codecs are
+ * discovered via {@link ServiceLoader}.
+ */
+public class PayloadCodecs {
+
+    private final static Logger LOG = LogManager.getLogger(PayloadCodecs.class);
+
+    private static final Map<String, PayloadCodec> CODECS = new TreeMap<>();
+
+    static {
+        register(new GzipCodec());
+        register(new DeflateCodec());
+        register(new NoneCodec());
+        register(new Lz4Codec());
+
+        try {
+            for (final PayloadCodec codec : ServiceLoader.load(PayloadCodec.class, PayloadCodecs.class.getClassLoader())) {
+                LOG.info("Registering payload codec '{}' ({})", codec.getName(), codec.getClass().getName());
+                register(codec);
+            }
+        } catch (final ServiceConfigurationError ex) {
+            LOG.error("Unable to load payload codecs: {}", ex.getMessage());
+        }
+    }
+
+    private PayloadCodecs() {
+        // Utility class
+    }
+
+    private static void register(final PayloadCodec codec) {
+        CODECS.put(codec.getName().toLowerCase(Locale.ENGLISH), codec);
+    }
+
+    /**
+     * Get codec by name. When no name is provided, the default (gzip) codec is returned.
+     *
+     * @param name Name of the codec, the content-encoding value
+     * @return The codec
+     * @throws IllegalArgumentException When the codec is not available.
+     */
+    public static PayloadCodec getCodec(final String name) {
+
+        if (StringUtils.isBlank(name)) {
+            return getDefaultCodec();
+        }
+
+        final PayloadCodec codec = CODECS.get(name.trim().toLowerCase(Locale.ENGLISH));
+        if (codec == null) {
+            throw new IllegalArgumentException(String.format("Unsupported content encoding '%s', supported are %s", name, getNames()));
+        }
+        return codec;
+    }
+
+    /**
+     * @return The default (gzip) codec
+     */
+    public static PayloadCodec getDefaultCodec() {
+        return CODECS.get(GzipCodec.NAME);
+    }
+
+    /**
+     * @return Names of all available codecs
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(CODECS.keySet());
+    }
+}
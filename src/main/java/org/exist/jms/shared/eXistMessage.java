@@ -25,12 +25,21 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Container class for clustering messages.
@@ -63,9 +72,16 @@ public class eXistMessage {
     private String path;
     private String destination;
     private byte[] payload;
+    private Path payloadFile;
+    private long payloadFileSize;
+    private boolean payloadFileOwned;
+    private BytesMessage payloadMessage;
+    private long payloadMessageSize;
 
     private Map<String, Object> metaData = new HashMap<>();
 
+    private List<Consumer<Boolean>> deliveryListeners = null;
+
     public void setResourceOperation(final ResourceOperation type) {
         resourceOperation = type;
     }
@@ -118,6 +134,9 @@ public class eXistMessage {
         destination = path;
     }
 
+    /**
+     * @return The payload when kept in memory, NULL when stored in a file or in a received message.
+     */
     public byte[] getPayload() {
         return payload;
     }
@@ -126,15 +145,147 @@ public class eXistMessage {
         payload = data;
     }
 
+    /**
+     * Set payload that is the body of a received message. The body is read as a stream
+     * each time, it is not copied.
+     *
+     * @param message The received message
+     * @throws JMSException The size of the body could not be determined.
+     */
+    public void setPayload(final BytesMessage message) throws JMSException {
+        payload = null;
+        payloadMessage = message;
+        payloadMessageSize = message.getBodyLength();
+    }
+
+    /**
+     * Set payload that is stored in a (temporary) file. The file is deleted
+     * by {@link #resetPayload()}.
+     *
+     * @param file The file containing the payload
+     * @param size Size of the payload in bytes
+     */
+    public void setPayload(final Path file, final long size) {
+        setPayload(file, size, true);
+    }
+
+    /**
+     * Set payload that is stored in a file.
+     *
+     * @param file  The file containing the payload
+     * @param size  Size of the payload in bytes
+     * @param owned TRUE when the file is deleted by {@link #resetPayload()}, FALSE when the
+     *              file is removed by its creator.
+     */
+    public void setPayload(final Path file, final long size, final boolean owned) {
+        payload = null;
+        payloadMessage = null;
+        payloadFile = file;
+        payloadFileSize = size;
+        payloadFileOwned = owned;
+    }
+
+    /**
+     * @return TRUE when the message has a non empty payload.
+     */
+    public boolean hasPayload() {
+        return getPayloadSize() > 0;
+    }
+
+    /**
+     * @return Size of payload in bytes.
+     */
+    public long getPayloadSize() {
+        if (payloadFile != null) {
+            return payloadFileSize;
+        }
+        if (payloadMessage != null) {
+            return payloadMessageSize;
+        }
+        return payload == null ? 0 : payload.length;
+    }
+
+    /**
+     * Get payload as stream, regardless it is stored in memory, in a file or in a received message.
+     * A payload of a received message is read from the start; only one stream can be read at a time.
+     *
+     * @return Stream of the payload, empty when there is no payload.
+     * @throws IOException The payload file could not be read.
+     */
+    public InputStream getPayloadInputStream() throws IOException {
+        if (payloadFile != null) {
+            return Files.newInputStream(payloadFile);
+        }
+        if (payloadMessage != null) {
+            return new BytesMessageInputStream(payloadMessage);
+        }
+        return new ByteArrayInputStream(payload == null ? new byte[0] : payload);
+    }
+
     public void resetPayload() {
         LOG.debug("Removing payload. {}", getReport());
         payload = new byte[0];
+        payloadMessage = null;
+        payloadMessageSize = 0;
+
+        if (payloadFile != null) {
+            if (payloadFileOwned) {
+                try {
+                    Files.deleteIfExists(payloadFile);
+                } catch (final IOException ex) {
+                    LOG.error("Unable to remove payload file {}: {}", payloadFile, ex.getMessage());
+                }
+            }
+            payloadFile = null;
+            payloadFileSize = 0;
+        }
     }
 
     public Map<String, Object> getMetadata() {
         return metaData;
     }
 
+    /**
+     * Register a listener for the outcome of publishing the message. The listener is called
+     * once, with TRUE when the message is sent to the broker, and with FALSE when the message
+     * could not be sent or is discarded.
+     *
+     * @param listener The listener
+     */
+    public synchronized void addDeliveryListener(final Consumer<Boolean> listener) {
+        if (deliveryListeners == null) {
+            deliveryListeners = new ArrayList<>();
+        }
+        deliveryListeners.add(listener);
+    }
+
+    /**
+     * Report the outcome of publishing the message to the registered listeners; only the
+     * first outcome is reported.
+     *
+     * @param sent TRUE when the message is sent to the broker.
+     */
+    public void completeDelivery(final boolean sent) {
+
+        final List<Consumer<Boolean>> listeners;
+        synchronized (this) {
+            listeners = deliveryListeners;
+            deliveryListeners = null;
+        }
+
+        if (listeners == null) {
+            return;
+        }
+
+        for (final Consumer<Boolean> listener : listeners) {
+            try {
+                listener.accept(sent);
+            } catch (final RuntimeException ex) {
+                LOG.error("Unable to report delivery of '{}': {}", path, ex.getMessage(), ex);
+            }
+        }
+    }
+
     public void setMetadata(final Map<String, Object> props) {
         metaData = props;
     }
@@ -165,8 +316,8 @@ public class eXistMessage {
             sb.append("DestinationPath='").append(resourceType).append("'  ");
         }
 
-        if (payload != null && payload.length > 0) {
-            sb.append("PayloadSize='").append(payload.length).append("'  ");
+        if (hasPayload()) {
+            sb.append("PayloadSize='").append(getPayloadSize()).append("'  ");
         }
 
         // Iterate over properties if present
@@ -250,10 +401,10 @@ public class eXistMessage {
     }
 
     /**
-     * Types of exist-db resources
+     * Types of exist-db resources, a BATCH message contains several messages
      */
     public enum ResourceType {
-        DOCUMENT, COLLECTION, UNDEFINED
+        DOCUMENT, COLLECTION, BATCH, UNDEFINED
     }
 
     /**
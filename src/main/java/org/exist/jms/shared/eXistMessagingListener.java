@@ -22,6 +22,7 @@ package org.exist.jms.shared;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
 
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
@@ -71,6 +72,65 @@ public abstract class eXistMessagingListener implements MessageListener, Excepti
         this.session = session;
     }
 
+    /**
+     * @return TRUE when the listener requires a transacted session; the listener commits the session.
+     */
+    public boolean isTransacted() {
+        return false;
+    }
+
+    /**
+     * @return TRUE when the listener keeps delivered messages after {@link #onMessage(javax.jms.Message)}
+     * returned, e.g. to process them in parallel or in batches; the consumer can not be replaced then
+     * without redelivering these messages.
+     */
+    public boolean holdsMessages() {
+        return false;
+    }
+
+    /**
+     * Time to wait for a message when the listener requires the messages to be received in a loop,
+     * on one thread, instead of being delivered asynchronously.
+     *
+     * @return Time in milliseconds, 0 when messages are delivered to {@link #onMessage(javax.jms.Message)} asynchronously.
+     * @see #onIdle()
+     */
+    public long getReceiveTimeout() {
+        return 0;
+    }
+
+    /**
+     * Called by the receive loop, on the thread of the session, when no message was received within
+     * the receive timeout.
+     */
+    public void onIdle() {
+        // Nothing to do
+    }
+
+    /**
+     * Discard cached state that might be outdated, called when the receiver is started.
+     */
+    public void invalidateCaches() {
+        // Nothing cached
+    }
+
+    /**
+     * Write additional statistics of the listener to the receiver report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    public void writeStatistics(final MemTreeBuilder builder) {
+        // No additional statistics
+    }
+
+    /**
+     * Finish pending work and release resources, called when the receiver is closed after
+     * the delivery of messages has stopped.
+     */
+    public void close() {
+        // Nothing to release
+    }
+
     public int getReceiverID() {
         return id;
     }
@@ -0,0 +1,306 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.receive;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Report;
+
+import javax.jms.JMSException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Adjusts the prefetch of a receiver to the measured apply latency and the free memory. When
+ * messages are applied slower than the target latency, or when the heap is almost full, fewer
+ * messages are delivered ahead; when messages are applied fast, more messages are delivered ahead,
+ * up to the configured prefetch.
+ */
+class FlowController {
+
+    private final static Logger LOG = LogManager.getLogger(FlowController.class);
+
+    private static final long INTERVAL = 5000;
+    private static final double MIN_HEAP_HEADROOM = 0.15;
+    private static final int MIN_PREFETCH = 1;
+    private static final int MAX_DECISIONS = 10;
+
+    /**
+     * Applies a new prefetch to the consumer.
+     */
+    interface PrefetchUpdater {
+        void setPrefetch(int prefetch) throws JMSException;
+    }
+
+    /**
+     * Adjustment of the prefetch.
+     */
+    private static class Decision {
+        private final long timestamp = System.currentTimeMillis();
+        private final int prefetch;
+        private final String reason;
+        private final long latency;
+        private final double headroom;
+
+        private Decision(final int prefetch, final String reason, final long latency, final double headroom) {
+            this.prefetch = prefetch;
+            this.reason = reason;
+            this.latency = latency;
+            this.headroom = headroom;
+        }
+    }
+
+    private final int receiverId;
+    private final Report report;
+    private final int maxPrefetch;
+    private final long targetLatency;
+    private final PrefetchUpdater updater;
+    private final Deque<Decision> decisions = new ArrayDeque<>();
+
+    private int prefetch;
+    private long lastCount;
+    private long lastTime;
+    private long increases;
+    private long decreases;
+
+    private volatile Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     *
+     * @param receiverId    ID of the receiver, for logging
+     * @param report        Report of the listener, for the apply latency
+     * @param maxPrefetch   Highest prefetch, the initial prefetch
+     * @param targetLatency Apply latency in milliseconds to aim for
+     * @param updater       Applies a new prefetch
+     */
+    FlowController(final int receiverId, final Report report, final int maxPrefetch, final long targetLatency,
+                   final PrefetchUpdater updater) {
+        this.receiverId = receiverId;
+        this.report = report;
+        this.maxPrefetch = maxPrefetch;
+        this.prefetch = maxPrefetch;
+        this.targetLatency = targetLatency;
+        this.updater = updater;
+    }
+
+    /**
+     * Start the periodic adjustment. Not synchronized, the adjustment calls the receiver
+     * which starts and stops the controller.
+     */
+    void start() {
+
+        if (running) {
+            return;
+        }
+
+        running = true;
+        lastCount = report.getMessageCounterTotal();
+        lastTime = report.getCumulatedProcessingTime();
+
+        thread = new Thread(this::run, "jms-flow-control-" + receiverId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the periodic adjustment, the prefetch is kept.
+     */
+    void stop() {
+        running = false;
+        final Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+            thread = null;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                adjust();
+            } catch (final Throwable t) {
+                LOG.error("Unable to adjust prefetch of receiver {}: {}", receiverId, t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Determine the prefetch for the measurements of the last interval.
+     */
+    synchronized void adjust() {
+
+        final long count = report.getMessageCounterTotal();
+        final long time = report.getCumulatedProcessingTime();
+        final long received = count - lastCount;
+        final long latency = (received > 0) ? (time - lastTime) / received : 0;
+        lastCount = count;
+        lastTime = time;
+
+        if (received == 0) {
+            // Idle, nothing measured
+            return;
+        }
+
+        final double headroom = getHeapHeadroom();
+
+        final int target;
+        final String reason;
+        if (headroom < MIN_HEAP_HEADROOM) {
+            target = Math.max(MIN_PREFETCH, prefetch / 4);
+            reason = "heap";
+
+        } else if (latency > targetLatency) {
+            target = Math.max(MIN_PREFETCH, prefetch / 2);
+            reason = "latency";
+
+        } else if (latency < targetLatency / 2) {
+            target = Math.min(maxPrefetch, prefetch * 2);
+            reason = "throughput";
+
+        } else {
+            return;
+        }
+
+        if (target == prefetch || !running) {
+            return;
+        }
+
+        try {
+            updater.setPrefetch(target);
+
+        } catch (final JMSException ex) {
+            LOG.error("Unable to set prefetch of receiver {} to {}: {}", receiverId, target, ex.getMessage());
+            report.addReceiverError(ex);
+            return;
+        }
+
+        LOG.info("Prefetch of receiver {} changed from {} to {} ({}, latency {} ms, heap headroom {}%)",
+                receiverId, prefetch, target, reason, latency, Math.round(headroom * 100));
+
+        if (target > prefetch) {
+            increases++;
+        } else {
+            decreases++;
+        }
+        prefetch = target;
+
+        decisions.addFirst(new Decision(target, reason, latency, headroom));
+        if (decisions.size() > MAX_DECISIONS) {
+            decisions.removeLast();
+        }
+    }
+
+    /**
+     * Determine the free part of the heap from the memory in use after the last garbage collection,
+     * garbage that is not yet collected is not counted.
+     *
+     * @return Fraction of the maximum heap that is free, 1 when it can not be determined.
+     */
+    private static double getHeapHeadroom() {
+
+        long used = 0;
+        boolean measured = false;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = (pool.getType() == MemoryType.HEAP) ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+                measured = true;
+            }
+        }
+
+        final long max = Runtime.getRuntime().maxMemory();
+        if (!measured || max <= 0 || max == Long.MAX_VALUE) {
+            return 1.0;
+        }
+
+        return (max - used) / (double) max;
+    }
+
+    /**
+     * @return The current prefetch.
+     */
+    synchronized int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Write state and the last decisions to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    synchronized void write(final MemTreeBuilder builder) {
+
+        builder.startElement("", "flowControl", "flowControl", null);
+
+        builder.startElement("", "state", "state", null);
+        builder.characters(running ? "RUNNING" : "STOPPED");
+        builder.endElement();
+
+        builder.startElement("", "prefetch", "prefetch", null);
+        builder.characters("" + prefetch);
+        builder.endElement();
+
+        builder.startElement("", "maxPrefetch", "maxPrefetch", null);
+        builder.characters("" + maxPrefetch);
+        builder.endElement();
+
+        builder.startElement("", "targetLatency", "targetLatency", null);
+        builder.characters("" + targetLatency);
+        builder.endElement();
+
+        builder.startElement("", "increases", "increases", null);
+        builder.characters("" + increases);
+        builder.endElement();
+
+        builder.startElement("", "decreases", "decreases", null);
+        builder.characters("" + decreases);
+        builder.endElement();
+
+        builder.startElement("", "decisions", "decisions", null);
+        for (final Decision decision : decisions) {
+            builder.startElement("", "decision", "decision", null);
+            builder.addAttribute(new QName("timestamp", null, null), "" + decision.timestamp);
+            builder.addAttribute(new QName("prefetch", null, null), "" + decision.prefetch);
+            builder.addAttribute(new QName("reason", null, null), decision.reason);
+            builder.addAttribute(new QName("latency", null, null), "" + decision.latency);
+            builder.addAttribute(new QName("headroom", null, null), String.format(Locale.ROOT, "%.2f", decision.headroom));
+            builder.endElement();
+        }
+        builder.endElement(); // decisions
+
+        builder.endElement(); // flowControl
+    }
+}
@@ -27,14 +27,13 @@ import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.NodeImpl;
 import org.exist.jms.shared.Constants;
 import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JndiCache;
 import org.exist.jms.shared.Report;
 import org.exist.jms.shared.eXistMessagingListener;
 import org.exist.xquery.XPathException;
 
 import javax.jms.*;
 import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.Duration;
@@ -52,6 +51,12 @@ import static org.exist.jms.shared.ErrorCodes.*;
 public class Receiver {
 
     private final static Logger LOG = LogManager.getLogger(Receiver.class);
+
+    /**
+     * Properties of the ActiveMQ connection factory and consumer for the prefetch
+     */
+    private static final String ACTIVEMQ_PREFETCH_POLICY = "prefetchPolicy.all";
+    private static final String ACTIVEMQ_CONSUMER_PREFETCH = "consumer.prefetchSize";
     private static volatile int lastId = 0;
     /*
      *
@@ -63,12 +68,14 @@ public class Receiver {
      * The JMS listeners
      */
     private eXistMessagingListener messageListener = null;
-    private Context initialContext = null;
     private ConnectionFactory connectionFactory = null;
     private Session session = null;
     private Destination destination = null;
     private MessageConsumer messageConsumer = null;
     private Connection connection = null;
+    private FlowController flowController = null;
+    private Thread receiveLoop = null;
+    private volatile boolean receiving = false;
 
     private int id = 0;
 
@@ -109,6 +116,15 @@ public class Receiver {
         return id;
     }
 
+    /**
+     * Get message listener
+     *
+     * @return The listener that handles the received messages
+     */
+    public eXistMessagingListener getListener() {
+        return messageListener;
+    }
+
     /**
      * Get report of message listener
      *
@@ -124,7 +140,7 @@ public class Receiver {
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#start()
      */
-    public void start() throws XPathException {
+    public synchronized void start() throws XPathException {
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -132,6 +148,9 @@ public class Receiver {
             throw new XPathException(JMS025, txt);
         }
 
+        // Cached state might be outdated after a stop
+        messageListener.invalidateCaches();
+
         try {
             // Start listener
             connection.start();
@@ -140,6 +159,10 @@ public class Receiver {
 
             state = STATE.STARTED;
 
+            if (flowController != null) {
+                flowController.start();
+            }
+
         } catch (final JMSException ex) {
             LOG.error(ex.getMessage(), ex);
             messageListener.getReport().addReceiverError(ex);
@@ -159,15 +182,20 @@ public class Receiver {
         // JMS specific checks
         jmsConfig.validate();
 
-        try {
-            // Setup Context
-            final Properties props = new Properties();
-            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, jmsConfig.getInitialContextFactory());
-            props.setProperty(Context.PROVIDER_URL, jmsConfig.getBrokerURL());
-            initialContext = new InitialContext(props);
+        // Setup Context
+        final Properties props = JndiCache.createEnvironment(jmsConfig);
+
+        // Number of messages delivered ahead, by the connection factory
+        final int prefetch = jmsConfig.getPrefetch();
+        if (prefetch > 0) {
+            props.setProperty(ACTIVEMQ_PREFETCH_POLICY, "" + prefetch);
+        }
 
+        final JndiCache jndiCache = JndiCache.getInstance();
+
+        try {
             // Setup connection
-            connectionFactory = (ConnectionFactory) initialContext.lookup(jmsConfig.getConnectionFactory());
+            connectionFactory = jndiCache.lookup(props, jmsConfig.getConnectionFactory(), ConnectionFactory.class);
 
             // Setup username/password when required
             final String userName = jmsConfig.getConnectionUserName();
@@ -187,36 +215,39 @@ public class Receiver {
                 connection.setClientID(clientId);
             }
 
-            // Setup session
-            session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+            // Setup session, transacted when the listener commits the received messages itself
+            session = messageListener.isTransacted()
+                    ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                    : connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
 
             // Setup destination
-            destination = (Destination) initialContext.lookup(jmsConfig.getDestination());
+            destination = jndiCache.lookup(props, jmsConfig.getDestination(), Destination.class);
 
             // Setup consumer with message selector
-            final String messageSelector = jmsConfig.getMessageSelector();
-            final String subscriberName = jmsConfig.getSubscriberName();
-
-            final boolean isDurable = jmsConfig.isDurable(); // TRUE if not set, special case for Durable topic
-            final boolean isNoLocal = jmsConfig.isNoLocal();
-
-            // Interesting switch due to JMS specification
-            if (destination instanceof Topic && isDurable) {
-                // Create durable subscriber for topic only when set durable manually
-                messageConsumer = session.createDurableSubscriber((Topic) destination, subscriberName, messageSelector, isNoLocal);
-
-                LOG.info("Created durable subscriber for {}", jmsConfig.getDestination());
+            messageConsumer = createConsumer(destination);
 
+            // Register listener, or receive in a loop when the listener requires it
+            messageListener.setSession(session);
+            final long receiveTimeout = messageListener.getReceiveTimeout();
+            if (receiveTimeout > 0) {
+                startReceiveLoop(receiveTimeout);
             } else {
-                // When not a Topic OR when a Topic but not durable.....
-                messageConsumer = session.createConsumer(destination, messageSelector, isNoLocal);
-
-                LOG.info("Created non-durable subscriber for {}", jmsConfig.getDestination());
+                messageConsumer.setMessageListener(messageListener);
             }
 
-            // Register listener
-            messageListener.setSession(session);
-            messageConsumer.setMessageListener(messageListener);
+            // Adjust prefetch at runtime; the consumer is replaced, which must not lose messages
+            if (jmsConfig.isAdaptivePrefetch()) {
+                if (messageListener.holdsMessages()) {
+                    LOG.warn("Prefetch for {} is not adjusted, the listener holds messages that are not acknowledged.",
+                            jmsConfig.getDestination());
+
+                } else if (destination instanceof Queue || (destination instanceof Topic && jmsConfig.isDurable())) {
+                    flowController = new FlowController(id, messageListener.getReport(),
+                            (prefetch > 0) ? prefetch : 1000, jmsConfig.getTargetLatency(), this::setPrefetch);
+                } else {
+                    LOG.warn("Prefetch of non-durable topic subscriber for {} is not adjusted.", jmsConfig.getDestination());
+                }
+            }
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("JMS connection is initialized: {}={} {}", Constants.CLIENT_ID, connection.getClientID(), jmsConfig.toString());
@@ -230,7 +261,11 @@ public class Receiver {
         } catch (final Throwable t) {
             state = STATE.ERROR;
 
-            closeAllSilently(initialContext, connection, session);
+            stopReceiveLoop();
+            closeAllSilently(connection, session);
+
+            // Lookup again on the next attempt
+            jndiCache.invalidate(props);
 
             LOG.error(t.getMessage(), t);
             LOG.debug("{}", jmsConfig.toString());
@@ -241,13 +276,142 @@ public class Receiver {
 
     }
 
+    /**
+     * Create consumer for the destination, with the message selector of the configuration.
+     */
+    private MessageConsumer createConsumer(final Destination target) throws JMSException {
+
+        final String messageSelector = jmsConfig.getMessageSelector();
+        final String subscriberName = jmsConfig.getSubscriberName();
+
+        final boolean isDurable = jmsConfig.isDurable(); // TRUE if not set, special case for Durable topic
+        final boolean isNoLocal = jmsConfig.isNoLocal();
+
+        final MessageConsumer consumer;
+
+        // Interesting switch due to JMS specification
+        if (target instanceof Topic && isDurable) {
+            // Create durable subscriber for topic only when set durable manually
+            consumer = session.createDurableSubscriber((Topic) target, subscriberName, messageSelector, isNoLocal);
+
+            LOG.info("Created durable subscriber for {}", jmsConfig.getDestination());
+
+        } else {
+            // When not a Topic OR when a Topic but not durable.....
+            consumer = session.createConsumer(target, messageSelector, isNoLocal);
+
+            LOG.info("Created non-durable subscriber for {}", jmsConfig.getDestination());
+        }
+
+        return consumer;
+    }
+
+    /**
+     * Receive messages on one thread, the listener is called when no message is received in time.
+     */
+    private void startReceiveLoop(final long timeout) {
+        receiving = true;
+        receiveLoop = new Thread(() -> receive(timeout), String.format("jms-receiver-%d", id));
+        receiveLoop.setDaemon(true);
+        receiveLoop.start();
+
+        LOG.info("Receiving messages in a loop, polling every {} ms", timeout);
+    }
+
+    private void receive(final long timeout) {
+
+        while (receiving) {
+            try {
+                final Message msg = messageConsumer.receive(timeout);
+                if (!receiving) {
+                    // Not committed, delivered again
+                    break;
+                }
+
+                if (msg == null) {
+                    messageListener.onIdle();
+                } else {
+                    messageListener.onMessage(msg);
+                }
+
+            } catch (final JMSException ex) {
+                if (!receiving) {
+                    break;
+                }
+                LOG.error("Unable to receive message: {}", ex.getMessage());
+                messageListener.getReport().addReceiverError(ex);
+                pause(timeout);
+
+            } catch (final Throwable t) {
+                // Reported by the listener
+                LOG.debug(t.getMessage(), t);
+            }
+        }
+    }
+
+    private void pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            receiving = false;
+        }
+    }
+
+    /**
+     * Stop the receive loop, waits for the message that is handled.
+     */
+    private void stopReceiveLoop() {
+
+        if (receiveLoop == null) {
+            return;
+        }
+
+        receiving = false;
+        try {
+            receiveLoop.join();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        receiveLoop = null;
+    }
+
+    /**
+     * Replace the consumer by a consumer with another prefetch. Delivery is paused meanwhile;
+     * messages that are not acknowledged are delivered again to the new consumer.
+     *
+     * @param prefetch The number of messages that are delivered ahead.
+     * @throws JMSException The consumer could not be replaced.
+     */
+    private synchronized void setPrefetch(final int prefetch) throws JMSException {
+
+        if (state != STATE.STARTED) {
+            return;
+        }
+
+        connection.stop();
+        try {
+            final String option = ACTIVEMQ_CONSUMER_PREFETCH + "=" + prefetch;
+            final Destination target = (destination instanceof Queue)
+                    ? session.createQueue(((Queue) destination).getQueueName() + "?" + option)
+                    : session.createTopic(((Topic) destination).getTopicName() + "?" + option);
+
+            messageConsumer.close();
+            messageConsumer = createConsumer(target);
+            messageConsumer.setMessageListener(messageListener);
+
+        } finally {
+            connection.start();
+        }
+    }
+
     /**
      * Stop JMS connection
      *
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#stop()
      */
-    public void stop() throws XPathException {
+    public synchronized void stop() throws XPathException {
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -255,6 +419,10 @@ public class Receiver {
             throw new XPathException(JMS025, txt);
         }
 
+        if (flowController != null) {
+            flowController.stop();
+        }
+
         try {
             // Start listener
             connection.stop();
@@ -277,7 +445,7 @@ public class Receiver {
      * @throws XPathException Thrown when not initialized or when a JMSException is thrown.
      * @see Connection#close()
      */
-    public void close() throws XPathException {
+    public synchronized void close() throws XPathException {
 
         if (connection == null) {
             final String txt = "JMS connection must be initialized first";
@@ -285,6 +453,10 @@ public class Receiver {
             throw new XPathException(JMS025, txt);
         }
 
+        if (flowController != null) {
+            flowController.stop();
+        }
+
         // If not stopped, try to stop first
         if (state != STATE.STOPPED) {
             try {
@@ -295,6 +467,11 @@ public class Receiver {
             }
         }
 
+        stopReceiveLoop();
+
+        // Let the listener finish pending work while the session is still open
+        messageListener.close();
+
         try {
 
             String clientId = null;
@@ -395,6 +572,18 @@ public class Receiver {
             }
         }
 
+        // Flow control
+        final int prefetch = jmsConfig.getPrefetch();
+        if (prefetch > 0) {
+            builder.startElement("", Constants.CONSUMER_PREFETCH, Constants.CONSUMER_PREFETCH, null);
+            builder.characters("" + prefetch);
+            builder.endElement();
+        }
+
+        if (flowController != null) {
+            flowController.write(builder);
+        }
+
 
         // Statistics & error reporting
         if (messageListener != null) {
@@ -423,6 +612,15 @@ public class Receiver {
             builder.characters("" + stats.getMessageCounterNOK());
             builder.endElement();
 
+            // Additional counters of the listener
+            stats.getCounters().forEach((name, value) -> {
+                builder.startElement("", name, name, null);
+                builder.characters("" + value);
+                builder.endElement();
+            });
+
+            messageListener.writeStatistics(builder);
+
             builder.endElement();
         }
 
@@ -436,7 +634,7 @@ public class Receiver {
     /**
      * Helper method to give resources back
      */
-    private void closeAllSilently(final Context context, final Connection connection, final Session session) {
+    private void closeAllSilently(final Connection connection, final Session session) {
 
         final boolean doLog = LOG.isDebugEnabled();
 
@@ -463,18 +661,6 @@ public class Receiver {
                 LOG.error(ex.getMessage());
             }
         }
-
-        if (context != null) {
-            if (doLog) {
-                LOG.debug("Closing context");
-            }
-
-            try {
-                context.close();
-            } catch (final NamingException ex) {
-                LOG.error(ex.getMessage());
-            }
-        }
     }
 
     /**
@@ -0,0 +1,239 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.send;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Item;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends messages in the background, on a shared pool of sender threads that use the pooled
+ * producers of the {@link ProducerRegistry}. The content is prepared in the calling thread,
+ * the caller receives a handle for awaiting or polling the completion of the send.
+ * <p>
+ * When all sender threads are busy and the queue is full, the message is sent by the calling
+ * thread. The result of a send is kept until it is collected, or until it expires.
+ */
+public class AsyncSender {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncSender.class);
+
+    public static final QName HANDLE_QNAME = new QName("handle", null, null);
+    public static final QName STATE_QNAME = new QName("state", null, null);
+
+    /**
+     * State of a send.
+     */
+    public enum State {
+        PENDING, COMPLETED, FAILED, UNKNOWN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int QUEUE_SIZE = 10_000;
+
+    /**
+     * Results that are not collected within this time are discarded
+     */
+    private static final long RESULT_EXPIRY = TimeUnit.MINUTES.toMillis(10);
+
+    private static AsyncSender instance;
+
+    private final Map<String, PendingSend> sends = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "jms-async-sender-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AsyncSender() {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger counter = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            final Thread thread = new Thread(r, "jms-async-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        final long interval = RESULT_EXPIRY / 2;
+        evictor.scheduleWithFixedDelay(this::evictExpired, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized AsyncSender getInstance() {
+
+        if (null == instance) {
+            instance = new AsyncSender();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Prepare content and send it in the background.
+     *
+     * @param context      The XQuery context, for serializing the content
+     * @param jmsConfig    JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content      The content to be transferred
+     * @return Handle of the send
+     * @throws XPathException The configuration is not valid, or the content can not be converted.
+     */
+    public String submit(final XQueryContext context, final JmsConfiguration jmsConfig,
+                         final JmsMessageProperties msgMetaProps, final Item content) throws XPathException {
+
+        final Sender sender = new Sender(context);
+        final Sender.Content prepared = sender.prepare(jmsConfig, msgMetaProps, content);
+
+        final String handle = UUID.randomUUID().toString();
+        final PendingSend pending = new PendingSend();
+        sends.put(handle, pending);
+
+        executor.execute(() -> {
+            try {
+                pending.result.complete(sender.send(jmsConfig, msgMetaProps, prepared, handle));
+
+            } catch (final Throwable t) {
+                LOG.error("Asynchronous send {} failed: {}", handle, t.getMessage());
+                pending.result.completeExceptionally(t);
+            }
+        });
+
+        return handle;
+    }
+
+    /**
+     * Get result of a send, waiting at most until the deadline. A completed or failed result is
+     * removed, it can only be collected once.
+     *
+     * @param handle   Handle of the send
+     * @param deadline Time in milliseconds until the result is awaited, 0 to return immediately
+     * @return The report of a completed send, or an element with the state of the send
+     */
+    public NodeImpl getResult(final String handle, final long deadline) {
+
+        final PendingSend pending = sends.get(handle);
+        if (pending == null) {
+            return createState(handle, State.UNKNOWN, null);
+        }
+
+        try {
+            final long wait = deadline - System.currentTimeMillis();
+            final NodeImpl report = (wait > 0)
+                    ? pending.result.get(wait, TimeUnit.MILLISECONDS)
+                    : pending.result.getNow(null);
+
+            if (report == null) {
+                return createState(handle, State.PENDING, null);
+            }
+
+            sends.remove(handle);
+            return report;
+
+        } catch (final TimeoutException ex) {
+            return createState(handle, State.PENDING, null);
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return createState(handle, State.PENDING, null);
+
+        } catch (final ExecutionException ex) {
+            sends.remove(handle);
+            return createState(handle, State.FAILED, ex.getCause());
+
+        } catch (final RuntimeException ex) {
+            // Completed exceptionally, thrown by getNow()
+            sends.remove(handle);
+            return createState(handle, State.FAILED, ex.getCause() == null ? ex : ex.getCause());
+        }
+    }
+
+    /**
+     * Create element with the state of a send that did not complete.
+     */
+    private NodeImpl createState(final String handle, final State state, final Throwable error) {
+
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        final int nodeNr = builder.startElement("", "jms", "jms", null);
+        builder.addAttribute(HANDLE_QNAME, handle);
+        builder.addAttribute(STATE_QNAME, state.toString());
+
+        if (error != null) {
+            builder.startElement("", "error", "error", null);
+            if (error instanceof XPathException && ((XPathException) error).getErrorCode() != null) {
+                builder.addAttribute(new QName("code", null, null), ((XPathException) error).getErrorCode().getErrorQName().getLocalPart());
+            }
+            builder.characters(String.valueOf(error.getMessage()));
+            builder.endElement();
+        }
+
+        builder.endElement();
+
+        return builder.getDocument().getNode(nodeNr);
+    }
+
+    /**
+     * Discard results that were not collected.
+     */
+    private void evictExpired() {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<PendingSend> i = sends.values().iterator(); i.hasNext(); ) {
+            final PendingSend pending = i.next();
+            if (pending.result.isDone() && now - pending.submitted > RESULT_EXPIRY) {
+                i.remove();
+            }
+        }
+    }
+
+    private static class PendingSend {
+        private final long submitted = System.currentTimeMillis();
+        private final CompletableFuture<NodeImpl> result = new CompletableFuture<>();
+    }
+}
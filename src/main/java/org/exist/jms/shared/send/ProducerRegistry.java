@@ -0,0 +1,891 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.shared.send;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.jms.replication.shared.MessageHelper;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JndiCache;
+
+import javax.jms.*;
+import javax.naming.NamingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Registry of long-lived JMS connections, sessions and message producers. Producers
+ * are pooled per broker URL, connection factory, destination, credentials and client ID,
+ * so sending a message only requires a single send call.
+ * <p>
+ * A producer is borrowed for exclusive use and must be given back with
+ * {@link #release(PooledProducer)}, or with {@link #invalidate(PooledProducer)} when it failed.
+ * Idle producers and unused connections are closed by a background task.
+ * <p>
+ * For request/reply messaging each connection has one temporary reply queue with one consumer,
+ * shared by all requests; replies are routed to the waiting request by their correlation ID.
+ */
+public class ProducerRegistry {
+
+    private final static Logger LOG = LogManager.getLogger(ProducerRegistry.class);
+
+    private static final String EXIST_CONNECTION_POOL = "exist.connection.pool";
+
+    /**
+     * Name prefix of temporary destinations, as used by ActiveMQ. These destinations can not be
+     * looked up in JNDI, they are sent to by their name.
+     */
+    private static final String TEMPORARY_DESTINATION_PREFIX = "ID:";
+
+    /**
+     * Default time in milliseconds before an idle producer is closed.
+     */
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    /**
+     * Default maximum number of sessions per connection, the default of the ActiveMQ pool.
+     */
+    private static final int DEFAULT_MAX_SESSIONS = 500;
+
+    /**
+     * Time in milliseconds to wait for a producer when all sessions are in use.
+     */
+    static final long MAX_WAIT = 30000;
+
+    private static ProducerRegistry instance;
+
+    private final Map<String, ProducerPool> pools = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "jms-producer-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ProducerRegistry() {
+        final long interval = DEFAULT_IDLE_TIMEOUT / 2;
+        evictor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized ProducerRegistry getInstance() {
+
+        if (null == instance) {
+            instance = new ProducerRegistry();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create key for the connection details. The password is part of the key
+     * but only as SHA-256 digest, so different passwords never share a pool.
+     */
+    private static String createKey(final JmsConfiguration jmsConfig) {
+        final String password = jmsConfig.getConnectionPassword();
+        return String.join("#",
+                jmsConfig.getBrokerURL(),
+                jmsConfig.getProperty(EXIST_CONNECTION_POOL, "activemq"),
+                jmsConfig.getConnectionFactory(),
+                jmsConfig.getDestination(),
+                StringUtils.defaultString(jmsConfig.getConnectionUserName()),
+                password == null ? "" : digest(password),
+                StringUtils.defaultString(jmsConfig.getClientId()));
+    }
+
+    private static String digest(final String password) {
+        return MessageHelper.toHex(MessageHelper.createDigest().digest(password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param jmsConfig JMS configuration
+     * @return The maximum number of sessions per connection.
+     */
+    static int getMaxSessions(final JmsConfiguration jmsConfig) {
+        final int maxSessions = NumberUtils.toInt(jmsConfig.getProperty(Constants.POOL_MAX_SESSIONS), DEFAULT_MAX_SESSIONS);
+        return maxSessions > 0 ? maxSessions : DEFAULT_MAX_SESSIONS;
+    }
+
+    /**
+     * Borrow a producer for exclusive use.
+     *
+     * @param jmsConfig JMS configuration
+     * @return A producer with its session
+     * @throws JMSException    Unable to connect to broker
+     * @throws NamingException Unable to lookup connection factory or destination
+     */
+    public PooledProducer borrow(final JmsConfiguration jmsConfig) throws JMSException, NamingException {
+        return borrow(jmsConfig, false);
+    }
+
+    /**
+     * Borrow a producer for exclusive use.
+     *
+     * @param jmsConfig  JMS configuration
+     * @param transacted TRUE for a producer on a transacted session, the messages are sent when the session is committed.
+     * @return A producer with its session
+     * @throws JMSException    Unable to connect to broker
+     * @throws NamingException Unable to lookup connection factory or destination
+     */
+    public PooledProducer borrow(final JmsConfiguration jmsConfig, final boolean transacted) throws JMSException, NamingException {
+
+        final String key = createKey(jmsConfig);
+
+        PooledProducer producer = null;
+        while (producer == null) {
+            // A pool can be closed by the evictor just after it was retrieved
+            final ProducerPool pool = pools.computeIfAbsent(key, k -> new ProducerPool(jmsConfig));
+            producer = pool.borrow(transacted);
+        }
+        return producer;
+    }
+
+    /**
+     * Give producer back to pool for reuse.
+     *
+     * @param producer The borrowed producer
+     */
+    public void release(final PooledProducer producer) {
+        producer.pool.release(producer);
+    }
+
+    /**
+     * Close a producer that failed, for example because a message could not be created or sent.
+     * Only its session is closed; the connection is replaced when it reports a problem itself.
+     *
+     * @param producer The borrowed producer
+     */
+    public void invalidate(final PooledProducer producer) {
+        producer.pool.invalidate(producer);
+    }
+
+    /**
+     * Close producers that have not been used for a while, and connections that are not used at all.
+     */
+    private void evictIdle() {
+
+        final long now = System.currentTimeMillis();
+
+        for (final Iterator<ProducerPool> iterator = pools.values().iterator(); iterator.hasNext(); ) {
+            final ProducerPool pool = iterator.next();
+            try {
+                if (pool.evictIdle(now)) {
+                    LOG.debug("Closed unused producer pool {}", pool.getName());
+                    iterator.remove();
+                }
+            } catch (final Throwable t) {
+                LOG.error("Unable to evict idle producers: {}", t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close all producers and connections.
+     */
+    public void shutdown() {
+        close(null);
+    }
+
+    /**
+     * Close the producers and connections of a broker, and stop its connection factories. Requests
+     * that wait for a reply fail, producers that are in use are closed when they are given back.
+     *
+     * @param brokerURL URL of the broker, NULL for all brokers
+     * @return The number of closed producer pools
+     */
+    public int close(final String brokerURL) {
+
+        int closed = 0;
+        for (final Iterator<ProducerPool> iterator = pools.values().iterator(); iterator.hasNext(); ) {
+            final ProducerPool pool = iterator.next();
+            if (brokerURL == null || brokerURL.equals(pool.jmsConfig.getBrokerURL())) {
+                iterator.remove();
+                pool.close();
+                closed++;
+            }
+        }
+
+        SenderConnectionFactory.close(brokerURL);
+
+        return closed;
+    }
+
+    /**
+     * Create report of the connection factories and producer pools.
+     *
+     * @return XML report with the pool statistics.
+     */
+    public NodeImpl getReport() {
+
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        final int nodeNr = builder.startElement("", "pools", "pools", null);
+
+        SenderConnectionFactory.write(builder);
+
+        for (final ProducerPool pool : pools.values()) {
+            pool.write(builder);
+        }
+
+        builder.endElement();
+
+        return builder.getDocument().getNode(nodeNr);
+    }
+
+    /**
+     * A session and producer on a long-lived connection.
+     */
+    public static class PooledProducer {
+
+        private final ProducerPool pool;
+        private final int generation;
+        private final boolean transacted;
+        private final Session session;
+        private final MessageProducer producer;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledProducer(final ProducerPool pool, final int generation, final boolean transacted,
+                               final Session session, final MessageProducer producer) {
+            this.pool = pool;
+            this.generation = generation;
+            this.transacted = transacted;
+            this.session = session;
+            this.producer = producer;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public MessageProducer getProducer() {
+            return producer;
+        }
+
+        /**
+         * Get the shared reply queue of the connection and register a request that waits for a reply.
+         * The request must be registered before it is sent.
+         *
+         * @param correlationId Correlation ID of the request, the reply must have the same correlation ID.
+         * @return The reply queue and the future reply
+         * @throws JMSException Unable to create the reply queue
+         */
+        public PendingReply expectReply(final String correlationId) throws JMSException {
+            return pool.expectReply(correlationId);
+        }
+
+        private void close() {
+            try {
+                producer.close();
+            } catch (final JMSException ex) {
+                LOG.debug("Problem closing producer, ignored. {}", ex.getMessage());
+            }
+            try {
+                session.close();
+            } catch (final JMSException ex) {
+                LOG.debug("Problem closing session, ignored. {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A request that waits for its reply.
+     */
+    public static class PendingReply {
+
+        private final ProducerPool pool;
+        private final String correlationId;
+        private final Destination replyTo;
+        private final CompletableFuture<Message> reply = new CompletableFuture<>();
+
+        private PendingReply(final ProducerPool pool, final String correlationId, final Destination replyTo) {
+            this.pool = pool;
+            this.correlationId = correlationId;
+            this.replyTo = replyTo;
+        }
+
+        /**
+         * @return The destination the reply must be sent to.
+         */
+        public Destination getReplyTo() {
+            return replyTo;
+        }
+
+        /**
+         * Wait for the reply.
+         *
+         * @param timeout Time in milliseconds to wait
+         * @return The reply, or NULL when no reply was received in time.
+         * @throws JMSException         The connection failed while waiting
+         * @throws InterruptedException The thread was interrupted while waiting
+         */
+        public Message await(final long timeout) throws JMSException, InterruptedException {
+            try {
+                return reply.get(timeout, TimeUnit.MILLISECONDS);
+
+            } catch (final TimeoutException ex) {
+                return null;
+
+            } catch (final ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof JMSException) {
+                    throw (JMSException) cause;
+                }
+                final JMSException jmsException = new JMSException(String.valueOf(cause.getMessage()));
+                jmsException.setLinkedException(cause instanceof Exception ? (Exception) cause : null);
+                throw jmsException;
+
+            } finally {
+                // A late reply is discarded
+                cancel();
+            }
+        }
+
+        /**
+         * Stop waiting for the reply.
+         */
+        public void cancel() {
+            pool.pendingReplies.remove(correlationId, this);
+        }
+    }
+
+    /**
+     * Connection with its idle producers for one set of connection details.
+     * <p>
+     * A connection is only replaced after it reported a problem. The replaced connection is closed
+     * when the last producer that was borrowed from it is given back, so other threads can finish
+     * sending on it.
+     */
+    private static class ProducerPool implements MessageListener {
+
+        private final JmsConfiguration jmsConfig;
+        private final long idleTimeout;
+        private final int maxSessions;
+        private final Deque<PooledProducer> idle = new ArrayDeque<>();
+        private final Map<String, PendingReply> pendingReplies = new ConcurrentHashMap<>();
+
+        /**
+         * Number of borrowed producers per connection generation.
+         */
+        private final Map<Integer, Integer> borrowedPerGeneration = new HashMap<>();
+
+        /**
+         * Replaced connections that still have borrowed producers, per generation.
+         */
+        private final Map<Integer, Connection> retired = new HashMap<>();
+
+        private Connection connection;
+        private Destination destination;
+        private Session replySession;
+        private TemporaryQueue replyQueue;
+        private volatile boolean healthy = false;
+        private boolean connecting = false;
+        private boolean closed = false;
+        private int generation = 0;
+        private int borrowed = 0;
+        private long created = 0;
+        private long waits = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        ProducerPool(final JmsConfiguration jmsConfig) {
+            this.jmsConfig = jmsConfig;
+
+            final long timeout = NumberUtils.toLong(jmsConfig.getProperty(Constants.PRODUCER_IDLE_TIMEOUT), DEFAULT_IDLE_TIMEOUT);
+            this.idleTimeout = timeout > 0 ? timeout : DEFAULT_IDLE_TIMEOUT;
+            this.maxSessions = getMaxSessions(jmsConfig);
+        }
+
+        String getName() {
+            return jmsConfig.getBrokerURL() + " " + jmsConfig.getDestination();
+        }
+
+        /**
+         * Borrow a producer, wait when all sessions are in use or while another thread connects.
+         * Connecting and creating a session are done without holding the pool lock.
+         *
+         * @return A producer, or NULL when the pool has been closed.
+         */
+        PooledProducer borrow(final boolean transacted) throws JMSException, NamingException {
+
+            final long deadline = System.currentTimeMillis() + MAX_WAIT;
+            boolean waited = false;
+
+            while (true) {
+
+                boolean mustConnect = false;
+                Connection reservedConnection = null;
+                Destination reservedDestination = null;
+                int reservedGeneration = 0;
+
+                synchronized (this) {
+
+                    if (closed) {
+                        return null;
+                    }
+
+                    if (!healthy) {
+                        // Reconnect when the connection was reported broken, one thread at a time
+                        if (connecting) {
+                            await(deadline);
+                            continue;
+                        }
+                        connecting = true;
+                        mustConnect = true;
+
+                    } else {
+                        for (final Iterator<PooledProducer> i = idle.iterator(); i.hasNext(); ) {
+                            final PooledProducer candidate = i.next();
+                            if (candidate.transacted == transacted) {
+                                i.remove();
+                                take(candidate.generation);
+                                return candidate;
+                            }
+                        }
+
+                        // Make room, close the least recently used producer of the other kind
+                        if (borrowed + idle.size() >= maxSessions && !idle.isEmpty()) {
+                            idle.removeLast().close();
+                        }
+
+                        if (borrowed + idle.size() >= maxSessions) {
+                            // All sessions are in use
+                            if (!waited) {
+                                waited = true;
+                                waits++;
+                            }
+                            await(deadline);
+                            continue;
+                        }
+
+                        // Reserve the session, it is created without holding the lock
+                        take(generation);
+                        reservedConnection = connection;
+                        reservedDestination = destination;
+                        reservedGeneration = generation;
+                    }
+                }
+
+                if (mustConnect) {
+                    connect();
+                    continue;
+                }
+
+                try {
+                    final Session session = transacted
+                            ? reservedConnection.createSession(true, Session.SESSION_TRANSACTED)
+                            : reservedConnection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                    final Destination target = (reservedDestination != null)
+                            ? reservedDestination
+                            : session.createQueue(jmsConfig.getDestination());
+                    final PooledProducer producer = new PooledProducer(this, reservedGeneration, transacted,
+                            session, session.createProducer(target));
+
+                    synchronized (this) {
+                        created++;
+                    }
+                    return producer;
+
+                } catch (final JMSException ex) {
+                    synchronized (this) {
+                        giveBack(reservedGeneration);
+                    }
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Wait until a producer is given back or a connection is made.
+         */
+        private void await(final long deadline) throws JMSException {
+
+            final long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new JMSException(String.format("No producer available for %s within %d ms, %d sessions in use",
+                        getName(), MAX_WAIT, borrowed));
+            }
+
+            try {
+                wait(wait);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("Interrupted while waiting for a producer for " + getName());
+            }
+        }
+
+        /**
+         * Register a borrowed producer of a connection generation.
+         */
+        private void take(final int producerGeneration) {
+            borrowed++;
+            borrowedPerGeneration.merge(producerGeneration, 1, Integer::sum);
+        }
+
+        /**
+         * Register a producer that is given back; a replaced connection is closed with its last producer.
+         */
+        private void giveBack(final int producerGeneration) {
+            borrowed--;
+
+            final int remaining = borrowedPerGeneration.merge(producerGeneration, -1, Integer::sum);
+            if (remaining <= 0) {
+                borrowedPerGeneration.remove(producerGeneration);
+                final Connection replaced = retired.remove(producerGeneration);
+                if (replaced != null) {
+                    close(replaced);
+                    LOG.info("Closed replaced producer connection to {}", getName());
+                }
+            }
+
+            notifyAll();
+        }
+
+        synchronized void release(final PooledProducer producer) {
+            producer.lastUsed = System.currentTimeMillis();
+            lastUsed = producer.lastUsed;
+
+            // Producers of an older connection are not reused
+            if (!closed && healthy && producer.generation == generation) {
+                idle.addFirst(producer);
+            } else {
+                producer.close();
+            }
+
+            giveBack(producer.generation);
+        }
+
+        /**
+         * Close the session of a producer that failed. The connection is only replaced when it
+         * reports a problem itself, other producers on it are not affected.
+         */
+        synchronized void invalidate(final PooledProducer producer) {
+            producer.close();
+            giveBack(producer.generation);
+        }
+
+        /**
+         * Write pool state and statistics to XML report.
+         */
+        synchronized void write(final MemTreeBuilder builder) {
+
+            builder.startElement("", "pool", "pool", null);
+
+            builder.startElement("", "brokerURL", "brokerURL", null);
+            builder.characters(jmsConfig.getBrokerURL());
+            builder.endElement();
+
+            builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+            builder.characters(jmsConfig.getDestination());
+            builder.endElement();
+
+            builder.startElement("", "state", "state", null);
+            builder.characters(closed ? "CLOSED" : (healthy ? "CONNECTED" : (connecting ? "CONNECTING" : "DISCONNECTED")));
+            builder.endElement();
+
+            builder.startElement("", Constants.POOL_MAX_SESSIONS, Constants.POOL_MAX_SESSIONS, null);
+            builder.characters("" + maxSessions);
+            builder.endElement();
+
+            builder.startElement("", Constants.PRODUCER_IDLE_TIMEOUT, Constants.PRODUCER_IDLE_TIMEOUT, null);
+            builder.characters("" + idleTimeout);
+            builder.endElement();
+
+            builder.startElement("", "statistics", "statistics", null);
+
+            builder.startElement("", "borrowed", "borrowed", null);
+            builder.characters("" + borrowed);
+            builder.endElement();
+
+            builder.startElement("", "idle", "idle", null);
+            builder.characters("" + idle.size());
+            builder.endElement();
+
+            builder.startElement("", "created", "created", null);
+            builder.characters("" + created);
+            builder.endElement();
+
+            builder.startElement("", "waits", "waits", null);
+            builder.characters("" + waits);
+            builder.endElement();
+
+            builder.startElement("", "pendingReplies", "pendingReplies", null);
+            builder.characters("" + pendingReplies.size());
+            builder.endElement();
+
+            builder.endElement(); // statistics
+
+            builder.endElement(); // pool
+        }
+
+        /**
+         * Setup connection and lookup the destination, then replace the current connection.
+         * Called by one borrowing thread at a time, without holding the pool lock.
+         */
+        private void connect() throws JMSException, NamingException {
+
+            final JndiCache jndiCache = JndiCache.getInstance();
+            final Properties props = JndiCache.createEnvironment(jmsConfig);
+
+            Connection newConnection = null;
+            try {
+                // Get connection factory
+                final ConnectionFactory cf = getConnectionFactoryInstance(jndiCache, props);
+                if (cf == null) {
+                    throw new JMSException("Unable to create connection factory");
+                }
+
+                // Setup username/password when required
+                final String userName = jmsConfig.getConnectionUserName();
+                final String password = jmsConfig.getConnectionPassword();
+
+                newConnection = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
+                        ? cf.createConnection()
+                        : cf.createConnection(userName, password);
+
+                // Set clientId when set and not empty
+                final String clientId = jmsConfig.getClientId();
+                if (StringUtils.isNotBlank(clientId)) {
+                    newConnection.setClientID(clientId);
+                }
+
+                // Get notified when the connection breaks
+                final Connection source = newConnection;
+                newConnection.setExceptionListener(ex -> connectionFailed(source, ex));
+
+                // Lookup destination, a temporary destination is created with the session
+                final String destinationName = jmsConfig.getDestination();
+                final Destination newDestination = destinationName.startsWith(TEMPORARY_DESTINATION_PREFIX)
+                        ? null
+                        : jndiCache.lookup(props, destinationName, Destination.class);
+
+                synchronized (this) {
+                    if (!closed) {
+                        retireConnection();
+
+                        connection = newConnection;
+                        destination = newDestination;
+                        generation++;
+                        healthy = true;
+                        newConnection = null;
+
+                        LOG.info("Opened producer connection to {}", getName());
+                    }
+                }
+
+            } catch (final JMSException | NamingException ex) {
+                // Lookup again on the next attempt
+                jndiCache.invalidate(props);
+                throw ex;
+
+            } finally {
+                // Not used when the pool was closed or the connection failed
+                if (newConnection != null) {
+                    close(newConnection);
+                }
+
+                synchronized (this) {
+                    connecting = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Get connection factory
+         */
+        private ConnectionFactory getConnectionFactoryInstance(final JndiCache jndiCache, final Properties props) throws NamingException {
+
+            final ConnectionFactory retVal;
+
+            // Use pooling when
+            final String poolValue = jmsConfig.getProperty(EXIST_CONNECTION_POOL, "activemq");
+            if (StringUtils.isNotBlank(poolValue)) {
+
+                // Get ConnectionFactory
+                retVal = SenderConnectionFactory.getConnectionFactoryInstance(jmsConfig.getBrokerURL(), poolValue, jmsConfig);
+
+            } else {
+                // Get connection factory, the context already contains the brokerURL.
+                retVal = jndiCache.lookup(props, jmsConfig.getConnectionFactory(), ConnectionFactory.class);
+            }
+
+            return retVal;
+        }
+
+        /**
+         * Register a request, the reply queue and its consumer are created on first use.
+         */
+        synchronized PendingReply expectReply(final String correlationId) throws JMSException {
+
+            if (connection == null) {
+                throw new JMSException("Producer connection to " + getName() + " is closed");
+            }
+
+            if (replyQueue == null) {
+                replySession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                replyQueue = replySession.createTemporaryQueue();
+                replySession.createConsumer(replyQueue).setMessageListener(this);
+
+                // Replies are only delivered on a started connection
+                connection.start();
+
+                LOG.info("Created reply queue {} for {}", replyQueue.getQueueName(), getName());
+            }
+
+            final PendingReply pending = new PendingReply(this, correlationId, replyQueue);
+            pendingReplies.put(correlationId, pending);
+            return pending;
+        }
+
+        /**
+         * Route a reply to the waiting request.
+         */
+        @Override
+        public void onMessage(final Message message) {
+            try {
+                final String correlationId = message.getJMSCorrelationID();
+                final PendingReply pending = (correlationId == null) ? null : pendingReplies.remove(correlationId);
+                if (pending == null) {
+                    LOG.debug("Discarding reply with correlation ID {}, no request is waiting for it.", correlationId);
+                } else {
+                    pending.reply.complete(message);
+                }
+
+            } catch (final JMSException ex) {
+                LOG.error("Unable to route reply: {}", ex.getMessage());
+            }
+        }
+
+        /**
+         * A connection reported a problem; the current connection is replaced with the next borrow.
+         */
+        private synchronized void connectionFailed(final Connection source, final JMSException ex) {
+
+            if (source != connection) {
+                // Already replaced
+                return;
+            }
+
+            LOG.error("Producer connection to {} reported a problem: {}", getName(), ex.getMessage());
+            healthy = false;
+
+            // Lookup again when reconnecting
+            JndiCache.getInstance().invalidate(JndiCache.createEnvironment(jmsConfig));
+        }
+
+        /**
+         * Close idle producers older than the idle timeout.
+         *
+         * @return TRUE when the pool is not used at all and is closed.
+         */
+        synchronized boolean evictIdle(final long now) {
+
+            final List<PooledProducer> expired = new ArrayList<>();
+            idle.removeIf(producer -> {
+                final boolean isExpired = now - producer.lastUsed > idleTimeout;
+                if (isExpired) {
+                    expired.add(producer);
+                }
+                return isExpired;
+            });
+            expired.forEach(PooledProducer::close);
+
+            if (borrowed == 0 && !connecting && idle.isEmpty() && pendingReplies.isEmpty() && now - lastUsed > idleTimeout) {
+                closed = true;
+                retireConnection();
+                return true;
+            }
+
+            return false;
+        }
+
+        synchronized void close() {
+            closed = true;
+            retireConnection();
+
+            // Waiting borrowers retry with a new pool
+            notifyAll();
+        }
+
+        /**
+         * Stop using the current connection. It is closed now when no producer is borrowed from it,
+         * otherwise when the last producer is given back.
+         */
+        private void retireConnection() {
+
+            healthy = false;
+
+            // Producers of a replaced connection are not reused
+            idle.forEach(PooledProducer::close);
+            idle.clear();
+
+            // The reply queue is removed with the connection, replies will not arrive anymore
+            if (replySession != null) {
+                try {
+                    replySession.close();
+                } catch (final JMSException ex) {
+                    LOG.debug("Problem closing reply session, ignored. {}", ex.getMessage());
+                }
+                replySession = null;
+                replyQueue = null;
+            }
+            for (final Iterator<PendingReply> i = pendingReplies.values().iterator(); i.hasNext(); ) {
+                i.next().reply.completeExceptionally(new JMSException("Producer connection to " + getName() + " is closed"));
+                i.remove();
+            }
+
+            if (connection != null) {
+                if (borrowedPerGeneration.containsKey(generation)) {
+                    retired.put(generation, connection);
+                } else {
+                    close(connection);
+                }
+                connection = null;
+            }
+            destination = null;
+        }
+
+        private static void close(final Connection connection) {
+            try {
+                connection.close();
+            } catch (final JMSException ex) {
+                LOG.debug("Problem closing connection, ignored. {}", ex.getMessage());
+            }
+        }
+    }
+}
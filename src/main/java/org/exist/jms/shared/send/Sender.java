@@ -28,6 +28,8 @@ import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.NodeImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.jms.shared.*;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
 import org.exist.storage.DBBroker;
 import org.exist.storage.serializers.Serializer;
 import org.exist.validation.internal.node.NodeInputStream;
@@ -37,16 +39,15 @@ import org.exist.xquery.value.*;
 
 import javax.jms.*;
 import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.zip.GZIPOutputStream;
+import java.util.UUID;
 
 import static org.exist.jms.shared.Constants.*;
 import static org.exist.jms.shared.ErrorCodes.*;
@@ -58,7 +59,7 @@ import static org.exist.jms.shared.ErrorCodes.*;
 public class Sender {
 
     private final static Logger LOG = LogManager.getLogger(Sender.class);
-    private static final String EXIST_CONNECTION_POOL = "exist.connection.pool";
+    private static final int BUFFER_SIZE = 64 * 1024;
     private final XQueryContext xQueryContext;
 
     /**
@@ -88,6 +89,20 @@ public class Sender {
      * @throws XPathException Something bad happened.
      */
     public NodeImpl send(final JmsConfiguration jmsConfig, final JmsMessageProperties msgMetaProps, final Item content) throws XPathException {
+        return send(jmsConfig, msgMetaProps, prepare(jmsConfig, msgMetaProps, content));
+    }
+
+    /**
+     * Prepare content for sending, the content does not depend on the XQuery context anymore.
+     * The message properties are completed with the details of the content.
+     *
+     * @param jmsConfig    JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content      The content to be transferred
+     * @return The content, ready to be sent from any thread
+     * @throws XPathException The configuration is not valid, or the content can not be converted.
+     */
+    Content prepare(final JmsConfiguration jmsConfig, final JmsMessageProperties msgMetaProps, final Item content) throws XPathException {
 
         // JMS specific checks
         jmsConfig.validate();
@@ -108,153 +123,362 @@ public class Sender {
             }
         }
 
-        // Retrieve relevant values
-        final String initialContextFactory = jmsConfig.getInitialContextFactory();
-        final String providerURL = jmsConfig.getBrokerURL();
-        final String destinationValue = jmsConfig.getDestination();
+        return (content instanceof eXistMessageItem)
+                ? new Content((eXistMessageItem) content)
+                : createContentFromItem(content, msgMetaProps);
+    }
 
-        Connection connection = null;
+    /**
+     * Send prepared content to JMS broker.
+     *
+     * @param jmsConfig    JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content      The prepared content
+     * @return Report
+     * @throws XPathException Something bad happened.
+     */
+    NodeImpl send(final JmsConfiguration jmsConfig, final JmsMessageProperties msgMetaProps, final Content content) throws XPathException {
+        return send(jmsConfig, msgMetaProps, content, null);
+    }
+
+    /**
+     * Send prepared content to JMS broker.
+     *
+     * @param jmsConfig    JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content      The prepared content
+     * @param handle       Handle of an asynchronous send, added to the report; NULL for a synchronous send
+     * @return Report
+     * @throws XPathException Something bad happened.
+     */
+    NodeImpl send(final JmsConfiguration jmsConfig, final JmsMessageProperties msgMetaProps, final Content content,
+                  final String handle) throws XPathException {
+
+        final ProducerRegistry registry = ProducerRegistry.getInstance();
+        ProducerRegistry.PooledProducer pooledProducer = null;
         try {
-            final Properties props = new Properties();
-            props.setProperty(Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
-            props.setProperty(Context.PROVIDER_URL, providerURL);
-            final javax.naming.Context context = new InitialContext(props);
+            // Get session and producer on a long-lived connection
+            pooledProducer = registry.borrow(jmsConfig);
+
+            final Session session = pooledProducer.getSession();
+            final MessageProducer messageProducer = pooledProducer.getProducer();
+
+            // Create message, depending on incoming object type
+            final Message message = createMessage(session, content, msgMetaProps);
 
-            // Get connection factory
-            final ConnectionFactory cf = getConnectionFactoryInstance(context, jmsConfig);
+            // Set Message properties from user provided data
+            setMessagePropertiesFromMap(msgMetaProps, message);
+
+            // Producers are shared, set time-to-live, priority and deliveryMethod per message
+            final long ttl = getTimeToLive(jmsConfig);
+            final int prio = getPriority(jmsConfig);
+
+            // Send message
+            messageProducer.send(message, getDeliveryMode(jmsConfig), prio, ttl);
+
+            // Return report
+            return createReport(message, ttl, prio, jmsConfig, handle);
 
-            if (cf == null) {
-                throw new XPathException(JMS026, "Unable to create connection factory");
+        } catch (final JMSException ex) {
+            LOG.error(ex.getMessage(), ex);
+
+            // Do not reuse the producer, a broken connection is reported by its exception listener
+            if (pooledProducer != null) {
+                registry.invalidate(pooledProducer);
+                pooledProducer = null;
             }
 
-            // Setup username/password when required
-            final String userName = jmsConfig.getConnectionUserName();
-            final String password = jmsConfig.getConnectionPassword();
+            final Throwable cause = ex.getCause();
 
-            connection = (StringUtils.isBlank(userName) || StringUtils.isBlank(password))
-                    ? cf.createConnection()
-                    : cf.createConnection(userName, password);
+            if ("Error while attempting to add new Connection to the pool".contentEquals(ex.getMessage()) && cause != null) {
+                throw new XPathException(JMS004, cause.getMessage());
 
-            // Set clientId when set and not empty
-            final String clientId = jmsConfig.getClientId();
-            if (StringUtils.isNotBlank(clientId)) {
-                connection.setClientID(clientId);
+            } else {
+                throw new XPathException(JMS004, ex.getMessage());
             }
 
-            // Lookup queue
-            final Destination destination = (Destination) context.lookup(destinationValue);
+        } catch (final Throwable ex) {
+            LOG.error(ex.getMessage(), ex);
+            throw new XPathException(JMS000, ex.getMessage());
 
-            // Create session
-            final Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+        } finally {
+            if (pooledProducer != null) {
+                // Give back for reuse
+                registry.release(pooledProducer);
+            }
+        }
+    }
 
-            // Create message producer
-            final MessageProducer messageProducer = session.createProducer(destination);
+    /**
+     * Send content as a request and wait for the reply. The request is sent with a unique correlation ID
+     * and with the shared reply queue of the connection as JMSReplyTo; the reply must be sent to that
+     * queue with the same correlation ID. Without a configured time-to-live the request expires after
+     * the timeout.
+     *
+     * @param jmsConfig    JMS configuration
+     * @param msgMetaProps JMS message properties
+     * @param content      The content to be transferred
+     * @param timeout      Time in milliseconds to wait for the reply
+     * @return The reply
+     * @throws XPathException No reply was received in time, or something bad happened.
+     */
+    public Message request(final JmsConfiguration jmsConfig, final JmsMessageProperties msgMetaProps,
+                           final Item content, final long timeout) throws XPathException {
 
-            // Create message, depending on incoming object type
-            final boolean isExistMessageItem = (content instanceof eXistMessageItem);
-            final Message message = isExistMessageItem
-                    ? createMessageFromExistMessageItem(session, (eXistMessageItem) content, msgMetaProps)
-                    : createMessageFromItem(session, content, msgMetaProps);
+        final Content prepared = prepare(jmsConfig, msgMetaProps, content);
+        final String correlationId = UUID.randomUUID().toString();
 
-            // Set Message properties from user provided data
+        final ProducerRegistry registry = ProducerRegistry.getInstance();
+        ProducerRegistry.PooledProducer pooledProducer = null;
+        ProducerRegistry.PendingReply pending = null;
+        try {
+            // Get session and producer on a long-lived connection
+            pooledProducer = registry.borrow(jmsConfig);
+
+            final Message message = createMessage(pooledProducer.getSession(), prepared, msgMetaProps);
             setMessagePropertiesFromMap(msgMetaProps, message);
 
-            // Set time-to-live (when available)
+            // Register before sending, the reply can arrive before the send returns
+            pending = pooledProducer.expectReply(correlationId);
+            message.setJMSCorrelationID(correlationId);
+            message.setJMSReplyTo(pending.getReplyTo());
+
             final Long timeToLive = jmsConfig.getTimeToLive();
-            if (timeToLive != null) {
-                messageProducer.setTimeToLive(timeToLive);
+            final long ttl = (timeToLive == null) ? timeout : timeToLive;
+
+            pooledProducer.getProducer().send(message, getDeliveryMode(jmsConfig), getPriority(jmsConfig), ttl);
+
+        } catch (final JMSException ex) {
+            LOG.error(ex.getMessage(), ex);
+
+            if (pending != null) {
+                pending.cancel();
             }
 
-            // Set priority (when available)
-            final Integer priority = jmsConfig.getPriority();
-            if (priority != null) {
-                messageProducer.setPriority(priority);
+            // Do not reuse the producer, a broken connection is reported by its exception listener
+            if (pooledProducer != null) {
+                registry.invalidate(pooledProducer);
+                pooledProducer = null;
             }
 
-            // Set deliveryMethod (when available)
-            final Integer deliveryMethod = jmsConfig.getDeliveryMethod();
-            if (deliveryMethod != null) {
-                messageProducer.setDeliveryMode(deliveryMethod);
+            throw new XPathException(JMS004, ex.getMessage());
+
+        } catch (final Throwable ex) {
+            LOG.error(ex.getMessage(), ex);
+
+            if (pending != null) {
+                pending.cancel();
             }
 
-            // Send message
-            messageProducer.send(message);
+            throw new XPathException(JMS000, ex.getMessage());
 
-            // Return report
-            return createReport(message, messageProducer, jmsConfig);
+        } finally {
+            if (pooledProducer != null) {
+                // Give back for reuse, the reply is awaited without the producer
+                registry.release(pooledProducer);
+            }
+        }
+
+        try {
+            final Message reply = pending.await(timeout);
+            if (reply == null) {
+                throw new XPathException(JMS034, String.format("No reply received within %d ms for request %s", timeout, correlationId));
+            }
+            return reply;
+
+        } catch (final JMSException ex) {
+            LOG.error(ex.getMessage());
+            throw new XPathException(JMS004, ex.getMessage());
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(JMS000, String.format("Interrupted while waiting for reply of request %s", correlationId));
+        }
+    }
+
+    /**
+     * Send items over one session. Within a transaction the messages are only delivered when
+     * all messages are sent; without a transaction the messages that were sent before a failure
+     * are delivered.
+     *
+     * @param jmsConfig  JMS configuration
+     * @param properties JMS message properties, one for all items or one per item
+     * @param contents   The items to be transferred
+     * @param transacted TRUE when the messages are sent in one transaction
+     * @return Summary report
+     * @throws XPathException Something bad happened.
+     */
+    public NodeImpl sendBatch(final JmsConfiguration jmsConfig, final List<JmsMessageProperties> properties,
+                              final Sequence contents, final boolean transacted) throws XPathException {
+
+        final int total = contents.getItemCount();
+        if (properties.size() != 1 && properties.size() != total) {
+            throw new XPathException(JMS011, String.format("Expected one set of message properties or %d, got %d.",
+                    total, properties.size()));
+        }
+
+        final long startTime = System.currentTimeMillis();
+
+        final ProducerRegistry registry = ProducerRegistry.getInstance();
+        ProducerRegistry.PooledProducer pooledProducer = null;
+        int sent = 0;
+        try {
+            // One session and producer for all messages
+            pooledProducer = registry.borrow(jmsConfig, transacted);
+
+            final Session session = pooledProducer.getSession();
+            final MessageProducer messageProducer = pooledProducer.getProducer();
+
+            final long ttl = getTimeToLive(jmsConfig);
+            final int prio = getPriority(jmsConfig);
+            final int deliveryMode = getDeliveryMode(jmsConfig);
+
+            String firstMessageId = null;
+            String lastMessageId = null;
+
+            for (final SequenceIterator i = contents.iterate(); i.hasNext(); ) {
+
+                // The properties are completed for each item, start with the provided ones
+                final JmsMessageProperties msgMetaProps = new JmsMessageProperties();
+                msgMetaProps.putAll(properties.get(properties.size() == 1 ? 0 : sent));
+
+                final Content content = prepare(jmsConfig, msgMetaProps, i.nextItem());
+                final Message message = createMessage(session, content, msgMetaProps);
+                setMessagePropertiesFromMap(msgMetaProps, message);
+
+                messageProducer.send(message, deliveryMode, prio, ttl);
+                sent++;
+
+                lastMessageId = message.getJMSMessageID();
+                if (firstMessageId == null) {
+                    firstMessageId = lastMessageId;
+                }
+            }
+
+            if (transacted) {
+                session.commit();
+            }
+
+            return createBatchReport(sent, transacted, System.currentTimeMillis() - startTime,
+                    firstMessageId, lastMessageId, ttl, prio, jmsConfig);
 
         } catch (final JMSException ex) {
             LOG.error(ex.getMessage(), ex);
 
-            final Throwable cause = ex.getCause();
+            // Do not reuse the producer, a broken connection is reported by its exception listener
+            if (pooledProducer != null) {
+                rollback(pooledProducer, transacted);
+                registry.invalidate(pooledProducer);
+                pooledProducer = null;
+            }
 
-            if ("Error while attempting to add new Connection to the pool".contentEquals(ex.getMessage()) && cause != null) {
-                throw new XPathException(JMS004, cause.getMessage());
+            throw new XPathException(JMS004, getBatchError(sent, total, transacted, ex.getMessage()));
 
-            } else {
-                throw new XPathException(JMS004, ex.getMessage());
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+
+            if (pooledProducer != null) {
+                rollback(pooledProducer, transacted);
             }
 
+            throw new XPathException(ex.getErrorCode(), getBatchError(sent, total, transacted, ex.getMessage()));
+
         } catch (final Throwable ex) {
             LOG.error(ex.getMessage(), ex);
-            throw new XPathException(JMS000, ex.getMessage());
+
+            if (pooledProducer != null) {
+                rollback(pooledProducer, transacted);
+            }
+
+            throw new XPathException(JMS000, getBatchError(sent, total, transacted, ex.getMessage()));
 
         } finally {
+            if (pooledProducer != null) {
+                // Give back for reuse
+                registry.release(pooledProducer);
+            }
+        }
+    }
+
+    private static String getBatchError(final int sent, final int total, final boolean transacted, final String message) {
+        return transacted
+                ? String.format("Batch failed at message %d of %d, no messages are sent: %s", sent + 1, total, message)
+                : String.format("Batch failed at message %d of %d, %d messages are sent: %s", sent + 1, total, sent, message);
+    }
+
+    private static void rollback(final ProducerRegistry.PooledProducer pooledProducer, final boolean transacted) {
+        if (transacted) {
             try {
-                if (connection != null) {
-                    // Close connection
-                    connection.close();
-                }
+                pooledProducer.getSession().rollback();
             } catch (final JMSException ex) {
-                LOG.error("Problem closing connection, ignored. {} ({})", ex.getMessage(), ex.getErrorCode());
+                LOG.debug("Problem rolling back session, ignored. {}", ex.getMessage());
             }
         }
     }
 
-    /**
-     * Get connection factory
-     */
-    private ConnectionFactory getConnectionFactoryInstance(final javax.naming.Context context, final JmsConfiguration jmsConfig) throws NamingException {
+    private static long getTimeToLive(final JmsConfiguration jmsConfig) {
+        final Long timeToLive = jmsConfig.getTimeToLive();
+        return (timeToLive == null) ? Message.DEFAULT_TIME_TO_LIVE : timeToLive;
+    }
 
-        final ConnectionFactory retVal;
+    private static int getPriority(final JmsConfiguration jmsConfig) {
+        final Integer priority = jmsConfig.getPriority();
+        return (priority == null) ? Message.DEFAULT_PRIORITY : priority;
+    }
 
-        // Use pooling when
-        final String poolValue = jmsConfig.getProperty(EXIST_CONNECTION_POOL, "activemq");
-        if (StringUtils.isNotBlank(poolValue)) {
+    private static int getDeliveryMode(final JmsConfiguration jmsConfig) {
+        final Integer deliveryMethod = jmsConfig.getDeliveryMethod();
+        return (deliveryMethod == null) ? Message.DEFAULT_DELIVERY_MODE : deliveryMethod;
+    }
 
-            // Get URL to broker
-            final String providerURL = jmsConfig.getBrokerURL();
+    /**
+     * Create JMS message for the prepared content.
+     *
+     * @param session      The JMS session
+     * @param content      The prepared content
+     * @param msgMetaProps JMS message properties
+     * @return JMS message
+     * @throws JMSException When a problem occurs in the JMS domain
+     * @throws IOException  When the payload of a replication message can not be read
+     */
+    private Message createMessage(final Session session, final Content content, final JmsMessageProperties msgMetaProps) throws JMSException, IOException {
 
-            // Get ConnectionFactory
-            retVal = SenderConnectionFactory.getConnectionFactoryInstance(providerURL, poolValue);
+        if (content.replicationItem != null) {
+            return createMessageFromExistMessageItem(session, content.replicationItem, msgMetaProps);
+        }
 
-        } else {
-            // Get name of connection factory
-            final String connectionFactory = jmsConfig.getConnectionFactory();
+        if (content.bytes != null) {
+            final BytesMessage bytesMessage = session.createBytesMessage();
+            bytesMessage.writeBytes(content.bytes);
+            return bytesMessage;
+        }
 
-            // Get connection factory, the context already contains the brokerURL.
-            retVal = (ConnectionFactory) context.lookup(connectionFactory);
+        if (content.text != null) {
+            // xs:string() is mapped to a TextMessage
+            final TextMessage textMessage = session.createTextMessage();
+            textMessage.setText(content.text);
+            return textMessage;
         }
 
-        return retVal;
+        final ObjectMessage objectMessage = session.createObjectMessage();
+        objectMessage.setObject(content.object);
+        return objectMessage;
     }
 
     /**
-     * Convert messaging-function originated data into a JMS message.
+     * Convert messaging-function originated data into content for a JMS message.
      *
-     * @param session The JMS session
-     * @param item    The XQuery item containing data
-     * @param jmp     JMS message properties
-     * @return JMS message
-     * @throws JMSException   When a problem occurs in the JMS domain
-     * @throws XPathException When an other issue occurs
+     * @param item The XQuery item containing data
+     * @param jmp  JMS message properties
+     * @return The content
+     * @throws XPathException When the data can not be converted
      */
-    private Message createMessageFromItem(final Session session, final Item item, final JmsMessageProperties jmp) throws JMSException, XPathException {
+    private Content createContentFromItem(final Item item, final JmsMessageProperties jmp) throws XPathException {
 
-        final Message message;
+        final Content message;
 
         jmp.setProperty(EXIST_XPATH_DATATYPE, Type.getTypeName(item.getType()));
-        final boolean isCompressed = applyGZIPcompression(jmp);
+        final PayloadCodec codec = getCodec(jmp);
 
         switch (item.getType()) {
             case Type.ELEMENT:
@@ -281,7 +505,7 @@ public class Sender {
                 try (InputStream is = new NodeInputStream(serializer, node);
 
                      // Compress data when indicated
-                     OutputStream os = getOutputStream(isCompressed, baos)) {
+                     OutputStream os = codec.compress(baos, PayloadCodec.DEFAULT_LEVEL)) {
 
                     IOUtils.copy(is, os);
 
@@ -294,12 +518,8 @@ public class Sender {
 //                    LOG.error(e);
 //                }
 
-                // Create actual message, pass data
-                final BytesMessage bytesMessage = session.createBytesMessage();
-                bytesMessage.writeBytes(baos.toByteArray());
-
-                // Swap
-                message = bytesMessage;
+                // Keep data for the actual message
+                message = new Content(baos.toByteArray());
 
                 break;
             }
@@ -326,7 +546,7 @@ public class Sender {
                 final BinaryValue binary = (BinaryValue) item;
 
                 try (InputStream is = binary.getInputStream();
-                     OutputStream os = getOutputStream(isCompressed, baos)) {
+                     OutputStream os = codec.compress(baos, PayloadCodec.DEFAULT_LEVEL)) {
 
                     IOUtils.copy(is, os);
 
@@ -335,64 +555,53 @@ public class Sender {
                     throw new XPathException(JMS001, ex.getMessage(), ex);
                 }
 
-                // Create actual message, pass data
-                final BytesMessage bytesMessage = session.createBytesMessage();
-                bytesMessage.writeBytes(baos.toByteArray());
-
-                // Swap
-                message = bytesMessage;
+                // Keep data for the actual message
+                message = new Content(baos.toByteArray());
 
                 break;
             }
             case Type.STRING:
                 // xs:string() is mapped to a TextMessage
-                final TextMessage textMessage = session.createTextMessage();
-                textMessage.setText(item.getStringValue());
-                message = textMessage;
+                message = new Content(item.getStringValue());
 
 
                 break;
             default:
-                final ObjectMessage objectMessage = session.createObjectMessage();
+                final Serializable value;
 
                 switch (item.getType()) {
                     case Type.INTEGER:
                         final BigInteger intValue = item.toJavaObject(BigInteger.class);
-                        objectMessage.setObject(intValue);
+                        value = intValue;
                         break;
                     case Type.DOUBLE:
                         final Double doubleValue = item.toJavaObject(Double.class);
-                        objectMessage.setObject(doubleValue);
+                        value = doubleValue;
                         break;
                     case Type.FLOAT:
                         final Float foatValue = item.toJavaObject(Float.class);
-                        objectMessage.setObject(foatValue);
+                        value = foatValue;
                         break;
                     case Type.DECIMAL:
                         final BigDecimal decimalValue = item.toJavaObject(BigDecimal.class);
-                        objectMessage.setObject(decimalValue);
+                        value = decimalValue;
                         break;
                     case Type.BOOLEAN:
                         final Boolean booleanValue = item.toJavaObject(Boolean.class);
-                        objectMessage.setObject(booleanValue);
+                        value = booleanValue;
                         break;
                     default:
                         throw new XPathException(JMS027,
                                 String.format("Unable to convert '%s' of type '%s' into a JMS object.", item.getStringValue(), item.getType()));
                 }
 
-                // Swap
-                message = objectMessage;
+                message = new Content(value);
                 break;
         }
 
         return message;
     }
 
-    private OutputStream getOutputStream(final boolean isCompressed, final ByteArrayOutputStream baos) throws IOException {
-        return isCompressed ? new GZIPOutputStream(baos) : baos;
-    }
-
     /**
      * Convert replication originated data into a JMS message.
      *
@@ -402,7 +611,7 @@ public class Sender {
      * @return JMS Message
      * @throws JMSException When an issue happens
      */
-    private Message createMessageFromExistMessageItem(final Session session, final eXistMessageItem emi, final JmsMessageProperties msgMetaProps) throws JMSException {
+    private Message createMessageFromExistMessageItem(final Session session, final eXistMessageItem emi, final JmsMessageProperties msgMetaProps) throws JMSException, IOException {
 
         // Create bytes message
         final BytesMessage message = session.createBytesMessage();
@@ -410,12 +619,21 @@ public class Sender {
         // Set payload when available
         final eXistMessage em = emi.getData();
 
-        final byte[] payload = em.getPayload();
-
-        if (payload == null) {
+        if (!em.hasPayload()) {
             LOG.debug("No payload for replication");
+
+        } else if (em.getPayload() != null) {
+            message.writeBytes(em.getPayload());
+
         } else {
-            message.writeBytes(payload);
+            // Large payload, stream from file
+            try (InputStream is = em.getPayloadInputStream()) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = is.read(buffer)) != -1) {
+                    message.writeBytes(buffer, 0, len);
+                }
+            }
         }
 
         em.updateMessageProperties(message);
@@ -424,20 +642,25 @@ public class Sender {
     }
 
     /**
-     * Determine if the XML/Binary payload needs to be compressed
+     * Determine how the XML/Binary payload needs to be compressed
      *
      * @param mdd The JMS message properties
-     * @return TRUE if not set or has value 'gzip' else FALSE.
+     * @return The codec of the property value, gzip if not set.
+     * @throws XPathException The codec is not supported.
      */
-    private boolean applyGZIPcompression(final JmsMessageProperties mdd) {
+    private PayloadCodec getCodec(final JmsMessageProperties mdd) throws XPathException {
         // 
-        String compressionValue = mdd.getProperty(EXIST_DOCUMENT_COMPRESSION);
+        final String compressionValue = mdd.getProperty(EXIST_DOCUMENT_COMPRESSION);
         if (StringUtils.isBlank(compressionValue)) {
-            compressionValue = COMPRESSION_TYPE_GZIP;
             mdd.setProperty(EXIST_DOCUMENT_COMPRESSION, COMPRESSION_TYPE_GZIP);
         }
 
-        return COMPRESSION_TYPE_GZIP.equals(compressionValue);
+        try {
+            return PayloadCodecs.getCodec(compressionValue);
+
+        } catch (final IllegalArgumentException ex) {
+            throw new XPathException(JMS032, ex.getMessage());
+        }
     }
 
     private void setMessagePropertiesFromMap(final JmsMessageProperties msgMetaProps, final Message message) throws JMSException {
@@ -453,7 +676,11 @@ public class Sender {
             final String key = (String) entry.getKey();
             final Object value = entry.getValue();
 
-            if (value instanceof String) {
+            if (JMS_CORRELATION_ID.equals(key)) {
+                // Set as header, e.g. for the reply of a request
+                message.setJMSCorrelationID(String.valueOf(value));
+
+            } else if (value instanceof String) {
                 message.setStringProperty(key, (String) value);
 
             } else if (value instanceof Integer) {
@@ -474,16 +701,54 @@ public class Sender {
         }
     }
 
+    /**
+     * Content of a message that is prepared for sending; only one of the fields is set.
+     */
+    static class Content {
+        private final byte[] bytes;
+        private final String text;
+        private final Serializable object;
+        private final eXistMessageItem replicationItem;
+
+        Content(final byte[] bytes) {
+            this(bytes, null, null, null);
+        }
+
+        Content(final String text) {
+            this(null, text, null, null);
+        }
+
+        Content(final Serializable object) {
+            this(null, null, object, null);
+        }
+
+        Content(final eXistMessageItem replicationItem) {
+            this(null, null, null, replicationItem);
+        }
+
+        private Content(final byte[] bytes, final String text, final Serializable object, final eXistMessageItem replicationItem) {
+            this.bytes = bytes;
+            this.text = text;
+            this.object = object;
+            this.replicationItem = replicationItem;
+        }
+    }
+
     /**
      * Create messaging results report
      */
-    private NodeImpl createReport(final Message message, final MessageProducer producer, final JmsConfiguration config) {
+    private NodeImpl createReport(final Message message, final long timeToLive, final int priority, final JmsConfiguration config,
+                                  final String handle) {
 
         final MemTreeBuilder builder = new MemTreeBuilder();
         builder.startDocument();
 
         // start root element
         final int nodeNr = builder.startElement("", JMS, JMS, null);
+        if (handle != null) {
+            builder.addAttribute(AsyncSender.HANDLE_QNAME, handle);
+            builder.addAttribute(AsyncSender.STATE_QNAME, AsyncSender.State.COMPLETED.toString());
+        }
 
         /*
          * Message
@@ -526,63 +791,110 @@ public class Sender {
         /*
          * Producer
          */
-        if (producer != null) {
-            try {
-                final long timeToLive = producer.getTimeToLive();
-                builder.startElement("", PRODUCER_TTL, PRODUCER_TTL, null);
-                builder.characters("" + timeToLive);
-                builder.endElement();
-            } catch (final JMSException ex) {
-                LOG.error(ex);
-            }
+        builder.startElement("", PRODUCER_TTL, PRODUCER_TTL, null);
+        builder.characters("" + timeToLive);
+        builder.endElement();
 
-            try {
-                final long priority = producer.getPriority();
-                builder.startElement("", PRODUCER_PRIORITY, PRODUCER_PRIORITY, null);
-                builder.characters("" + priority);
-                builder.endElement();
-            } catch (final JMSException ex) {
-                LOG.error(ex);
-            }
-        }
+        builder.startElement("", PRODUCER_PRIORITY, PRODUCER_PRIORITY, null);
+        builder.characters("" + priority);
+        builder.endElement();
 
         /*
          * Configuration
          */
-        if (config != null) {
-            builder.startElement("", Context.INITIAL_CONTEXT_FACTORY, Context.INITIAL_CONTEXT_FACTORY, null);
-            builder.characters(config.getInitialContextFactory());
-            builder.endElement();
+        writeConfiguration(builder, config);
 
-            builder.startElement("", Context.PROVIDER_URL, Context.PROVIDER_URL, null);
-            builder.characters(config.getBrokerURL());
-            builder.endElement();
+        // finish root element
+        builder.endElement();
 
-            builder.startElement("", Constants.CONNECTION_FACTORY, Constants.CONNECTION_FACTORY, null);
-            builder.characters(config.getConnectionFactory());
+        // return result
+        return builder.getDocument().getNode(nodeNr);
+
+
+    }
+
+    /**
+     * Write the connection details to the report.
+     */
+    private void writeConfiguration(final MemTreeBuilder builder, final JmsConfiguration config) {
+
+        if (config == null) {
+            return;
+        }
+
+        builder.startElement("", Context.INITIAL_CONTEXT_FACTORY, Context.INITIAL_CONTEXT_FACTORY, null);
+        builder.characters(config.getInitialContextFactory());
+        builder.endElement();
+
+        builder.startElement("", Context.PROVIDER_URL, Context.PROVIDER_URL, null);
+        builder.characters(config.getBrokerURL());
+        builder.endElement();
+
+        builder.startElement("", Constants.CONNECTION_FACTORY, Constants.CONNECTION_FACTORY, null);
+        builder.characters(config.getConnectionFactory());
+        builder.endElement();
+
+        builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
+        builder.characters(config.getDestination());
+        builder.endElement();
+
+        final String userName = config.getConnectionUserName();
+        if (StringUtils.isNotBlank(userName)) {
+            builder.startElement("", Constants.JMS_CONNECTION_USERNAME, Constants.JMS_CONNECTION_USERNAME, null);
+            builder.characters(userName);
             builder.endElement();
+        }
+    }
+
+    /**
+     * Create summary report of a batch
+     */
+    private NodeImpl createBatchReport(final int sent, final boolean transacted, final long duration,
+                                       final String firstMessageId, final String lastMessageId,
+                                       final long timeToLive, final int priority, final JmsConfiguration config) {
+
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        // start root element
+        final int nodeNr = builder.startElement("", JMS, JMS, null);
+
+        builder.startElement("", "messages", "messages", null);
+        builder.characters("" + sent);
+        builder.endElement();
 
-            builder.startElement("", Constants.DESTINATION, Constants.DESTINATION, null);
-            builder.characters(config.getDestination());
+        builder.startElement("", "transacted", "transacted", null);
+        builder.characters("" + transacted);
+        builder.endElement();
+
+        builder.startElement("", "duration", "duration", null);
+        builder.characters("" + duration);
+        builder.endElement();
+
+        if (firstMessageId != null) {
+            builder.startElement("", "first-message-id", "first-message-id", null);
+            builder.characters(firstMessageId);
             builder.endElement();
 
-            final String userName = config.getConnectionUserName();
-            if (StringUtils.isNotBlank(userName)) {
-                builder.startElement("", Constants.JMS_CONNECTION_USERNAME, Constants.JMS_CONNECTION_USERNAME, null);
-                builder.characters(userName);
-                builder.endElement();
-            }
+            builder.startElement("", "last-message-id", "last-message-id", null);
+            builder.characters(lastMessageId);
+            builder.endElement();
         }
 
+        builder.startElement("", PRODUCER_TTL, PRODUCER_TTL, null);
+        builder.characters("" + timeToLive);
+        builder.endElement();
+
+        builder.startElement("", PRODUCER_PRIORITY, PRODUCER_PRIORITY, null);
+        builder.characters("" + priority);
+        builder.endElement();
+
+        writeConfiguration(builder, config);
 
         // finish root element
         builder.endElement();
 
-        // return result
         return builder.getDocument().getNode(nodeNr);
-
-
     }
 
-
 }
@@ -19,17 +19,25 @@
  */
 package org.exist.jms.shared.send;
 
+import org.apache.activemq.jms.pool.PooledConnectionFactory;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.JmsConfiguration;
 
 import javax.jms.ConnectionFactory;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Helper class for creating and buffering ConnectionFactory instances.
+ * Helper class for creating and buffering ConnectionFactory instances. One factory is created
+ * per broker URL and factory class, also when it is requested concurrently. Pooled ActiveMQ
+ * factories are sized with the configuration of the first request.
  *
  * @author Dannes Wessels
  */
@@ -37,56 +45,171 @@ class SenderConnectionFactory {
 
     public static final String ACTIVEMQ_POOLED_CONNECTION_FACTORY = "org.apache.activemq.pool.PooledConnectionFactory";
     private final static Logger LOG = LogManager.getLogger(SenderConnectionFactory.class);
-    private static final Map<String, ConnectionFactory> connectionFactories = new HashMap<>();
+    private static final Map<String, BufferedFactory> connectionFactories = new ConcurrentHashMap<>();
+
+    /**
+     * Default time in milliseconds before an unused pooled connection is closed.
+     */
+    private static final int DEFAULT_IDLE_TIMEOUT = 30000;
 
     /**
      * Get Connection Factory. Return existing factory or create new one if not existent.
      *
      * @param brokerURL URL to broker
      * @param poolParam name of specific connection factory, or yes or true or activemq to use optimized pooled activemq factory.
-     * @return the connection factory
+     * @param jmsConfig JMS configuration with the sizes of the pool
+     * @return the connection factory, NULL when it could not be created.
      */
-    static ConnectionFactory getConnectionFactoryInstance(final String brokerURL, String poolParam) {
+    static ConnectionFactory getConnectionFactoryInstance(final String brokerURL, final String poolParam, final JmsConfiguration jmsConfig) {
 
         final String storeID = brokerURL + "#" + poolParam;
 
-        // Try to get CF
-        ConnectionFactory retVal = connectionFactories.get(storeID);
+        // Create the CF only once, concurrent requests wait for it
+        final BufferedFactory buffered = connectionFactories.computeIfAbsent(storeID, k -> createConnectionFactory(brokerURL, poolParam, jmsConfig));
 
-        // WHen not available create a new CF
-        if (retVal == null) {
-            try {
-                LOG.info("Creating new connection factory for {}", brokerURL);
+        return (buffered == null) ? null : buffered.factory;
+    }
 
-                if (StringUtils.isBlank(poolParam) || "yes".equalsIgnoreCase(poolParam)
-                        || "true".equalsIgnoreCase(poolParam) || "activemq".equalsIgnoreCase(poolParam)) {
-                    poolParam = ACTIVEMQ_POOLED_CONNECTION_FACTORY;
-                }
+    private static BufferedFactory createConnectionFactory(final String brokerURL, final String poolParam, final JmsConfiguration jmsConfig) {
 
-                LOG.info("Connection factory: {}", poolParam);
+        try {
+            LOG.info("Creating new connection factory for {}", brokerURL);
 
-                // Construct and initialize the factory
-                final Class<?> clazz = Class.forName(poolParam);
-                final Object object = ConstructorUtils.invokeConstructor(clazz, brokerURL);
+            String className = poolParam;
+            if (StringUtils.isBlank(className) || "yes".equalsIgnoreCase(className)
+                    || "true".equalsIgnoreCase(className) || "activemq".equalsIgnoreCase(className)) {
+                className = ACTIVEMQ_POOLED_CONNECTION_FACTORY;
+            }
 
-                // Convert to class
-                final ConnectionFactory cf = (ConnectionFactory) object;
+            LOG.info("Connection factory: {}", className);
 
-                // Store newly created factory
-                connectionFactories.put(storeID, cf);
+            // Construct and initialize the factory
+            final Class<?> clazz = Class.forName(className);
+            final Object object = ConstructorUtils.invokeConstructor(clazz, brokerURL);
 
-                // Return to requester
-                retVal = cf;
+            // Convert to class
+            final ConnectionFactory cf = (ConnectionFactory) object;
 
-            } catch (final Throwable t) {
-                LOG.error("Unable to create new connection factory: {}", t.getMessage(), t);
+            if (cf instanceof PooledConnectionFactory) {
+                configure((PooledConnectionFactory) cf, jmsConfig);
             }
 
-        } else {
-            LOG.debug("Reusing existing connectionFactory for {}", brokerURL);
+            return new BufferedFactory(brokerURL, cf);
+
+        } catch (final Throwable t) {
+            LOG.error("Unable to create new connection factory: {}", t.getMessage(), t);
+            return null;
+        }
+    }
+
+    /**
+     * Set the sizes of the pool.
+     */
+    private static void configure(final PooledConnectionFactory pcf, final JmsConfiguration jmsConfig) {
+
+        final int maxConnections = NumberUtils.toInt(jmsConfig.getProperty(Constants.POOL_MAX_CONNECTIONS), pcf.getMaxConnections());
+        if (maxConnections > 0) {
+            pcf.setMaxConnections(maxConnections);
+        }
+
+        final int maxSessions = ProducerRegistry.getMaxSessions(jmsConfig);
+        pcf.setMaximumActiveSessionPerConnection(maxSessions);
+
+        // Fail instead of waiting forever when the sessions are exhausted
+        pcf.setBlockIfSessionPoolIsFull(true);
+        pcf.setBlockIfSessionPoolIsFullTimeout(ProducerRegistry.MAX_WAIT);
+
+        final int idleTimeout = NumberUtils.toInt(jmsConfig.getProperty(Constants.POOL_IDLE_TIMEOUT), DEFAULT_IDLE_TIMEOUT);
+        if (idleTimeout > 0) {
+            pcf.setIdleTimeout(idleTimeout);
+        }
+
+        LOG.info("Pooled connection factory: max {} connection(s), max {} session(s) per connection, idle timeout {} ms",
+                pcf.getMaxConnections(), pcf.getMaximumActiveSessionPerConnection(), pcf.getIdleTimeout());
+    }
+
+    /**
+     * Stop and remove connection factories.
+     *
+     * @param brokerURL URL of the broker, NULL for all factories.
+     * @return The number of factories that are stopped.
+     */
+    static int close(final String brokerURL) {
+
+        int closed = 0;
+        for (final Iterator<BufferedFactory> iterator = connectionFactories.values().iterator(); iterator.hasNext(); ) {
+            final BufferedFactory buffered = iterator.next();
+            if (brokerURL == null || brokerURL.equals(buffered.brokerURL)) {
+                iterator.remove();
+                closed++;
+
+                if (buffered.factory instanceof PooledConnectionFactory) {
+                    LOG.info("Stopping connection factory for {}", buffered.brokerURL);
+                    try {
+                        ((PooledConnectionFactory) buffered.factory).stop();
+                    } catch (final Throwable t) {
+                        LOG.error("Unable to stop connection factory for {}: {}", buffered.brokerURL, t.getMessage());
+                    }
+                }
+            }
         }
+        return closed;
+    }
+
+    /**
+     * Write connection factories and their pool statistics to XML report.
+     *
+     * @param builder The builder to create the XML report.
+     */
+    static void write(final MemTreeBuilder builder) {
+
+        for (final BufferedFactory buffered : connectionFactories.values()) {
+
+            builder.startElement("", "connection-factory", "connection-factory", null);
+
+            builder.startElement("", "brokerURL", "brokerURL", null);
+            builder.characters(buffered.brokerURL);
+            builder.endElement();
+
+            builder.startElement("", "class", "class", null);
+            builder.characters(buffered.factory.getClass().getName());
+            builder.endElement();
+
+            if (buffered.factory instanceof PooledConnectionFactory) {
+                final PooledConnectionFactory pcf = (PooledConnectionFactory) buffered.factory;
 
-        return retVal;
+                builder.startElement("", "connections", "connections", null);
+                builder.characters("" + pcf.getNumConnections());
+                builder.endElement();
+
+                builder.startElement("", Constants.POOL_MAX_CONNECTIONS, Constants.POOL_MAX_CONNECTIONS, null);
+                builder.characters("" + pcf.getMaxConnections());
+                builder.endElement();
+
+                builder.startElement("", Constants.POOL_MAX_SESSIONS, Constants.POOL_MAX_SESSIONS, null);
+                builder.characters("" + pcf.getMaximumActiveSessionPerConnection());
+                builder.endElement();
+
+                builder.startElement("", Constants.POOL_IDLE_TIMEOUT, Constants.POOL_IDLE_TIMEOUT, null);
+                builder.characters("" + pcf.getIdleTimeout());
+                builder.endElement();
+            }
+
+            builder.endElement();
+        }
     }
 
+    /**
+     * Connection factory with the broker it connects to.
+     */
+    private static class BufferedFactory {
+
+        private final String brokerURL;
+        private final ConnectionFactory factory;
+
+        BufferedFactory(final String brokerURL, final ConnectionFactory factory) {
+            this.brokerURL = brokerURL;
+            this.factory = factory;
+        }
+    }
 }
@@ -21,6 +21,7 @@ package org.exist.jms.xquery;
 
 import org.exist.dom.QName;
 import org.exist.jms.xquery.management.ListReceivers;
+import org.exist.jms.xquery.management.ManagePools;
 import org.exist.jms.xquery.management.ManageReceivers;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
@@ -49,6 +50,10 @@ public class JmsModule extends AbstractInternalModule {
             new FunctionDef(ManageReceivers.signatures[2], ManageReceivers.class),
             new FunctionDef(ManageReceivers.signatures[3], ManageReceivers.class),
             new FunctionDef(ManageReceivers.signatures[4], ManageReceivers.class),
+
+            new FunctionDef(ManagePools.signatures[0], ManagePools.class),
+            new FunctionDef(ManagePools.signatures[1], ManagePools.class),
+            new FunctionDef(ManagePools.signatures[2], ManagePools.class),
     };
 
     public final static QName EXCEPTION_QNAME =
@@ -21,7 +21,11 @@ package org.exist.jms.xquery;
 
 import org.exist.dom.QName;
 import org.exist.jms.xquery.messaging.RegisterReceiver;
+import org.exist.jms.xquery.messaging.RequestMessage;
+import org.exist.jms.xquery.messaging.SendBatch;
+import org.exist.jms.xquery.messaging.SendCompletion;
 import org.exist.jms.xquery.messaging.SendMessage;
+import org.exist.jms.xquery.messaging.SendMessageAsync;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
 import org.exist.xquery.XPathException;
@@ -44,6 +48,12 @@ public class MessagingModule extends AbstractInternalModule {
     public final static FunctionDef[] functions = {
             new FunctionDef(RegisterReceiver.signatures[0], RegisterReceiver.class),
             new FunctionDef(SendMessage.signatures[0], SendMessage.class),
+            new FunctionDef(SendMessageAsync.signatures[0], SendMessageAsync.class),
+            new FunctionDef(SendBatch.signatures[0], SendBatch.class),
+            new FunctionDef(SendBatch.signatures[1], SendBatch.class),
+            new FunctionDef(RequestMessage.signatures[0], RequestMessage.class),
+            new FunctionDef(SendCompletion.signatures[0], SendCompletion.class),
+            new FunctionDef(SendCompletion.signatures[1], SendCompletion.class),
     };
 
     public final static QName EXCEPTION_QNAME =
@@ -21,7 +21,12 @@ package org.exist.jms.xquery;
 
 
 import org.exist.dom.QName;
+import org.exist.jms.xquery.replication.CreateSnapshot;
+import org.exist.jms.xquery.replication.LoadSnapshot;
+import org.exist.jms.xquery.replication.PublisherReport;
+import org.exist.jms.xquery.replication.QuarantineReport;
 import org.exist.jms.xquery.replication.RegisterReceiver;
+import org.exist.jms.xquery.replication.ReplayQuarantine;
 import org.exist.jms.xquery.replication.ReplicationSwitch;
 import org.exist.jms.xquery.replication.ReplicationSwitchStatus;
 import org.exist.jms.xquery.replication.SyncResource;
@@ -50,6 +55,13 @@ public class ReplicationModule extends AbstractInternalModule {
             new FunctionDef(SyncResource.signatures[1], SyncResource.class),
             new FunctionDef(ReplicationSwitch.signatures[0], ReplicationSwitch.class),
             new FunctionDef(ReplicationSwitchStatus.signatures[0], ReplicationSwitchStatus.class),
+            new FunctionDef(PublisherReport.signatures[0], PublisherReport.class),
+            new FunctionDef(QuarantineReport.signatures[0], QuarantineReport.class),
+            new FunctionDef(ReplayQuarantine.signatures[0], ReplayQuarantine.class),
+            new FunctionDef(ReplayQuarantine.signatures[1], ReplayQuarantine.class),
+            new FunctionDef(CreateSnapshot.signatures[0], CreateSnapshot.class),
+            new FunctionDef(CreateSnapshot.signatures[1], CreateSnapshot.class),
+            new FunctionDef(LoadSnapshot.signatures[0], LoadSnapshot.class),
     };
 
     public final static QName EXCEPTION_QNAME =
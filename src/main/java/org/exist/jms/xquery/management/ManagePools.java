@@ -0,0 +1,106 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.management;
+
+import org.exist.dom.QName;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.send.ProducerRegistry;
+import org.exist.jms.xquery.JmsModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import static org.exist.jms.shared.ErrorCodes.*;
+
+/**
+ * Implementation of the functions for inspecting and closing the connection pools of the senders.
+ */
+public class ManagePools extends BasicFunction {
+
+    public static final String POOLS = "pools";
+    public static final String CLOSE_POOLS = "close-pools";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName(POOLS, JmsModule.NAMESPACE_URI, JmsModule.PREFIX),
+                    "Get the connection factories and producer pools of the senders, with their statistics",
+                    new SequenceType[]{
+                            // no params
+                    },
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with pool information")
+            ),
+            new FunctionSignature(
+                    new QName(CLOSE_POOLS, JmsModule.NAMESPACE_URI, JmsModule.PREFIX),
+                    "Close all producer pools and connection factories of the senders",
+                    new SequenceType[]{
+                            // no params
+                    },
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "Number of closed producer pools")
+            ),
+            new FunctionSignature(
+                    new QName(CLOSE_POOLS, JmsModule.NAMESPACE_URI, JmsModule.PREFIX),
+                    "Close the producer pools and connection factories of the senders for a broker",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("brokerURL", Type.STRING, Cardinality.EXACTLY_ONE, "URL of the broker"),},
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "Number of closed producer pools")
+            ),};
+
+    public ManagePools(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        final ProducerRegistry registry = ProducerRegistry.getInstance();
+
+        try {
+            if (isCalledAs(POOLS)) {
+                // Return report
+                return registry.getReport();
+
+            } else if (isCalledAs(CLOSE_POOLS)) {
+                // Close pools of one or all brokers
+                final String brokerURL = (args.length == 0) ? null : args[0].getStringValue();
+                return new IntegerValue(registry.close(brokerURL));
+
+            } else {
+                throw new XPathException(this, JMS002, String.format("Function '%s' does not exist.", getSignature().getName().getLocalPart()));
+            }
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, JMS000, t);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.messaging;
+
+import org.exist.dom.QName;
+import org.exist.jms.messaging.MessageConverter;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.jms.shared.send.Sender;
+import org.exist.jms.xquery.MessagingModule;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+import javax.jms.Message;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+
+/**
+ * Implementation of the messaging:request() function.
+ */
+public class RequestMessage extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+
+            new FunctionSignature(
+                    new QName("request", MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+                    "Send JMS message as request and wait for the reply. The reply must be sent to the destination "
+                            + "'" + Constants.JMS_REPLY_TO + "' with the '" + Constants.JMS_CORRELATION_ID
+                            + "' of the request.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("content", Type.ITEM, Cardinality.ONE, "Send message to remote server"),
+                            new FunctionParameterSequenceType("jmsMessageProperties", Type.MAP, Cardinality.ZERO_OR_ONE, "Application-defined property values"),
+                            new FunctionParameterSequenceType("jmsConfiguration", Type.MAP, Cardinality.ONE, "JMS configuration settings"),
+                            new FunctionParameterSequenceType("timeout", Type.INTEGER, Cardinality.ONE, "Time in milliseconds to wait for the reply")
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "Content of the reply")
+            ),
+
+    };
+
+    public RequestMessage(final XQueryContext xQueryContext, final FunctionSignature functionSignature) {
+        super(xQueryContext, functionSignature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        // Get content
+        final Item content = args[0].itemAt(0);
+
+        // Get application properties
+        final AbstractMapType msgPropertiesMap = (AbstractMapType) args[1].itemAt(0);
+        final JmsMessageProperties messageProperties = new JmsMessageProperties();
+        messageProperties.loadConfiguration(msgPropertiesMap);
+
+        // Get JMS configuration
+        final AbstractMapType jmsConfigurationMap = (AbstractMapType) args[2].itemAt(0);
+        final JmsConfiguration jmsConfiguration = new JmsConfiguration();
+        jmsConfiguration.loadConfiguration(jmsConfigurationMap);
+
+        // Get timeout
+        final long timeout = ((IntegerValue) args[3].itemAt(0)).getLong();
+        if (timeout <= 0) {
+            throw new XPathException(this, ErrorCodes.JMS011, "The timeout must be a positive number of milliseconds.");
+        }
+
+        try {
+            // Send request, wait for the reply
+            final Sender sender = new Sender(context);
+            final Message reply = sender.request(jmsConfiguration, messageProperties, content, timeout);
+
+            return new MessageConverter(context).getContent(reply);
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+}
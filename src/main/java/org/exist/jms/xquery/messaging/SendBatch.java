@@ -0,0 +1,125 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.messaging;
+
+import org.exist.dom.QName;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.shared.JmsConfiguration;
+import org.exist.jms.shared.JmsMessageProperties;
+import org.exist.jms.shared.send.Sender;
+import org.exist.jms.xquery.MessagingModule;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+
+/**
+ * Implementation of the messaging:send-batch() function.
+ */
+public class SendBatch extends BasicFunction {
+
+    private static final String DESCRIPTION = "Send items as JMS messages over one session. Provide one map "
+            + "of message properties for all items, or one map per item.";
+
+    public final static FunctionSignature signatures[] = {
+
+            new FunctionSignature(
+                    new QName("send-batch", MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+                    DESCRIPTION,
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("contents", Type.ITEM, Cardinality.ZERO_OR_MORE, "Items to send to remote server"),
+                            new FunctionParameterSequenceType("jmsMessageProperties", Type.MAP, Cardinality.ZERO_OR_MORE, "Application-defined property values"),
+                            new FunctionParameterSequenceType("jmsConfiguration", Type.MAP, Cardinality.ONE, "JMS configuration settings")
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ONE, "Summary of the sent messages")
+            ),
+
+            new FunctionSignature(
+                    new QName("send-batch", MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+                    DESCRIPTION + " In a transaction the messages are only delivered when all items are sent.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("contents", Type.ITEM, Cardinality.ZERO_OR_MORE, "Items to send to remote server"),
+                            new FunctionParameterSequenceType("jmsMessageProperties", Type.MAP, Cardinality.ZERO_OR_MORE, "Application-defined property values"),
+                            new FunctionParameterSequenceType("jmsConfiguration", Type.MAP, Cardinality.ONE, "JMS configuration settings"),
+                            new FunctionParameterSequenceType("transacted", Type.BOOLEAN, Cardinality.ONE, "Send the messages in one transaction")
+                    },
+                    new FunctionReturnSequenceType(Type.ITEM, Cardinality.ONE, "Summary of the sent messages")
+            ),
+
+    };
+
+    public SendBatch(final XQueryContext xQueryContext, final FunctionSignature functionSignature) {
+        super(xQueryContext, functionSignature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        // Get contents
+        final Sequence contents = args[0];
+
+        // Get application properties, one set for all items or one per item
+        final List<JmsMessageProperties> messageProperties = new ArrayList<>();
+        for (final SequenceIterator i = args[1].iterate(); i.hasNext(); ) {
+            final JmsMessageProperties properties = new JmsMessageProperties();
+            properties.loadConfiguration((AbstractMapType) i.nextItem());
+            messageProperties.add(properties);
+        }
+        if (messageProperties.isEmpty()) {
+            messageProperties.add(new JmsMessageProperties());
+        }
+
+        // Get JMS configuration
+        final AbstractMapType jmsConfigurationMap = (AbstractMapType) args[2].itemAt(0);
+        final JmsConfiguration jmsConfiguration = new JmsConfiguration();
+        jmsConfiguration.loadConfiguration(jmsConfigurationMap);
+
+        final boolean transacted = args.length > 3 && args[3].effectiveBooleanValue();
+
+        try {
+            // Send messages
+            final Sender sender = new Sender(context);
+            return sender.sendBatch(jmsConfiguration, messageProperties, contents, transacted);
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.messaging;
+
+import org.exist.dom.QName;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.send.AsyncSender;
+import org.exist.jms.xquery.MessagingModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+
+/**
+ * Implementation of the messaging:await() and messaging:poll() functions.
+ */
+public class SendCompletion extends BasicFunction {
+
+    private static final String AWAIT = "await";
+
+    private static final String RESULT_DESCRIPTION = "For each handle the report of the completed send, or an element "
+            + "with the handle and the state 'pending', 'failed' or 'unknown'. The result of a completed or failed send "
+            + "is returned once.";
+
+    public final static FunctionSignature signatures[] = {
+
+            new FunctionSignature(
+                    new QName(AWAIT, MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+                    "Wait for the completion of messages sent with messaging:send-async().",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("handles", Type.STRING, Cardinality.ZERO_OR_MORE, "Handles of the sends"),
+                            new FunctionParameterSequenceType("timeout", Type.INTEGER, Cardinality.ONE, "Maximum time in milliseconds to wait for all sends")
+                    },
+                    new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE, RESULT_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName("poll", MessagingModule.NAMESPACE_URI, MessagingModule.PREFIX),
+                    "Get the state of messages sent with messaging:send-async(), without waiting.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("handles", Type.STRING, Cardinality.ZERO_OR_MORE, "Handles of the sends")
+                    },
+                    new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE, RESULT_DESCRIPTION)
+            ),
+
+    };
+
+    public SendCompletion(final XQueryContext xQueryContext, final FunctionSignature functionSignature) {
+        super(xQueryContext, functionSignature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        // One deadline for all handles
+        final long deadline = isCalledAs(AWAIT)
+                ? System.currentTimeMillis() + Math.max(0, ((IntegerValue) args[1].itemAt(0)).getLong())
+                : 0;
+
+        final AsyncSender asyncSender = AsyncSender.getInstance();
+        final ValueSequence result = new ValueSequence();
+        for (final SequenceIterator i = args[0].iterate(); i.hasNext(); ) {
+            result.add(asyncSender.getResult(i.nextItem().getStringValue(), deadline));
+        }
+
+        return result;
+    }
+}
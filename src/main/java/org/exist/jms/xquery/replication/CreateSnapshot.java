@@ -0,0 +1,131 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.replication;
+
+
+import org.exist.collections.Collection;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.publish.PublisherConfiguration;
+import org.exist.jms.replication.publish.ReplicationTrigger;
+import org.exist.jms.replication.publish.SnapshotWriter;
+import org.exist.jms.replication.shared.Snapshot;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.xquery.ReplicationModule;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+import static org.exist.jms.shared.ErrorCodes.JMS030;
+import static org.exist.jms.shared.ErrorCodes.JMS031;
+
+/**
+ * Implementation of the replication:snapshot() functions.
+ */
+public class CreateSnapshot extends BasicFunction {
+
+    private static final String SNAPSHOT = "snapshot";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName(SNAPSHOT, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Send a snapshot of a collection tree in chunks to the destination of the replication trigger of the collection. "
+                            + "Replicas load the snapshot in bulk, and skip changes that are older than the snapshot.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("collection", Type.STRING, Cardinality.EXACTLY_ONE, "Path to the root collection"),},
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the size and throughput of the snapshot")),
+            new FunctionSignature(
+                    new QName(SNAPSHOT, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Write a snapshot of a collection tree to a file, for loading with replication:load-snapshot(). Only for DBA users.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("collection", Type.STRING, Cardinality.EXACTLY_ONE, "Path to the root collection"),
+                            new FunctionParameterSequenceType("file", Type.STRING, Cardinality.EXACTLY_ONE, "Path of the file on the server"),},
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the size and throughput of the snapshot")),
+    };
+
+    public CreateSnapshot(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group, files can only be written by a DBA
+        final boolean toFile = args.length == 2;
+        if (!context.getSubject().hasDbaRole() && (toFile || !context.getSubject().hasGroup(Constants.JMS_GROUP))) {
+            final String txt = toFile
+                    ? String.format("Permission denied, user '%s' must be a DBA", context.getSubject().getName())
+                    : String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        final DBBroker broker = context.getBroker();
+
+        try {
+            final XmldbURI collectionURI = XmldbURI.create(args[0].getStringValue());
+
+            final Collection collection = broker.openCollection(collectionURI, Lock.LockMode.NO_LOCK);
+            if (collection == null) {
+                throw new XPathException(this, JMS031, String.format("Collection not found: %s", collectionURI));
+            }
+
+            // Compression and destination of the replication trigger
+            final Optional<ReplicationTrigger> trigger = SyncResource.getReplicationTrigger(broker, collection);
+            final PublisherConfiguration configuration = trigger.map(ReplicationTrigger::getConfiguration).orElse(null);
+
+            final Snapshot snapshot;
+            if (toFile) {
+                snapshot = new SnapshotWriter(configuration).write(broker, collectionURI, Paths.get(args[1].getStringValue()));
+
+            } else {
+                if (configuration == null) {
+                    throw new XPathException(this, JMS030, String.format("No trigger configuration found for collection %s", collectionURI));
+                }
+                snapshot = new SnapshotWriter(configuration).send(broker, collectionURI);
+            }
+
+            final MemTreeBuilder builder = new MemTreeBuilder();
+            builder.startDocument();
+            final int nodeNr = snapshot.write(builder);
+
+            return builder.getDocument().getNode(nodeNr);
+
+        } catch (final XPathException ex) {
+            LOG.error(ex.getMessage());
+            ex.setLocation(this.line, this.column, this.getSource());
+            throw ex;
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+
+}
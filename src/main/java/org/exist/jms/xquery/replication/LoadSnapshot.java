@@ -0,0 +1,110 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.replication;
+
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.shared.Snapshot;
+import org.exist.jms.replication.subscribe.ReplicationJmsListener;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.shared.eXistMessagingListener;
+import org.exist.jms.shared.receive.Receiver;
+import org.exist.jms.shared.receive.ReceiversManager;
+import org.exist.jms.xquery.ReplicationModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+import static org.exist.jms.shared.ErrorCodes.JMS031;
+
+/**
+ * Implementation of the replication:load-snapshot() function.
+ */
+public class LoadSnapshot extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("load-snapshot", ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Load a snapshot file created with replication:snapshot(). Replicated changes that are older than the snapshot "
+                            + "are skipped afterwards. Only for DBA users.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("file", Type.STRING, Cardinality.EXACTLY_ONE, "Path of the file on the server"),},
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the size and throughput of the loaded snapshot")),
+    };
+
+    public LoadSnapshot(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // Files can only be read by a DBA
+        if (!context.getSubject().hasDbaRole()) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA", context.getSubject().getName());
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        final Path file = Paths.get(args[0].getStringValue());
+        if (!Files.isRegularFile(file)) {
+            throw new XPathException(this, JMS031, String.format("Snapshot file not found: %s", file));
+        }
+
+        try {
+            final Snapshot snapshot = getListener().loadSnapshot(file);
+
+            final MemTreeBuilder builder = new MemTreeBuilder();
+            builder.startDocument();
+            final int nodeNr = snapshot.write(builder);
+
+            return builder.getDocument().getNode(nodeNr);
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+
+    /**
+     * Get the listener of a registered replication receiver, so the statistics of the snapshot
+     * are reported with the receiver.
+     */
+    private ReplicationJmsListener getListener() {
+
+        final ReceiversManager manager = ReceiversManager.getInstance();
+        for (final Integer id : manager.getIds()) {
+            final Receiver receiver = manager.get(id);
+            final eXistMessagingListener listener = (receiver == null) ? null : receiver.getListener();
+            if (listener instanceof ReplicationJmsListener) {
+                return (ReplicationJmsListener) listener;
+            }
+        }
+
+        return ReplicationJmsListener.getSnapshotLoader(context.getBroker().getBrokerPool());
+    }
+
+}
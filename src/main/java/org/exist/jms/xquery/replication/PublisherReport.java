@@ -0,0 +1,99 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.replication;
+
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.publish.Coalescer;
+import org.exist.jms.replication.publish.ContentDigests;
+import org.exist.jms.replication.publish.DeltaEncoder;
+import org.exist.jms.replication.publish.PublishQueue;
+import org.exist.jms.replication.publish.PublishQueueManager;
+import org.exist.jms.replication.publish.TransactionBatches;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.xquery.ReplicationModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+
+/**
+ * Implementation of the replication:publisher-report() function.
+ */
+public class PublisherReport extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("publisher-report", ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Get state and statistics of the publish queues and transaction batches of the replication trigger.",
+                    null,
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with publisher information")),
+    };
+
+    public PublisherReport(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        try {
+            final MemTreeBuilder builder = new MemTreeBuilder();
+            builder.startDocument();
+
+            final int nodeNr = builder.startElement("", "publisher", "publisher", null);
+
+            for (final PublishQueue queue : PublishQueueManager.getInstance().getQueues()) {
+                queue.write(builder);
+            }
+
+            for (final Coalescer coalescer : PublishQueueManager.getInstance().getCoalescers()) {
+                coalescer.write(builder);
+            }
+
+            TransactionBatches.getInstance().write(builder);
+
+            DeltaEncoder.getInstance().write(builder);
+            ContentDigests.getInstance().write(builder);
+
+            builder.endElement();
+
+            return builder.getDocument().getNode(nodeNr);
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+
+}
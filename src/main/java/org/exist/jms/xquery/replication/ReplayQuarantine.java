@@ -0,0 +1,113 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2019 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.jms.xquery.replication;
+
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.jms.replication.subscribe.Quarantine;
+import org.exist.jms.shared.Constants;
+import org.exist.jms.shared.ErrorCodes;
+import org.exist.jms.xquery.ReplicationModule;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.exist.jms.shared.ErrorCodes.JMS010;
+import static org.exist.jms.shared.ErrorCodes.JMS033;
+
+/**
+ * Implementation of the replication:replay-quarantine() functions.
+ */
+public class ReplayQuarantine extends BasicFunction {
+
+    private static final String REPLAY_QUARANTINE = "replay-quarantine";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName(REPLAY_QUARANTINE, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Apply all parked changes again, in the order they were parked. Changes that fail again stay parked.",
+                    null,
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the number of applied and failed changes")),
+            new FunctionSignature(
+                    new QName(REPLAY_QUARANTINE, ReplicationModule.NAMESPACE_URI, ReplicationModule.PREFIX),
+                    "Apply parked changes again, in the order they were parked. Changes that fail again stay parked.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("ids", Type.STRING, Cardinality.ZERO_OR_MORE, "IDs of the parked changes, as reported by replication:quarantine()"),},
+                    new FunctionReturnSequenceType(Type.NODE, Cardinality.ONE, "XML fragment with the number of applied and failed changes")),
+    };
+
+    public ReplayQuarantine(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        // User must either be DBA or in the JMS group
+        if (!context.getSubject().hasDbaRole() && !context.getSubject().hasGroup(Constants.JMS_GROUP)) {
+            final String txt = String.format("Permission denied, user '%s' must be a DBA or be in group '%s'",
+                    context.getSubject().getName(), Constants.JMS_GROUP);
+            final XPathException ex = new XPathException(this, JMS010, txt);
+            LOG.error(txt, ex);
+            throw ex;
+        }
+
+        final Set<String> ids = new HashSet<>();
+        if (args.length == 1) {
+            if (args[0].isEmpty()) {
+                // Nothing selected
+                return replayResult(0, 0);
+            }
+            for (final SequenceIterator i = args[0].iterate(); i.hasNext(); ) {
+                ids.add(i.nextItem().getStringValue());
+            }
+        }
+
+        try {
+            final int[] result = Quarantine.getInstance(context.getBroker().getBrokerPool()).replay(ids);
+            return replayResult(result[0], result[1]);
+
+        } catch (final IllegalStateException ex) {
+            LOG.error(ex.getMessage());
+            throw new XPathException(this, JMS033, ex.getMessage());
+
+        } catch (final Throwable t) {
+            LOG.error(t.getMessage(), t);
+            throw new XPathException(this, ErrorCodes.JMS000, t);
+        }
+    }
+
+    private Sequence replayResult(final int applied, final int failed) {
+
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+
+        final int nodeNr = builder.startElement("", "replay", "replay", null);
+        builder.addAttribute(new QName("applied", null, null), "" + applied);
+        builder.addAttribute(new QName("failed", null, null), "" + failed);
+        builder.endElement();
+
+        return builder.getDocument().getNode(nodeNr);
+    }
+
+}
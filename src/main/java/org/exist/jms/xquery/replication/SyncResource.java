@@ -114,6 +114,9 @@ public class SyncResource extends BasicFunction {
             }
             final ReplicationTrigger trigger = replicationTrigger.get();
 
+            // Content is sent even when the replica is expected to have it
+            trigger.setForceContent(true);
+
 
             try (Txn txn = txnManager.beginTransaction()) {
 
@@ -180,7 +183,7 @@ public class SyncResource extends BasicFunction {
      * @param parentCollection The collection contaiing the resource
      * @return The trigger wrapped as optional
      */
-    private Optional<ReplicationTrigger> getReplicationTrigger(final DBBroker broker, final Collection parentCollection) throws TriggerException {
+    static Optional<ReplicationTrigger> getReplicationTrigger(final DBBroker broker, final Collection parentCollection) throws TriggerException {
 
         final CollectionConfiguration config = parentCollection.getConfiguration(broker);
 
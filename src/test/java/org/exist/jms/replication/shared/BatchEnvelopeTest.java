@@ -0,0 +1,212 @@
+package org.exist.jms.replication.shared;
+
+import org.apache.commons.io.IOUtils;
+import org.exist.jms.shared.eXistMessage;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchEnvelopeTest {
+
+    private static eXistMessage createMessage(final String path, final eXistMessage.ResourceOperation operation,
+                                              final byte[] payload) {
+        final eXistMessage em = new eXistMessage();
+        em.setResourceType(eXistMessage.ResourceType.DOCUMENT);
+        em.setResourceOperation(operation);
+        em.setResourcePath(path);
+        em.setPayload(payload);
+        return em;
+    }
+
+    private static List<eXistMessage> read(final eXistMessage envelope, final int threshold) throws IOException {
+        final List<eXistMessage> messages = new ArrayList<>();
+        try (InputStream is = envelope.getPayloadInputStream();
+             BatchEnvelope.Reader reader = new BatchEnvelope.Reader(is, threshold)) {
+            eXistMessage em;
+            while ((em = reader.next()) != null) {
+                messages.add(em);
+            }
+        }
+        return messages;
+    }
+
+    private static byte[] getPayload(final eXistMessage em) throws IOException {
+        try (InputStream is = em.getPayloadInputStream()) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        final eXistMessage create = createMessage("/db/a/1.xml", eXistMessage.ResourceOperation.CREATE,
+                "<a/>".getBytes(StandardCharsets.UTF_8));
+        create.getMetadata().put("int", 42);
+        create.getMetadata().put("long", 42L);
+        create.getMetadata().put("string", "é中");
+        create.getMetadata().put("null", null);
+        create.getMetadata().put("boolean", Boolean.TRUE);
+
+        final eXistMessage move = createMessage("/db/a/2.xml", eXistMessage.ResourceOperation.MOVE, new byte[0]);
+        move.setDestinationPath("/db/b/2.xml");
+
+        final eXistMessage envelope = BatchEnvelope.create(Arrays.asList(create, move), 1024);
+        assertEquals(eXistMessage.ResourceType.BATCH, envelope.getResourceType());
+        assertEquals(2, envelope.getMetadata().get(BatchEnvelope.EXIST_BATCH_SIZE));
+
+        final List<eXistMessage> messages = read(envelope, 1024);
+        envelope.resetPayload();
+
+        assertEquals(2, messages.size());
+
+        final eXistMessage first = messages.get(0);
+        assertEquals(eXistMessage.ResourceType.DOCUMENT, first.getResourceType());
+        assertEquals(eXistMessage.ResourceOperation.CREATE, first.getResourceOperation());
+        assertEquals("/db/a/1.xml", first.getResourcePath());
+        assertNull(first.getDestinationPath());
+        assertEquals(42, first.getMetadata().get("int"));
+        assertEquals(42L, first.getMetadata().get("long"));
+        assertEquals("é中", first.getMetadata().get("string"));
+        assertTrue(first.getMetadata().containsKey("null"));
+        assertNull(first.getMetadata().get("null"));
+        assertEquals("true", first.getMetadata().get("boolean"));
+        assertArrayEquals("<a/>".getBytes(StandardCharsets.UTF_8), getPayload(first));
+
+        final eXistMessage second = messages.get(1);
+        assertEquals(eXistMessage.ResourceOperation.MOVE, second.getResourceOperation());
+        assertEquals("/db/b/2.xml", second.getDestinationPath());
+        assertEquals(0, second.getPayloadSize());
+    }
+
+    @Test
+    public void empty() throws IOException {
+        final eXistMessage envelope = BatchEnvelope.create(Collections.emptyList(), 1024);
+        assertTrue(read(envelope, 1024).isEmpty());
+    }
+
+    @Test
+    public void largePayloads() throws IOException {
+
+        final byte[] data = new byte[100_000];
+        new Random(1).nextBytes(data);
+
+        // Envelope and entries are spilled to temporary files
+        final eXistMessage envelope = BatchEnvelope.create(Arrays.asList(
+                createMessage("/db/a/1.bin", eXistMessage.ResourceOperation.CREATE, data),
+                createMessage("/db/a/2.bin", eXistMessage.ResourceOperation.UPDATE, data)), 1024);
+
+        final List<eXistMessage> messages = read(envelope, 1024);
+        envelope.resetPayload();
+
+        assertEquals(2, messages.size());
+        for (final eXistMessage em : messages) {
+            assertEquals(data.length, em.getPayloadSize());
+            assertArrayEquals(data, getPayload(em));
+            em.resetPayload();
+        }
+    }
+
+    @Test
+    public void longStrings() throws IOException {
+
+        final char[] chars = new char[100_000];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+
+        final eXistMessage em = createMessage("/db/" + value, eXistMessage.ResourceOperation.UPDATE, new byte[0]);
+        em.getMetadata().put("long-value", value);
+
+        final List<eXistMessage> messages = read(BatchEnvelope.create(Collections.singletonList(em), 1024), 1024);
+        assertEquals("/db/" + value, messages.get(0).getResourcePath());
+        assertEquals(value, messages.get(0).getMetadata().get("long-value"));
+    }
+
+    @Test
+    public void writer() throws IOException {
+
+        final Path file = Files.createTempFile("envelope", ".bin");
+        try {
+            try (BatchEnvelope.Writer writer = new BatchEnvelope.Writer(file)) {
+                for (int i = 0; i < 3; i++) {
+                    writer.write(createMessage("/db/" + i + ".xml", eXistMessage.ResourceOperation.CREATE,
+                            ("<a>" + i + "</a>").getBytes(StandardCharsets.UTF_8)));
+                }
+                assertEquals(3, writer.getSize());
+            }
+
+            try (BatchEnvelope.Reader reader = new BatchEnvelope.Reader(Files.newInputStream(file), 1024)) {
+                assertEquals(3, reader.getSize());
+                for (int i = 0; i < 3; i++) {
+                    final eXistMessage em = reader.next();
+                    assertEquals("/db/" + i + ".xml", em.getResourcePath());
+                    assertArrayEquals(("<a>" + i + "</a>").getBytes(StandardCharsets.UTF_8), getPayload(em));
+                }
+                assertNull(reader.next());
+            }
+
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAnEnvelope() throws IOException {
+        new BatchEnvelope.Reader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}), 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+
+        final eXistMessage envelope = BatchEnvelope.create(Collections.singletonList(
+                createMessage("/db/a.xml", eXistMessage.ResourceOperation.CREATE, new byte[500])), 1024);
+        final byte[] data = getPayload(envelope);
+
+        try (BatchEnvelope.Reader reader = new BatchEnvelope.Reader(
+                new ByteArrayInputStream(Arrays.copyOf(data, data.length - 100)), 1024)) {
+            reader.next();
+        }
+    }
+
+    @Test
+    public void deliveryOfEntries() throws IOException {
+
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        final List<eXistMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final eXistMessage em = createMessage("/db/" + i + ".xml", eXistMessage.ResourceOperation.UPDATE, new byte[10]);
+            em.addDeliveryListener(delivered -> (delivered ? sent : failed).incrementAndGet());
+            messages.add(em);
+        }
+
+        final eXistMessage envelope = BatchEnvelope.create(messages, 1024);
+        assertEquals(0, sent.get());
+
+        envelope.completeDelivery(true);
+        assertEquals(3, sent.get());
+
+        // Only the first outcome is reported
+        envelope.completeDelivery(false);
+        messages.get(0).completeDelivery(false);
+        assertEquals(3, sent.get());
+        assertFalse(failed.get() > 0);
+    }
+}
@@ -0,0 +1,110 @@
+package org.exist.jms.replication.shared;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XmlDeltaTest {
+
+    private static final String BASE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<library>\n"
+            + "    <book id=\"1\"><title>First</title><author>A</author></book>\n"
+            + "    <book id=\"2\"><title>Second</title><author>B</author></book>\n"
+            + "    <!-- comment -->\n"
+            + "    <book id=\"3\"><title>Third</title><author>C</author></book>\n"
+            + "</library>";
+
+    /**
+     * Compute delta, write and read it, and verify it recreates the target from the base.
+     */
+    private static XmlDelta roundTrip(final String base, final String target) throws IOException {
+
+        final XmlDelta delta = XmlDelta.diff(base, target);
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        delta.write(os);
+        final XmlDelta read = XmlDelta.read(new ByteArrayInputStream(os.toByteArray()));
+
+        assertEquals(target, delta.apply(base));
+        assertEquals(target, read.apply(base));
+        return delta;
+    }
+
+    @Test
+    public void identical() throws IOException {
+        final XmlDelta delta = roundTrip(BASE, BASE);
+        assertTrue(delta.getSize() < BASE.length() / 2);
+    }
+
+    @Test
+    public void changeText() throws IOException {
+        final XmlDelta delta = roundTrip(BASE, BASE.replace("<title>Second</title>", "<title>Changed</title>"));
+        assertTrue(delta.getSize() < BASE.length() / 2);
+    }
+
+    @Test
+    public void changeAttribute() throws IOException {
+        roundTrip(BASE, BASE.replace("<book id=\"2\">", "<book id=\"22\">"));
+    }
+
+    @Test
+    public void insertElement() throws IOException {
+        roundTrip(BASE, BASE.replace("    <!-- comment -->\n",
+                "    <!-- comment -->\n    <book id=\"4\"><title>Fourth</title></book>\n"));
+    }
+
+    @Test
+    public void deleteElement() throws IOException {
+        roundTrip(BASE, BASE.replace("    <book id=\"1\"><title>First</title><author>A</author></book>\n", ""));
+    }
+
+    @Test
+    public void appendChild() throws IOException {
+        roundTrip(BASE, BASE.replace("<author>C</author></book>", "<author>C</author><year>2019</year></book>"));
+    }
+
+    @Test
+    public void replaceRoot() throws IOException {
+        roundTrip(BASE, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<other/>");
+    }
+
+    @Test
+    public void multipleChanges() throws IOException {
+        roundTrip(BASE, BASE.replace("First", "Eerste").replace("Third", "Derde"));
+    }
+
+    @Test
+    public void specialContent() throws IOException {
+        final String base = "<a><![CDATA[<not><xml>]]><b attr=\"&gt;\">&amp;</b><?pi data?><c/></a>";
+        roundTrip(base, base.replace("<c/>", "<c>text</c>"));
+        roundTrip(base, base.replace("&amp;", "&lt;"));
+    }
+
+    @Test
+    public void unicode() throws IOException {
+        final String base = "<a><b>éèê</b><c>中文</c></a>";
+        roundTrip(base, base.replace("中文", "😀"));
+    }
+
+    @Test(expected = IOException.class)
+    public void applyToOtherDocument() throws IOException {
+        final XmlDelta delta = XmlDelta.diff(BASE, BASE.replace("<author>C</author>", "<author>D</author>"));
+        delta.apply("<library/>");
+    }
+
+    @Test(expected = IOException.class)
+    public void notWellFormed() throws IOException {
+        XmlDelta.diff("<a><b></a>", "<a><c></a>");
+    }
+
+    @Test
+    public void digest() {
+        assertEquals(XmlDelta.digest(BASE), XmlDelta.digest(new String(BASE.toCharArray())));
+        assertTrue(!XmlDelta.digest(BASE).equals(XmlDelta.digest(BASE + " ")));
+    }
+}
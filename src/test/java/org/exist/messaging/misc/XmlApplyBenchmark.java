@@ -0,0 +1,114 @@
+package org.exist.messaging.misc;
+
+import org.exist.jms.replication.shared.ContentBuffer;
+import org.exist.jms.shared.codec.PayloadCodec;
+import org.exist.jms.shared.codec.PayloadCodecs;
+import org.exist.jms.shared.eXistMessage;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares the two ways of applying a received XML document: decompressing the payload for
+ * both the validate and the store parse, and decompressing it once into a content buffer
+ * (codecs that decompress faster than data can be buffered are still read twice).
+ * The two parses are simulated with a SAX parser, as done by eXist-db.
+ * <p>
+ * Usage: XmlApplyBenchmark [size in MB] [iterations] [codec]
+ */
+public class XmlApplyBenchmark {
+
+    private static final int CONTENT_MEMORY_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) throws Exception {
+
+        final int sizeMB = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        final int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        final PayloadCodec codec = PayloadCodecs.getCodec((args.length > 2) ? args[2] : "gzip");
+
+        final byte[] payload = createPayload(sizeMB * 1024 * 1024, codec);
+        System.out.println(String.format("Payload: %d MB XML, %d bytes compressed with %s", sizeMB, payload.length, codec.getName()));
+
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final SAXParser parser = factory.newSAXParser();
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            decompressTwice(parser, codec, payload);
+            decompressOnce(parser, codec, payload);
+        }
+
+        long twice = 0;
+        long once = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            decompressTwice(parser, codec, payload);
+            twice += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decompressOnce(parser, codec, payload);
+            once += System.nanoTime() - start;
+        }
+
+        final double twiceMs = twice / 1_000_000.0 / iterations;
+        final double onceMs = once / 1_000_000.0 / iterations;
+        System.out.println(String.format("Decompress for each parse : %8.1f ms/document", twiceMs));
+        System.out.println(String.format("Decompress once (buffer)  : %8.1f ms/document", onceMs));
+        System.out.println(String.format("Saving                    : %8.1f %%", 100.0 * (twiceMs - onceMs) / twiceMs));
+    }
+
+    private static void decompressTwice(final SAXParser parser, final PayloadCodec codec, final byte[] payload) throws Exception {
+        try (InputStream is = codec.decompress(new ByteArrayInputStream(payload))) {
+            parser.parse(new InputSource(is), new DefaultHandler());
+        }
+        try (InputStream is = codec.decompress(new ByteArrayInputStream(payload))) {
+            parser.parse(new InputSource(is), new DefaultHandler());
+        }
+    }
+
+    private static void decompressOnce(final SAXParser parser, final PayloadCodec codec, final byte[] payload) throws Exception {
+        final eXistMessage em = new eXistMessage();
+        em.setPayload(payload);
+
+        try (ContentBuffer buffer = ContentBuffer.decompress(em, codec, CONTENT_MEMORY_THRESHOLD)) {
+
+            try (InputStream is = buffer.getInputStream()) {
+                parser.parse(new InputSource(is), new DefaultHandler());
+            }
+            try (InputStream is = buffer.getInputStream()) {
+                parser.parse(new InputSource(is), new DefaultHandler());
+            }
+        }
+    }
+
+    private static byte[] createPayload(final int size, final PayloadCodec codec) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream os = codec.compress(baos, PayloadCodec.DEFAULT_LEVEL)) {
+            // Random values, so the content compresses like real documents
+            final Random random = new Random(42);
+            os.write("<root>".getBytes(StandardCharsets.UTF_8));
+            int written = 0;
+            for (int i = 0; written < size; i++) {
+                final byte[] record = String.format("<record id=\"%d\"><name>%s</name><value>%d</value><text>%s %s</text></record>",
+                        i, Long.toString(random.nextLong(), 36), random.nextInt(), Long.toString(random.nextLong(), 36),
+                        Long.toString(random.nextLong(), 36)).getBytes(StandardCharsets.UTF_8);
+                os.write(record);
+                written += record.length;
+            }
+            os.write("</root>".getBytes(StandardCharsets.UTF_8));
+        }
+        return baos.toByteArray();
+    }
+}